@@ -0,0 +1,115 @@
+/**
+ * Builds and samples Walker/Vose alias tables stored in flat primitive arrays.<br>
+ * A discrete distribution over n outcomes is stored as n cut-off probabilities and n alias outcomes starting at some offset, so many distributions can share one pair of arrays. Sampling
+ * takes a single random number and constant time regardless of n, and allocates nothing.
+ *
+ * @author Harry Allen
+ */
+public final class AliasTable
+{
+
+    private AliasTable()
+    {
+    }
+
+    /**
+     * Builds the alias table of the weights weights[offset] to weights[offset + n - 1] into cut and alias at the same offset. Weights do not have to be normalized. If every weight is zero the
+     * table is marked empty and sample() will return -1 for it.
+     *
+     * @param weights the (unnormalized) weights of the outcomes
+     * @param offset index of the first weight, and of the first entry of the table
+     * @param n number of outcomes
+     * @param cut receives the cut-off probability of each slot
+     * @param alias receives the alias outcome of each slot
+     */
+    public static void build(double[] weights, int offset, int n, double[] cut, int[] alias)
+    {
+        double sum = 0.0;
+
+        for (int i = 0; i < n; ++i)
+            sum += weights[offset + i];
+
+        if (sum <= 0.0)
+        {
+            for (int i = 0; i < n; ++i)
+            {
+                cut[offset + i] = -1.0;
+                alias[offset + i] = -1;
+            }
+
+            return;
+        }
+
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smalls = 0;
+        int larges = 0;
+
+        for (int i = 0; i < n; ++i)
+        {
+            scaled[i] = weights[offset + i] * n / sum;
+
+            if (scaled[i] < 1.0)
+                small[smalls++] = i;
+
+            else
+                large[larges++] = i;
+        }
+
+        while (smalls > 0 && larges > 0)
+        {
+            int s = small[--smalls];
+            int l = large[--larges];
+
+            cut[offset + s] = scaled[s];
+            alias[offset + s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+
+            if (scaled[l] < 1.0)
+                small[smalls++] = l;
+
+            else
+                large[larges++] = l;
+        }
+
+        // Whatever is left over is 1.0 up to rounding error
+        while (larges > 0)
+        {
+            int l = large[--larges];
+            cut[offset + l] = 1.0;
+            alias[offset + l] = l;
+        }
+
+        while (smalls > 0)
+        {
+            int s = small[--smalls];
+            cut[offset + s] = 1.0;
+            alias[offset + s] = s;
+        }
+    }
+
+    /**
+     * Draws an outcome from the table starting at offset.
+     *
+     * @param cut cut-off probabilities built by build()
+     * @param alias alias outcomes built by build()
+     * @param offset index of the first entry of the table
+     * @param n number of outcomes
+     * @param random source of randomness
+     * @return The outcome between 0 and n - 1, or -1 if the table is empty.
+     */
+    public static int sample(double[] cut, int[] alias, int offset, int n, RandomSource random)
+    {
+        if (alias[offset] == -1)
+            return -1;
+
+        double x = random.nextDouble() * n;
+        int i = (int) x;
+
+        if (x - i < cut[offset + i])
+            return i;
+
+        return alias[offset + i];
+    }
+}
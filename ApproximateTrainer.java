@@ -0,0 +1,537 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * Estimates the note counts of a corpus from a random sample of its files, for quick experiments on corpora too large to count in full.<br>
+ * A reservoir of up to a maximum number of MIDI files is drawn uniformly from the corpus in a single pass, as the roots are searched and the archives read, every archive entry being a
+ * file of its own; the entries drawn are held in memory until counted. If the time budget runs out before the corpus has been read, reading stops and the reservoir is a uniform sample
+ * of the files read so far. The reservoir is counted in batches of growing size, in random order. After each batch a 95% confidence interval is estimated for every first-order
+ * transition probability: the notes of one file are not independent of each other, so the variance is that of a ratio estimator over the files sampled, with the finite population
+ * correction when the whole corpus was read. Counting stops as soon as every interval is narrower than the tolerance, at the first file after the time budget is spent, or when the reservoir
+ * is exhausted. Higher orders are estimated from the same files but have no interval of their own. The counts are scaled down versions of the corpus counts, so probabilities, not counts,
+ * carry over.
+ *
+ * @author Harry Allen
+ */
+public class ApproximateTrainer
+{
+
+    public static final int     NOTES     = 12;
+    private static final double Z         = 1.959964;   // Standard normal quantile of a two-sided 95% interval
+    private static final int    MIN_FILES = 30;         // Files counted before the intervals are trusted
+
+    private final CorpusTrainer corpus;     // Trainer holding the corpus
+    private final RandomSource  random;     // Chooses the files sampled
+    private int                 maxFiles;   // Size of the reservoir
+    private long                budget;     // Longest time spent sampling and counting, in milliseconds
+    private double              tolerance;  // Half width every interval must fall below
+    private int                 population; // MIDI files in the corpus at the latest training, archive entries included
+    private boolean             partial;    // True if the budget ran out before the latest training read the whole corpus
+    private int                 drawn;      // Files of the reservoir handed to the counters by the latest training, counted or not
+    private ArrayList<long[]>   samples;    // First-order counts of each file counted, from * 12 + to, in the order counted
+    private long[]              sums;       // First-order counts of all the files counted
+    private double[]            halfWidths; // Half width of the interval of each first-order transition, NaN if unknown
+    private boolean             converged;  // True if every interval fell below the tolerance
+    private long                elapsed;    // Duration of the latest training, in milliseconds
+
+    /**
+     * A MIDI file that may be sampled: a file of its own, or an entry of an archive read into memory.
+     */
+    private static final class Unit
+    {
+        final File   file;          // The file, or the archive holding the entry
+        final int    transpose;
+        final String name;          // Path of the file, or of the archive and entry
+        final byte[] midi;          // Bytes of the entry, null for a file of its own
+
+        Unit(File file, int transpose, String name, byte[] midi)
+        {
+            this.file = file;
+            this.transpose = transpose;
+            this.name = name;
+            this.midi = midi;
+        }
+    }
+
+    /**
+     * Constructor. Samples up to 1000 files for up to 10 seconds, stopping once every interval is narrower than +/- 0.02.
+     *
+     * @param corpus trainer holding the corpus; its order, threads and deduplication mode are used for counting
+     * @param random chooses the files sampled
+     */
+    public ApproximateTrainer(CorpusTrainer corpus, RandomSource random)
+    {
+        this.corpus = corpus;
+        this.random = random;
+        maxFiles = 1000;
+        budget = 10000;
+        tolerance = 0.02;
+        samples = new ArrayList<long[]>();
+        sums = new long[NOTES * NOTES];
+        halfWidths = new double[NOTES * NOTES];
+    }
+
+    /**
+     * @param maxFiles largest number of files sampled
+     */
+    public void setMaxFiles(int maxFiles)
+    {
+        if (maxFiles < 1)
+            throw new IllegalArgumentException("At least one file must be sampled");
+
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * @param budget longest time spent sampling and counting, in milliseconds; the first batch is always counted, even if reading the corpus spent the whole budget
+     */
+    public void setBudget(long budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * @param tolerance half width below which every first-order interval must fall for counting to stop early
+     */
+    public void setTolerance(double tolerance)
+    {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Samples files from the corpus and counts them until the intervals converge or the budget is spent.
+     *
+     * @return The counts of the files sampled.
+     * @throws IllegalStateException if counting is interrupted or a parser thread fails
+     */
+    public NoteCounts train()
+    {
+        long start = System.currentTimeMillis();
+        Unit[] reservoir = sample(start + budget);
+        NoteCounts total = new NoteCounts(corpus.getMaxOrder());
+        Deduplicator deduplicator = new Deduplicator(corpus.getDeduplication());
+        int batch = 2 * corpus.getThreads();
+        ExecutorService pool = Executors.newFixedThreadPool(corpus.getThreads(), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "approximate-trainer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        samples = new ArrayList<long[]>();
+        converged = false;
+        drawn = 0;
+
+        try
+        {
+            // The first batch is always counted, so the counts are never empty
+            for (long end = Long.MAX_VALUE; drawn < reservoir.length && !converged && System.currentTimeMillis() < end; batch *= 2)
+            {
+                drawn = count(pool, reservoir, drawn, Math.min(reservoir.length, drawn + batch), end, total, deduplicator);
+                estimate();
+                converged = samples.size() >= Math.min(MIN_FILES, reservoir.length) && getMaxHalfWidth() <= tolerance;
+                end = start + budget;
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        elapsed = System.currentTimeMillis() - start;
+        return total;
+    }
+
+    /**
+     * @return The number of MIDI files in the corpus when it was last sampled, each archive entry counting as a file, or of the files read before the budget ran out if isPartial()
+     */
+    public int getPopulation()
+    {
+        return population;
+    }
+
+    /**
+     * @return True if the budget ran out before the latest training read the whole corpus, so the sample is drawn from the files read first
+     */
+    public boolean isPartial()
+    {
+        return partial;
+    }
+
+    /**
+     * @return The number of files counted by the latest training
+     */
+    public int getFiles()
+    {
+        return samples.size();
+    }
+
+    /**
+     * @return True if the latest training stopped because every interval fell below the tolerance
+     */
+    public boolean isConverged()
+    {
+        return converged;
+    }
+
+    /**
+     * @param from pitch class of the previous note relative to the counts
+     * @param to pitch class of the next note
+     * @return The estimated probability of the transition, or NaN if from was never followed by a note in the files counted
+     */
+    public double getProbability(int from, int to)
+    {
+        long row = 0;
+
+        for (int next = 0; next < NOTES; ++next)
+            row += sums[from * NOTES + next];
+
+        return row == 0 ? Double.NaN : (double) sums[from * NOTES + to] / row;
+    }
+
+    /**
+     * @param from pitch class of the previous note relative to the counts
+     * @param to pitch class of the next note
+     * @return The half width of the 95% confidence interval of the probability of the transition, or NaN if fewer than two files were counted or from was never followed by a note
+     */
+    public double getHalfWidth(int from, int to)
+    {
+        return halfWidths[from * NOTES + to];
+    }
+
+    /**
+     * @return The widest half width of the intervals of the transitions whose previous note was observed, or infinity if fewer than two files were counted
+     */
+    public double getMaxHalfWidth()
+    {
+        double widest = samples.size() < 2 ? Double.POSITIVE_INFINITY : 0.0;
+
+        for (double halfWidth : halfWidths)
+        {
+            if (!Double.isNaN(halfWidth))
+                widest = Math.max(widest, halfWidth);
+        }
+
+        return widest;
+    }
+
+    /**
+     * @return A one-line summary of the latest training: files counted, time taken, widest interval and why counting stopped.
+     */
+    public String getReport()
+    {
+        String reason = converged ? "converged" : drawn == Math.min(maxFiles, population) ? "sample exhausted" : "time budget spent";
+
+        return String.format("Approximate training: %d of %s%d files in %d ms, first-order probabilities within +/- %.4f at 95%% confidence (%s)", getFiles(),
+                partial ? "the first " : "", population, elapsed, getMaxHalfWidth(), reason);
+    }
+
+    /**
+     * Draws the reservoir with Algorithm R while visiting the corpus, reading every archive on the walker thread that found it, then shuffles it so that every prefix is itself a uniform
+     * sample. Archive entries larger than CorpusTrainer.MAX_ENTRY are reported and left out, as when counting the whole corpus. Stops reading once the budget is spent.
+     *
+     * @param end time at which reading stops, in milliseconds since the epoch
+     * @return The files sampled
+     * @throws IllegalStateException if the search is interrupted
+     */
+    private Unit[] sample(final long end)
+    {
+        final Unit[] reservoir = new Unit[maxFiles];
+
+        population = 0;
+        partial = false;
+
+        try
+        {
+            corpus.visit(new CorpusWalker.Visitor()
+            {
+                @Override
+                public void found(File file, int transpose) throws InterruptedException
+                {
+                    checkBudget(end);
+
+                    if (!ArchiveReader.isArchive(file))
+                    {
+                        offer(reservoir, file, transpose, file.getPath(), null, 0);
+                        return;
+                    }
+
+                    byte[] buffer = new byte[1 << 16];
+
+                    try (ArchiveReader archive = new ArchiveReader(file))
+                    {
+                        for (String entry = archive.next(); entry != null; entry = archive.next())
+                        {
+                            checkBudget(end);
+
+                            String name = file.getPath() + "!" + entry;
+                            int length = 0;
+
+                            while (length <= CorpusTrainer.MAX_ENTRY)
+                            {
+                                if (length == buffer.length)
+                                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+                                int read = archive.read(buffer, length, buffer.length - length);
+
+                                if (read < 0)
+                                    break;
+
+                                length += read;
+                            }
+
+                            if (length > CorpusTrainer.MAX_ENTRY)
+                                System.out.println(name + ": larger than " + CorpusTrainer.MAX_ENTRY + " bytes, skipped");
+                            else
+                                offer(reservoir, file, transpose, name, buffer, length);
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        System.out.println(file + ": " + e.toString());
+                    }
+                }
+            });
+        }
+        catch (InterruptedException e)
+        {
+            if (!isPartial())
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Corpus sampling interrupted");
+            }
+        }
+
+        Unit[] sampled = Arrays.copyOf(reservoir, Math.min(maxFiles, population));
+
+        for (int i = sampled.length - 1; i > 0; --i)
+        {
+            int other = random.nextInt(i + 1);
+            Unit swap = sampled[i];
+            sampled[i] = sampled[other];
+            sampled[other] = swap;
+        }
+
+        return sampled;
+    }
+
+    /**
+     * Stops the search once the budget is spent, marking the population as partial.
+     *
+     * @throws InterruptedException if the budget is spent
+     */
+    private void checkBudget(long end) throws InterruptedException
+    {
+        if (System.currentTimeMillis() < end)
+            return;
+
+        synchronized (this)
+        {
+            partial = true;
+        }
+
+        throw new InterruptedException("Sampling budget spent");
+    }
+
+    /**
+     * Adds a file to the population, keeping it in the reservoir with the probability of Algorithm R. The bytes of an archive entry are copied only if it is kept.
+     *
+     * @param bytes bytes of an archive entry, or null for a file of its own
+     */
+    private synchronized void offer(Unit[] reservoir, File file, int transpose, String name, byte[] bytes, int length)
+    {
+        int slot = population < reservoir.length ? population : random.nextInt(population + 1);
+
+        ++population;
+
+        if (slot < reservoir.length)
+            reservoir[slot] = new Unit(file, transpose, name, bytes == null ? null : Arrays.copyOf(bytes, length));
+    }
+
+    /**
+     * Counts files of the reservoir on every thread of the pool, each taking the next file until the batch ends or the time is up. Files that cannot be read or parsed are reported and
+     * left out of the samples; duplicates are sampled with no notes.
+     *
+     * @param from index of the first file of the batch
+     * @param to index after the last file of the batch
+     * @param end time at which no more files are started, in milliseconds since the epoch
+     * @return The index after the last file started
+     * @throws IllegalStateException if counting is interrupted or a thread fails
+     */
+    private int count(ExecutorService pool, final Unit[] reservoir, int from, final int to, final long end, final NoteCounts total, final Deduplicator deduplicator)
+    {
+        final AtomicInteger next = new AtomicInteger(from);
+        ArrayList<Future<Void>> counters = new ArrayList<Future<Void>>();
+
+        for (int t = 0; t < corpus.getThreads(); ++t)
+        {
+            counters.add(pool.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    MidiScanner scanner = new MidiScanner();
+
+                    while (System.currentTimeMillis() < end)
+                    {
+                        int i = next.getAndIncrement();
+
+                        if (i >= to)
+                            break;
+
+                        NoteCounts counts = count(reservoir[i], scanner, deduplicator);
+
+                        if (counts == null)
+                            continue;
+
+                        long[] firstOrder = getFirstOrder(counts);
+
+                        synchronized (total)
+                        {
+                            total.add(counts);
+                            samples.add(firstOrder);
+                        }
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        try
+        {
+            for (Future<Void> counter : counters)
+                counter.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("Approximate training failed: " + e.getCause(), e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Approximate training interrupted");
+        }
+
+        return Math.min(next.get(), to);
+    }
+
+    /**
+     * @return The counts of one file, empty if it duplicates a file counted before, or null if it could not be read or parsed
+     */
+    private NoteCounts count(Unit unit, MidiScanner scanner, Deduplicator deduplicator)
+    {
+        NoteCounts counts = new NoteCounts(corpus.getMaxOrder());
+        String path = unit.file.getPath();
+
+        try
+        {
+            ByteBuffer midi = unit.midi != null ? ByteBuffer.wrap(unit.midi) : MidiScanner.map(unit.file);
+            int size = midi.remaining();
+
+            if (deduplicator.addContent(path, unit.name, midi, unit.transpose))
+            {
+                scanner.scan(midi);
+
+                if (deduplicator.addNotes(path, unit.name, size, scanner, unit.transpose))
+                    counts.addScan(scanner, unit.transpose);
+            }
+
+            return counts;
+        }
+        catch (IOException | InvalidMidiDataException | RuntimeException e)
+        {
+            System.out.println(unit.name + ": " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @return The first-order counts of a file, from * 12 + to
+     */
+    private static long[] getFirstOrder(NoteCounts counts)
+    {
+        long[] firstOrder = new long[NOTES * NOTES];
+
+        for (int from = 0; from < NOTES; ++from)
+        {
+            int row = counts.getRow(ContextIndex.pack(from, 1));
+
+            for (int to = 0; row != -1 && to < NOTES; ++to)
+                firstOrder[from * NOTES + to] = counts.getCount(row, to);
+        }
+
+        return firstOrder;
+    }
+
+    /**
+     * Estimates the interval of every first-order transition. The probability p of a transition is estimated by the ratio of its count to the count of its previous note over the m files
+     * counted; its variance is (1 - m / N) / (m (m - 1) nbar^2) * sum over files of (c - p n)^2, where c and n are the counts of the transition and of the previous note in each file, nbar
+     * is the mean of n and N is the number of files in the corpus. The factor 1 - m / N is left out when the corpus was not read to the end, as N is then unknown.
+     */
+    private void estimate()
+    {
+        int m = samples.size();
+        double correction = partial ? 1.0 : population > 0 ? 1.0 - (double) m / population : 0.0;
+
+        sums = new long[NOTES * NOTES];
+
+        for (long[] file : samples)
+        {
+            for (int i = 0; i < sums.length; ++i)
+                sums[i] += file[i];
+        }
+
+        for (int from = 0; from < NOTES; ++from)
+        {
+            long row = 0;
+
+            for (int to = 0; to < NOTES; ++to)
+                row += sums[from * NOTES + to];
+
+            for (int to = 0; to < NOTES; ++to)
+            {
+                int t = from * NOTES + to;
+
+                if (m < 2 || row == 0)
+                {
+                    halfWidths[t] = Double.NaN;
+                    continue;
+                }
+
+                double p = (double) sums[t] / row;
+                double mean = (double) row / m;
+                double squares = 0.0;
+
+                for (long[] file : samples)
+                {
+                    long n = 0;
+
+                    for (int next = 0; next < NOTES; ++next)
+                        n += file[from * NOTES + next];
+
+                    double residual = file[t] - p * n;
+                    squares += residual * residual;
+                }
+
+                halfWidths[t] = Z * Math.sqrt(Math.max(correction, 0.0) * squares / (m * (m - 1.0) * mean * mean));
+            }
+        }
+    }
+}
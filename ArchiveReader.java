@@ -0,0 +1,385 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Streams the MIDI files out of a zip, tar or gzip-compressed tar archive without extracting it.<br>
+ * The archive is read once from start to end through a fixed-size buffer, so archives of any size can be read in bounded memory. next() moves to the next entry whose name ends in .mid or
+ * .midi and read() reads the bytes of that entry; every other entry is skipped.
+ *
+ * @author Harry Allen
+ */
+public class ArchiveReader implements Closeable
+{
+
+    private static final int BUFFER = 1 << 16;  // Size of the buffer the archive is read through
+    private static final int BLOCK  = 512;      // Size of a tar block
+
+    private final String         name;      // Path of the archive, for messages
+    private final InputStream    in;        // Decompressed archive
+    private final ZipInputStream zip;       // The archive as a zip stream, null for a tar archive
+    private final byte[]         header;    // Header block of the current tar entry
+    private long                 remaining; // Bytes of the current tar entry not read yet
+    private long                 padding;   // Bytes after the current tar entry up to the next block
+    private long                 size;      // Size of the current entry, -1 if the archive does not say
+
+    /**
+     * Constructor. Opens the archive; its type is chosen by its name.
+     *
+     * @param archive a file whose name ends in .zip, .tar, .tar.gz or .tgz
+     * @throws IOException if the archive could not be opened
+     */
+    public ArchiveReader(File archive) throws IOException
+    {
+        String lower = archive.getName().toLowerCase(Locale.ROOT);
+        InputStream file = new BufferedInputStream(new FileInputStream(archive), BUFFER);
+
+        name = archive.getPath();
+        header = new byte[BLOCK];
+        size = -1;
+
+        try
+        {
+            if (lower.endsWith(".zip"))
+            {
+                zip = new ZipInputStream(file);
+                in = zip;
+            }
+            else if (lower.endsWith(".tar.gz") || lower.endsWith(".tgz"))
+            {
+                zip = null;
+                in = new GZIPInputStream(file, BUFFER);
+            }
+            else if (lower.endsWith(".tar"))
+            {
+                zip = null;
+                in = file;
+            }
+            else
+                throw new IOException("Not a zip or tar archive: " + name);
+        }
+        catch (IOException e)
+        {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param file a file
+     * @return True if the file's name is that of an archive this class reads
+     */
+    public static boolean isArchive(File file)
+    {
+        String lower = file.getName().toLowerCase(Locale.ROOT);
+        return lower.endsWith(".zip") || lower.endsWith(".tar") || lower.endsWith(".tar.gz") || lower.endsWith(".tgz");
+    }
+
+    /**
+     * @param entry name of an entry
+     * @return True if the entry is named like a MIDI file
+     */
+    public static boolean isMidi(String entry)
+    {
+        String lower = entry.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".mid") || lower.endsWith(".midi");
+    }
+
+    /**
+     * Moves to the next MIDI file of the archive, skipping the rest of the current one.
+     *
+     * @return The name of the entry, or null at the end of the archive.
+     * @throws IOException if the archive could not be read or is corrupt
+     */
+    public String next() throws IOException
+    {
+        if (zip != null)
+        {
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry())
+            {
+                if (!entry.isDirectory() && isMidi(entry.getName()))
+                {
+                    size = entry.getSize();
+                    return entry.getName();
+                }
+            }
+
+            return null;
+        }
+
+        String longName = null;
+
+        while (true)
+        {
+            skip(remaining + padding);
+            remaining = 0;
+            padding = 0;
+
+            if (!readHeader())
+                return null;
+
+            long length = parseSize();
+            byte type = header[156];
+
+            remaining = length;
+            padding = (BLOCK - length % BLOCK) % BLOCK;
+
+            if (type == 'L' || type == 'x')
+            {
+                // GNU long name or POSIX extended header naming the next entry
+                if (length > BUFFER)
+                    throw new IOException(name + ": extended tar header too long");
+
+                byte[] data = new byte[(int) length];
+                readFully(data, 0, data.length);
+                remaining = 0;
+
+                longName = type == 'L' ? cString(data, 0, data.length) : paxPath(data, longName);
+            }
+            else if (type == '0' || type == 0 || type == '7')
+            {
+                String entry = longName != null ? longName : headerName();
+
+                if (isMidi(entry))
+                {
+                    size = length;
+                    return entry;
+                }
+
+                longName = null;
+            }
+            else
+                longName = null;
+        }
+    }
+
+    /**
+     * @return The size of the current entry in bytes, or -1 if the archive does not record it before the entry
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Reads bytes of the current entry.
+     *
+     * @param buffer buffer receiving the bytes
+     * @param offset position in the buffer of the first byte read
+     * @param length largest number of bytes to read
+     * @return The number of bytes read, or -1 at the end of the entry.
+     * @throws IOException if the archive could not be read or is corrupt
+     */
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (zip != null)
+            return zip.read(buffer, offset, length);
+
+        if (remaining == 0)
+            return length == 0 ? 0 : -1;
+
+        int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+
+        if (read < 0)
+            throw new EOFException(name + ": truncated tar archive");
+
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+    /**
+     * Reads the next tar header.
+     *
+     * @return False at the end of the archive
+     */
+    private boolean readHeader() throws IOException
+    {
+        int read = 0;
+
+        while (read < BLOCK)
+        {
+            int n = in.read(header, read, BLOCK - read);
+
+            if (n < 0)
+            {
+                if (read == 0)
+                    return false;
+
+                throw new EOFException(name + ": truncated tar archive");
+            }
+
+            read += n;
+        }
+
+        long sum = 0;
+        boolean empty = true;
+
+        for (int i = 0; i < BLOCK; ++i)
+        {
+            sum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xFF;
+            empty &= header[i] == 0;
+        }
+
+        // The archive ends with blocks of zeros
+        if (empty)
+            return false;
+
+        if (sum != parseOctal(148, 8))
+            throw new IOException(name + ": not a tar archive");
+
+        return true;
+    }
+
+    /**
+     * @return The size of the entry of the current header, in octal or, for large entries, base-256
+     */
+    private long parseSize() throws IOException
+    {
+        if ((header[124] & 0x80) != 0)
+        {
+            long value = 0;
+
+            for (int i = 125; i < 136; ++i)
+                value = (value << 8) | (header[i] & 0xFF);
+
+            return value;
+        }
+
+        return parseOctal(124, 12);
+    }
+
+    private long parseOctal(int offset, int length) throws IOException
+    {
+        long value = 0;
+
+        for (int i = offset; i < offset + length; ++i)
+        {
+            int c = header[i];
+
+            if (c == 0 || c == ' ')
+            {
+                if (value != 0)
+                    break;
+
+                continue;
+            }
+
+            if (c < '0' || c > '7')
+                throw new IOException(name + ": not a tar archive");
+
+            value = value * 8 + (c - '0');
+        }
+
+        return value;
+    }
+
+    /**
+     * @return The name of the entry of the current header, including the ustar prefix
+     */
+    private String headerName()
+    {
+        String entry = cString(header, 0, 100);
+
+        if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r' && header[345] != 0)
+            return cString(header, 345, 155) + '/' + entry;
+
+        return entry;
+    }
+
+    /**
+     * @return The path of a POSIX extended header, or the name passed if it has none
+     */
+    private static String paxPath(byte[] data, String name)
+    {
+        int position = 0;
+
+        // Records are "length key=value\n", the length counting the whole record
+        while (position < data.length)
+        {
+            int space = position;
+
+            while (space < data.length && data[space] != ' ')
+                ++space;
+
+            int length;
+
+            try
+            {
+                length = Integer.parseInt(new String(data, position, space - position, StandardCharsets.UTF_8));
+            }
+            catch (NumberFormatException e)
+            {
+                return name;
+            }
+
+            if (length <= 0 || position + length > data.length)
+                return name;
+
+            String record = new String(data, space + 1, position + length - space - 2, StandardCharsets.UTF_8);
+
+            if (record.startsWith("path="))
+                name = record.substring(5);
+
+            position += length;
+        }
+
+        return name;
+    }
+
+    private static String cString(byte[] data, int offset, int length)
+    {
+        int end = offset;
+
+        while (end < offset + length && data[end] != 0)
+            ++end;
+
+        return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private void readFully(byte[] data, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            int read = in.read(data, offset, length);
+
+            if (read < 0)
+                throw new EOFException(name + ": truncated tar archive");
+
+            offset += read;
+            length -= read;
+        }
+    }
+
+    private void skip(long length) throws IOException
+    {
+        while (length > 0)
+        {
+            long skipped = in.skip(length);
+
+            if (skipped <= 0)
+            {
+                if (in.read() < 0)
+                    throw new EOFException(name + ": truncated tar archive");
+
+                skipped = 1;
+            }
+
+            length -= skipped;
+        }
+    }
+}
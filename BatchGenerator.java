@@ -0,0 +1,199 @@
+import org.jfugue.MidiRenderer;
+import org.jfugue.MusicStringParser;
+import org.jfugue.Pattern;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+
+/**
+ * Generates many pieces without user interaction and writes each of them to a MIDI file.<br>
+ * Jobs are spread over a fixed pool of worker threads. ScoreGenerator, Score, Turtle and RhythmGenerator are not thread safe, so every worker owns its own ScoreGenerator and LSystem and no
+ * generation state is ever shared between threads.
+ *
+ * @author Harry Allen
+ */
+public class BatchGenerator
+{
+
+    private int                         threads;    // Number of worker threads
+    private File                        outputDir;  // Directory the generated MIDI files are written to
+    private ThreadLocal<ScoreGenerator> generators; // Score generator confined to each worker thread
+    private ThreadLocal<LSystem>        systems;    // L-System confined to each worker thread
+    private RandomSource                seeds;      // Provides the seeds of jobs that do not have one
+
+    /**
+     * Constructor.
+     *
+     * @param threads number of worker threads, values below 1 use one thread per available core
+     * @param outputDir directory the generated MIDI files are written to
+     */
+    public BatchGenerator(int threads, File outputDir)
+    {
+        if (threads < 1)
+            threads = Runtime.getRuntime().availableProcessors();
+
+        this.threads = threads;
+        this.outputDir = outputDir;
+
+        generators = new ThreadLocal<ScoreGenerator>()
+        {
+            @Override
+            protected ScoreGenerator initialValue()
+            {
+                return new ScoreGenerator();
+            }
+        };
+
+        systems = new ThreadLocal<LSystem>()
+        {
+            @Override
+            protected LSystem initialValue()
+            {
+                return new LSystem();
+            }
+        };
+
+        seeds = new RandomSource();
+    }
+
+    /**
+     * @return The number of worker threads
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @return The directory the generated MIDI files are written to
+     */
+    public File getOutputDir()
+    {
+        return outputDir;
+    }
+
+    /**
+     * Seeds the source of the seeds given to jobs that do not have one, which makes the whole batch reproducible.
+     *
+     * @param seed the new seed
+     */
+    public void setSeed(long seed)
+    {
+        seeds = new RandomSource(seed);
+    }
+
+    /**
+     * Runs every job on the worker pool and blocks until all of them have finished. A job that fails is reported and does not stop the remaining jobs.
+     *
+     * @param jobs the jobs to run
+     * @return The files that were written successfully, in the order of the jobs.
+     */
+    public ArrayList<File> run(List<GenerationJob> jobs)
+    {
+        ArrayList<File> files = new ArrayList<File>();
+        ArrayList<Future<File>> results = new ArrayList<Future<File>>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs())
+        {
+            System.out.println("Unable to create output directory " + outputDir);
+            pool.shutdown();
+            return files;
+        }
+
+        for (final GenerationJob job : jobs)
+        {
+            final long seed = job.isSeeded() ? job.getSeed() : seeds.nextLong();
+
+            results.add(pool.submit(new Callable<File>()
+            {
+                @Override
+                public File call() throws Exception
+                {
+                    return runJob(job, seed);
+                }
+            }));
+        }
+
+        for (int i = 0; i < results.size(); ++i)
+        {
+            try
+            {
+                files.add(results.get(i).get());
+            }
+            catch (ExecutionException e)
+            {
+                System.out.println("Job " + jobs.get(i).getName() + " failed: " + e.getCause());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        pool.shutdownNow();
+        return files;
+    }
+
+    /**
+     * Generates a single piece with the generator confined to the calling thread.
+     *
+     * @param job the job to run
+     * @param seed seed of the random decisions made for the job
+     * @return The MIDI file that was written.
+     * @throws IOException if the MIDI file could not be written
+     */
+    private File runJob(GenerationJob job, long seed) throws IOException
+    {
+        ScoreGenerator scoreGen = generators.get();
+        String production = job.expand(systems.get());
+        String name = job.getName();
+
+        if (!name.endsWith(".mid"))
+            name += ".mid";
+
+        File file = new File(outputDir, name);
+
+        scoreGen.resetTurtle();
+        scoreGen.setKey(job.getKey());
+        scoreGen.setTempo(job.getTempo());
+        scoreGen.setSeed(seed);
+        scoreGen.genScore(production, job.getOrder() > 0, job.getOrder());
+
+        saveMidi(scoreGen.getScore(), file);
+        return file;
+    }
+
+    /**
+     * Renders a pattern to a standard MIDI file without opening a Player, so no Sequencer or Synthesizer is ever acquired.
+     *
+     * @param pattern the pattern to render
+     * @param file the file to write
+     * @throws IOException if the file could not be written
+     */
+    public static void saveMidi(Pattern pattern, File file) throws IOException
+    {
+        MusicStringParser parser = new MusicStringParser();
+        MidiRenderer renderer = new MidiRenderer(Sequence.PPQ, 120);
+
+        parser.addParserListener(renderer);
+        parser.parse(pattern);
+
+        Sequence sequence = renderer.getSequence();
+        int[] types = MidiSystem.getMidiFileTypes(sequence);
+
+        if (types.length == 0)
+            throw new IOException("No MIDI file writer available for " + file);
+
+        MidiSystem.write(sequence, types[types.length - 1], file);
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ * Generates chord progressions from a chord transition matrix.<br>
+ * Every chord of the matrix is a state of a Markov chain. A progression starts on the tonic chord, leaves it, and ends the first time the chain returns to it. Each row of the matrix is turned
+ * into an alias table, so choosing the next chord takes constant time.<br>
+ * The return to the tonic is treated as an absorbing state. For every number of remaining chords the probability of being absorbed exactly then is precomputed, which allows progressions of an
+ * exact length to be drawn directly from the chain conditioned on that length instead of generating progressions until one happens to have the right length. The expected length of a
+ * progression is derived from the fundamental matrix of the chain.<br>
+ * Instances are immutable and may be shared between threads.
+ *
+ * @author Harry Allen
+ */
+public class ChordProgression
+{
+
+    public static final int[]    MAJOR_DEGREES = { 1, 5, 4, 6, 3, 2 };   // Scale degree of each chord of the default table: I, V, IV, vi, iii, ii
+    public static final double[][] MAJOR_TABLE =                         // Default transition table, see ScoreGenerator
+                                               { { 16.67, 16.67, 16.67, 16.67, 16.67, 16.67 }, { 33.33, 33.33, 0, 33.33, 0, 0 }, { 20, 20, 20, 0, 20, 20 }, { 0, 25, 25, 25, 0, 25 },
+            { 0, 0, 25, 25, 25, 25 }, { 0, 33.33, 0, 0, 33.33, 33.33 } };
+    public static final int      LONGEST       = 64;                     // Longest progression that can be requested with an exact length
+
+    private static ChordProgression major;                              // Shared instance built from the default table
+
+    private final int            states;        // Number of chords in the matrix
+    private final int[]          degrees;       // Scale degree of each chord
+    private final int            maxLength;     // Length at which a freely generated progression is closed with the tonic
+    private final double[]       matrix;        // Normalized transition probabilities, matrix[from * states + to]
+    private final double[]       cut;           // Alias table cut-offs of each row
+    private final int[]          alias;         // Alias table outcomes of each row
+    private final double[]       exactCut;      // Alias tables conditioned on the number of chords left, indexed ((left * states) + chord) * states
+    private final int[]          exactAlias;
+    private final double[]       finish;        // finish[left]: probability that a progression starting on the tonic ends after exactly left more chords
+    private final double[]       expectedSteps; // Expected number of chords until the tonic is reached from each chord
+    private final double         expectedLength;// Expected length of a freely generated progression, ignoring maxLength
+
+    /**
+     * Constructor. The tonic chord is the first row of the matrix.
+     *
+     * @param table transition weights, table[from][to]; rows do not have to be normalized
+     * @param degrees scale degree of each chord of the table
+     * @param maxLength length at which a freely generated progression is closed with the tonic
+     */
+    public ChordProgression(double[][] table, int[] degrees, int maxLength)
+    {
+        states = degrees.length;
+
+        if (table.length != states)
+            throw new IllegalArgumentException("Transition table must have one row per chord");
+
+        this.degrees = degrees.clone();
+        this.maxLength = maxLength;
+        matrix = new double[states * states];
+        cut = new double[states * states];
+        alias = new int[states * states];
+
+        for (int i = 0; i < states; ++i)
+        {
+            double sum = 0.0;
+
+            if (table[i].length != states)
+                throw new IllegalArgumentException("Transition table must have one column per chord");
+
+            for (int j = 0; j < states; ++j)
+                sum += table[i][j];
+
+            for (int j = 0; j < states; ++j)
+                matrix[i * states + j] = sum > 0 ? table[i][j] / sum : 0.0;
+
+            AliasTable.build(matrix, i * states, states, cut, alias);
+        }
+
+        // absorb[left * states + chord]: probability of first reaching the tonic from chord after exactly left steps
+        double[] absorb = new double[(LONGEST + 1) * states];
+        finish = new double[LONGEST + 1];
+
+        for (int left = 1; left <= LONGEST; ++left)
+        {
+            for (int s = 1; s < states; ++s)
+            {
+                double p = 0.0;
+
+                if (left == 1)
+                    p = matrix[s * states];
+
+                else
+                {
+                    for (int t = 1; t < states; ++t)
+                        p += matrix[s * states + t] * absorb[(left - 1) * states + t];
+                }
+
+                absorb[left * states + s] = p;
+            }
+
+            double f = matrix[0] * finish[left - 1];
+
+            for (int t = 1; t < states; ++t)
+                f += matrix[t] * absorb[(left - 1) * states + t];
+
+            finish[left] = f;
+        }
+
+        // Row 0 of each block stands for the tonic before the progression has left it
+        exactCut = new double[(LONGEST + 1) * states * states];
+        exactAlias = new int[(LONGEST + 1) * states * states];
+        double[] weights = new double[(LONGEST + 1) * states * states];
+
+        for (int left = 1; left <= LONGEST; ++left)
+        {
+            for (int s = 0; s < states; ++s)
+            {
+                int row = (left * states + s) * states;
+
+                for (int t = 0; t < states; ++t)
+                {
+                    double p = matrix[s * states + t];
+
+                    if (t == 0)
+                        weights[row] = s == 0 ? p * finish[left - 1] : (left == 1 ? p : 0.0);
+
+                    else
+                        weights[row + t] = p * absorb[(left - 1) * states + t];
+                }
+
+                AliasTable.build(weights, row, states, exactCut, exactAlias);
+            }
+        }
+
+        expectedSteps = solveExpectedSteps();
+
+        double leave = 1.0;
+
+        for (int t = 1; t < states; ++t)
+            leave += matrix[t] * expectedSteps[t];
+
+        expectedLength = matrix[0] < 1.0 ? 1.0 + leave / (1.0 - matrix[0]) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return The shared progression engine for the default major key table
+     */
+    public static synchronized ChordProgression getMajor()
+    {
+        if (major == null)
+            major = new ChordProgression(MAJOR_TABLE, MAJOR_DEGREES, 10);
+
+        return major;
+    }
+
+    /**
+     * Learns a transition matrix from example progressions. Every example should start and end on the tonic.
+     *
+     * @param progressions example progressions as scale degrees (1 - 7)
+     * @param maxLength length at which a freely generated progression is closed with the tonic
+     * @return A progression engine over the seven diatonic chords, with the tonic as its first chord.
+     */
+    public static ChordProgression learn(int[][] progressions, int maxLength)
+    {
+        double[][] counts = new double[7][7];
+        int[] learned = { 1, 2, 3, 4, 5, 6, 7 };
+
+        for (int[] p : progressions)
+        {
+            for (int i = 1; i < p.length; ++i)
+            {
+                if (p[i - 1] >= 1 && p[i - 1] <= 7 && p[i] >= 1 && p[i] <= 7)
+                    counts[p[i - 1] - 1][p[i] - 1] += 1;
+            }
+        }
+
+        return new ChordProgression(counts, learned, maxLength);
+    }
+
+    /**
+     * @return The expected number of chords in a freely generated progression, ignoring the maximum length; infinite if the tonic may never be reached again
+     */
+    public double getExpectedLength()
+    {
+        return expectedLength;
+    }
+
+    /**
+     * @param degree scale degree of a chord of the matrix
+     * @return The expected number of chords until the tonic is reached from the chord, infinite if it may never be reached
+     */
+    public double getExpectedSteps(int degree)
+    {
+        for (int s = 1; s < states; ++s)
+        {
+            if (degrees[s] == degree)
+                return expectedSteps[s];
+        }
+
+        return 0.0;
+    }
+
+    /**
+     * @param length number of chords
+     * @return The probability that a freely generated progression, ignoring the maximum length, has exactly the number of chords passed
+     */
+    public double getLengthProbability(int length)
+    {
+        if (length < 2 || length > LONGEST + 1)
+            return 0.0;
+
+        return finish[length - 1];
+    }
+
+    /**
+     * Generates a progression by walking the chain from the tonic until it returns to the tonic. If the progression reaches the maximum length it is closed with the tonic.
+     *
+     * @param random source of randomness
+     * @return The progression as scale degrees (1 - 7).
+     */
+    public int[] generate(RandomSource random)
+    {
+        int[] chain = new int[Math.max(maxLength, 2) + 1];
+        int size = 1;
+        int chord = 0;
+        boolean left = false;
+
+        chain[0] = 0;
+
+        while (true)
+        {
+            chord = AliasTable.sample(cut, alias, chord * states, states, random);
+
+            if (chord == -1)
+                chord = 0;
+
+            if (size == chain.length)
+                chain = java.util.Arrays.copyOf(chain, size * 2);
+
+            chain[size++] = chord;
+
+            if (chord != 0)
+                left = true;
+
+            else if (left)
+                break;
+
+            // Close the progression once it is long enough
+            if (size >= maxLength && left)
+            {
+                if (size == chain.length)
+                    chain = java.util.Arrays.copyOf(chain, size + 1);
+
+                chain[size++] = 0;
+                break;
+            }
+        }
+
+        return toDegrees(chain, size);
+    }
+
+    /**
+     * Generates a progression with exactly the number of chords passed, drawn from the chain conditioned on returning to the tonic for the first time at the last chord.
+     *
+     * @param length number of chords, including the opening and closing tonic (2 - LONGEST + 1)
+     * @param random source of randomness
+     * @return The progression as scale degrees (1 - 7).
+     */
+    public int[] generate(int length, RandomSource random)
+    {
+        if (getLengthProbability(length) <= 0.0)
+            throw new IllegalArgumentException("No progression of " + length + " chords can be generated from this table");
+
+        int[] chain = new int[length];
+        int chord = 0;
+
+        for (int i = 1; i < length; ++i)
+        {
+            int left = length - i;
+            chord = AliasTable.sample(exactCut, exactAlias, (left * states + chord) * states, states, random);
+            chain[i] = chord;
+        }
+
+        return toDegrees(chain, length);
+    }
+
+    /**
+     * @param chain progression as chord indices
+     * @param size number of chords
+     * @return The progression as scale degrees.
+     */
+    private int[] toDegrees(int[] chain, int size)
+    {
+        int[] progression = new int[size];
+
+        for (int i = 0; i < size; ++i)
+            progression[i] = degrees[chain[i]];
+
+        return progression;
+    }
+
+    /**
+     * Solves (I - Q) t = 1 for the expected number of steps t until absorption, where Q holds the transitions between the chords other than the tonic.
+     *
+     * @return The expected number of steps from each chord, 0 for the tonic and infinite for chords that may never reach it.
+     */
+    private double[] solveExpectedSteps()
+    {
+        int n = states - 1;
+        double[][] a = new double[n][n + 1];
+        double[] steps = new double[states];
+
+        for (int i = 0; i < n; ++i)
+        {
+            for (int j = 0; j < n; ++j)
+                a[i][j] = (i == j ? 1.0 : 0.0) - matrix[(i + 1) * states + j + 1];
+
+            a[i][n] = 1.0;
+        }
+
+        for (int col = 0; col < n; ++col)
+        {
+            int pivot = col;
+
+            for (int row = col + 1; row < n; ++row)
+            {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col]))
+                    pivot = row;
+            }
+
+            // Singular: some chords can never return to the tonic
+            if (Math.abs(a[pivot][col]) < 1e-12)
+            {
+                for (int s = 1; s < states; ++s)
+                    steps[s] = Double.POSITIVE_INFINITY;
+
+                return steps;
+            }
+
+            double[] tmp = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmp;
+
+            for (int row = 0; row < n; ++row)
+            {
+                if (row != col && a[row][col] != 0.0)
+                {
+                    double factor = a[row][col] / a[col][col];
+
+                    for (int k = col; k <= n; ++k)
+                        a[row][k] -= factor * a[col][k];
+                }
+            }
+        }
+
+        for (int i = 0; i < n; ++i)
+            steps[i + 1] = a[i][n] / a[i][i];
+
+        return steps;
+    }
+}
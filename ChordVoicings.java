@@ -0,0 +1,195 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of fully resolved chord voicings for ScoreGenerator.writeChord().<br>
+ * For one key signature, voicing strategy and pair of pitch bounds, the score fragment written for every chord degree, reference pitch and duration is built once: the chord tones are
+ * resolved to pitches, distributed over voices V0 - V2, and padded with rests up to a half note. Tables are immutable and shared between all generators.
+ *
+ * @author Harry Allen
+ */
+public class ChordVoicings
+{
+
+    /**
+     * How the three tones of a triad are stacked above the root closest to the reference pitch.
+     */
+    public enum Strategy
+    {
+        CLOSE(0, 4, 7),             // Root position
+        FIRST_INVERSION(4, 7, 12),  // Third in the bass
+        SECOND_INVERSION(7, 12, 16),// Fifth in the bass
+        OPEN(0, 7, 16);             // Root, fifth, and the third an octave higher
+
+        private final int[] offsets; // Half steps above the root of each tone, lowest first
+
+        Strategy(int low, int middle, int high)
+        {
+            offsets = new int[] { low, middle, high };
+        }
+    }
+
+    private static final char[]                                 DURATIONS = { 'o', 'x', 't', 's', 'i', 'q', 'h', 'w' }; // Durations, shortest first
+    private static final int[]                                  TICKS     = { 1, 2, 4, 8, 16, 32, 64, 128 };            // Length of each duration in 128th notes
+    private static final int                                    CHORD     = 64;                                         // Length a chord is padded to with rests
+    private static final ConcurrentHashMap<String, ChordVoicings> TABLES  = new ConcurrentHashMap<String, ChordVoicings>();
+
+    private final int      key;         // Key signature of the table
+    private final Strategy strategy;    // Voicing strategy of the table
+    private final int      lowerBound;  // Lower bound of chord pitches
+    private final int      upperBound;  // Upper bound of chord pitches
+    private final String[] fragments;   // fragments[((degree - 1) * range + pitch - lowerBound) * 8 + duration]
+
+    /**
+     * Constructor. Builds the fragments of every chord degree, reference pitch within the bounds, and duration.
+     */
+    private ChordVoicings(int key, Strategy strategy, int lowerBound, int upperBound)
+    {
+        this.key = key;
+        this.strategy = strategy;
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+
+        int range = upperBound - lowerBound + 1;
+        fragments = new String[8 * range * DURATIONS.length];
+
+        for (int degree = 1; degree <= 8; ++degree)
+        {
+            for (int pitch = lowerBound; pitch <= upperBound; ++pitch)
+            {
+                for (int d = 0; d < DURATIONS.length; ++d)
+                    fragments[((degree - 1) * range + pitch - lowerBound) * DURATIONS.length + d] = build(degree, pitch, DURATIONS[d], TICKS[d]);
+            }
+        }
+    }
+
+    /**
+     * Returns the shared table for the settings passed, building it on first use.
+     *
+     * @param key key signature (1 - 12)
+     * @param strategy voicing strategy
+     * @param lowerBound lower bound of chord pitches
+     * @param upperBound upper bound of chord pitches
+     * @return The voicing table.
+     */
+    public static ChordVoicings get(int key, Strategy strategy, int lowerBound, int upperBound)
+    {
+        String name = key + " " + strategy + " " + lowerBound + " " + upperBound;
+        ChordVoicings table = TABLES.get(name);
+
+        if (table == null)
+        {
+            table = new ChordVoicings(key, strategy, lowerBound, upperBound);
+            ChordVoicings existing = TABLES.putIfAbsent(name, table);
+
+            if (existing != null)
+                table = existing;
+        }
+
+        return table;
+    }
+
+    /**
+     * @return Key signature of the table
+     */
+    public int getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return Voicing strategy of the table
+     */
+    public Strategy getStrategy()
+    {
+        return strategy;
+    }
+
+    /**
+     * @param duration duration as a note ('o' - 'w') or rest ('0' - '7') character
+     * @return Length of the duration in 128th notes, 0 for unknown durations.
+     */
+    public static int getTicks(char duration)
+    {
+        int d = indexOf(duration);
+        return d == -1 ? 0 : TICKS[d];
+    }
+
+    /**
+     * Returns the score fragment for a chord. Rest durations are played as notes of the same length.
+     *
+     * @param chordDegree scale degree of the root of the chord (1 - 8)
+     * @param pitch reference pitch the chord is placed closest to
+     * @param duration duration of the chord
+     * @return The fragment to append to the score, ending in voice V0.
+     */
+    public String getFragment(int chordDegree, int pitch, char duration)
+    {
+        int d = indexOf(duration);
+
+        if (d == -1 || pitch < lowerBound || pitch > upperBound || chordDegree < 1 || chordDegree > 8)
+            return build(chordDegree, pitch, d == -1 ? duration : DURATIONS[d], d == -1 ? 0 : TICKS[d]);
+
+        int range = upperBound - lowerBound + 1;
+        return fragments[((chordDegree - 1) * range + pitch - lowerBound) * DURATIONS.length + d];
+    }
+
+    /**
+     * Builds the fragment for a chord: the highest tone continues the melody in V0, the others are written to V1 and V2 and padded with rests.
+     */
+    private String build(int chordDegree, int pitch, char duration, int ticks)
+    {
+        int[] offsets = strategy.offsets;
+        int root = KeyTables.walkClosestPitch(KeyTables.getChord(key, chordDegree)[0], pitch, lowerBound, upperBound);
+
+        while (root + offsets[2] > upperBound)
+            root -= 12;
+
+        StringBuffer buffer = new StringBuffer();
+        String rests = getRests(CHORD - ticks);
+
+        buffer.append(" [" + (root + offsets[2]) + "]" + duration);
+        buffer.append(" V1 [" + (root + offsets[1]) + "]" + duration + rests);
+        buffer.append(" V2 [" + (root + offsets[0]) + "]" + duration + rests);
+        buffer.append(" V0");
+
+        return buffer.toString();
+    }
+
+    /**
+     * @param ticks length to fill in 128th notes
+     * @return Rests filling the length, longest first.
+     */
+    private static String getRests(int ticks)
+    {
+        StringBuffer rests = new StringBuffer();
+
+        for (int d = DURATIONS.length - 1; d >= 0; --d)
+        {
+            while (ticks >= TICKS[d])
+            {
+                rests.append(" R" + DURATIONS[d]);
+                ticks -= TICKS[d];
+            }
+        }
+
+        return rests.toString();
+    }
+
+    /**
+     * @param duration duration as a note or rest character
+     * @return Index of the duration in DURATIONS, or -1 if unknown.
+     */
+    private static int indexOf(char duration)
+    {
+        if (duration >= '0' && duration <= '7')
+            return duration - '0';
+
+        for (int d = 0; d < DURATIONS.length; ++d)
+        {
+            if (DURATIONS[d] == duration)
+                return d;
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,355 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Markov chains of every order up to a maximum, quantized into two flat arrays so that many style models can stay resident at once.<br>
+ * The contexts are kept as a sorted array of packed keys searched by binary search. The distribution of each context is stored as the cumulative thresholds of its first 11 notes on a
+ * scale of 2^bits - 1 units, one or two bytes each; a note observed at least once keeps at least one unit. Sampling draws a single integer below the scale and scans the thresholds,
+ * backing off to shorter contexts like VariableOrderModel. Contexts above the first order seen fewer times than a minimum can be pruned, in which case sampling backs off to the
+ * longest context kept. A first-order context takes 19 bytes with 8 bits and 30 bytes with 16 bits, against about 180 for VariableOrderModel. Instances are immutable and may be shared
+ * between threads.
+ *
+ * @author Harry Allen
+ */
+public class CompactModel implements NoteChain
+{
+
+    public static final int  NOTES      = 12;
+    private static final int THRESHOLDS = NOTES - 1;    // Thresholds stored per context; the last note takes the rest of the scale
+
+    private static final int MAGIC      = 0x4E434D50;   // "NCMP", start of a serialized model
+    private static final int VERSION    = 1;            // Version of the serialized format
+
+    private final int    maxOrder;     // Highest order of the chains
+    private final int    bits;         // Bits per threshold, 8 or 16
+    private final int    scale;        // Units of each distribution, 2^bits - 1
+    private final long[] keys;         // Packed context of each row, in ascending order
+    private final byte[] thresholds;   // Cumulative units of the first 11 notes of each row, big-endian when 16 bits
+
+    /**
+     * Constructor. Quantizes the distribution of every context followed by at least one note.
+     *
+     * @param counts transition counts of every order
+     * @param bits bits per threshold, 8 or 16
+     * @param minTotal number of transitions below which a context above the first order is left out, so that sampling backs off to a shorter one; 1 keeps every context
+     */
+    public CompactModel(NoteCounts counts, int bits, long minTotal)
+    {
+        if (bits != 8 && bits != 16)
+            throw new IllegalArgumentException("Thresholds must have 8 or 16 bits");
+
+        this.maxOrder = counts.getMaxOrder();
+        this.bits = bits;
+        this.scale = (1 << bits) - 1;
+
+        long[] kept = new long[counts.getContexts()];
+        int size = 0;
+
+        for (int row = 0; row < counts.getContexts(); ++row)
+        {
+            long total = getTotal(counts, row);
+            long context = counts.getContext(row);
+
+            if (total > 0 && (total >= minTotal || ContextIndex.getOrder(context) == 1))
+                kept[size++] = context;
+        }
+
+        keys = Arrays.copyOf(kept, size);
+        Arrays.sort(keys);
+        thresholds = new byte[size * THRESHOLDS * (bits / 8)];
+
+        long[] weights = new long[NOTES];
+        int[] units = new int[NOTES];
+
+        for (int i = 0; i < size; ++i)
+        {
+            int row = counts.getRow(keys[i]);
+
+            for (int next = 0; next < NOTES; ++next)
+                weights[next] = counts.getCount(row, next);
+
+            quantize(weights, getTotal(counts, row), scale, units);
+
+            int cumulative = 0;
+
+            for (int next = 0; next < THRESHOLDS; ++next)
+            {
+                cumulative += units[next];
+                setThreshold(i * THRESHOLDS + next, cumulative);
+            }
+        }
+    }
+
+    /**
+     * Constructor for a model read from a stream.
+     */
+    private CompactModel(int maxOrder, int bits, long[] keys, byte[] thresholds)
+    {
+        this.maxOrder = maxOrder;
+        this.bits = bits;
+        this.scale = (1 << bits) - 1;
+        this.keys = keys;
+        this.thresholds = thresholds;
+    }
+
+    @Override
+    public int getMaxOrder()
+    {
+        return maxOrder;
+    }
+
+    @Override
+    public int getContexts()
+    {
+        return keys.length;
+    }
+
+    /**
+     * @return The number of bits per threshold
+     */
+    public int getBits()
+    {
+        return bits;
+    }
+
+    /**
+     * @return The number of bytes taken by the contexts and their thresholds
+     */
+    public long getBytes()
+    {
+        return keys.length * 8L + thresholds.length;
+    }
+
+    @Override
+    public int sample(int[] history, int length, int order, int transpose, RandomSource random)
+    {
+        int shift = ((transpose % NOTES) + NOTES) % NOTES;
+        int longest = Math.min(Math.min(order, maxOrder), length);
+        long packed = 0;
+
+        for (int i = length - longest; i < length; ++i)
+            packed = (packed << 4) | ((history[i] + shift) % NOTES);
+
+        for (int o = longest; o >= 1; --o)
+        {
+            int row = Arrays.binarySearch(keys, ContextIndex.pack(packed, o));
+
+            if (row >= 0)
+            {
+                int draw = random.nextInt(scale);
+                int base = row * THRESHOLDS;
+                int next = 0;
+
+                while (next < THRESHOLDS && draw >= getThreshold(base + next))
+                    ++next;
+
+                return (next - shift + NOTES) % NOTES;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Measures how far the distributions sampled from are from the full-precision distributions of the counts the model was built from. For every context of the counts, the total
+     * variation distance between its distribution and the quantized distribution sampling would use for it, after backing off from a pruned context, is weighted by the number of
+     * transitions of the context.
+     *
+     * @param counts the counts the model was built from
+     * @return The weighted mean distance, from 0 for identical distributions to 1 for distributions with no note in common.
+     */
+    public double getDistance(NoteCounts counts)
+    {
+        double distance = 0.0;
+        long weight = 0;
+
+        for (int row = 0; row < counts.getContexts(); ++row)
+        {
+            long total = getTotal(counts, row);
+
+            if (total == 0)
+                continue;
+
+            long context = counts.getContext(row);
+            int mine = -1;
+
+            for (int o = ContextIndex.getOrder(context); o >= 1 && mine < 0; --o)
+                mine = Arrays.binarySearch(keys, ContextIndex.pack(context >>> 4, o));
+
+            if (mine < 0)
+                continue;
+
+            double difference = 0.0;
+            int previous = 0;
+
+            for (int next = 0; next < NOTES; ++next)
+            {
+                int cumulative = next < THRESHOLDS ? getThreshold(mine * THRESHOLDS + next) : scale;
+                difference += Math.abs((double) counts.getCount(row, next) / total - (double) (cumulative - previous) / scale);
+                previous = cumulative;
+            }
+
+            distance += difference / 2 * total;
+            weight += total;
+        }
+
+        return weight == 0 ? 0.0 : distance / weight;
+    }
+
+    /**
+     * Writes the model in a compact binary format: a header (magic number, format version, maximum order, bits per threshold, number of contexts) followed by the packed contexts as
+     * big-endian longs and then the thresholds.
+     *
+     * @param out the stream to write to, not closed
+     * @throws IOException if the model could not be written
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        DataOutputStream data = new DataOutputStream(out);
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(maxOrder);
+        data.writeInt(bits);
+        data.writeInt(keys.length);
+
+        for (long key : keys)
+            data.writeLong(key);
+
+        data.write(thresholds);
+        data.flush();
+    }
+
+    /**
+     * Reads a model written by write(). The buffer may be a read-only memory-mapped file; its position is advanced past the model.
+     *
+     * @param buffer buffer positioned at the start of the model
+     * @return The model read.
+     * @throws IOException if the buffer does not hold a model in the current format
+     */
+    public static CompactModel read(ByteBuffer buffer) throws IOException
+    {
+        try
+        {
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("Not a compact model file");
+
+            int version = buffer.getInt();
+
+            if (version != VERSION)
+                throw new IOException("Unsupported compact model format " + version);
+
+            int maxOrder = buffer.getInt();
+            int bits = buffer.getInt();
+            int size = buffer.getInt();
+
+            if (maxOrder < 1 || maxOrder > ContextIndex.MAX_ORDER)
+                throw new IOException("Invalid order " + maxOrder);
+
+            if (bits != 8 && bits != 16)
+                throw new IOException("Invalid threshold size " + bits);
+
+            if (size < 0 || (long) size * (8 + THRESHOLDS * (bits / 8)) > buffer.remaining())
+                throw new IOException("Compact model file is truncated");
+
+            long[] keys = new long[size];
+
+            for (int i = 0; i < size; ++i)
+            {
+                keys[i] = buffer.getLong();
+
+                if (i > 0 && keys[i] <= keys[i - 1])
+                    throw new IOException("Contexts out of order");
+            }
+
+            byte[] thresholds = new byte[size * THRESHOLDS * (bits / 8)];
+            buffer.get(thresholds);
+
+            return new CompactModel(maxOrder, bits, keys, thresholds);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IOException("Compact model file is truncated");
+        }
+    }
+
+    /**
+     * Divides the scale between the notes in proportion to their weights by the largest remainder method, giving every note with a weight at least one unit.
+     */
+    private static void quantize(long[] weights, long total, int scale, int[] units)
+    {
+        double[] exact = new double[NOTES];
+        int sum = 0;
+
+        for (int next = 0; next < NOTES; ++next)
+        {
+            exact[next] = (double) weights[next] * scale / total;
+            units[next] = weights[next] == 0 ? 0 : Math.max(1, (int) exact[next]);
+            sum += units[next];
+        }
+
+        // Hand out the units lost by rounding down to the notes that lost the most
+        while (sum < scale)
+        {
+            int best = -1;
+
+            for (int next = 0; next < NOTES; ++next)
+            {
+                if (weights[next] > 0 && (best < 0 || exact[next] - units[next] > exact[best] - units[best]))
+                    best = next;
+            }
+
+            ++units[best];
+            ++sum;
+        }
+
+        // Take back the units given to rare notes from the notes that gained the most
+        while (sum > scale)
+        {
+            int best = -1;
+
+            for (int next = 0; next < NOTES; ++next)
+            {
+                if (units[next] > 1 && (best < 0 || units[next] - exact[next] > units[best] - exact[best]))
+                    best = next;
+            }
+
+            --units[best];
+            --sum;
+        }
+    }
+
+    private static long getTotal(NoteCounts counts, int row)
+    {
+        long total = 0;
+
+        for (int next = 0; next < NOTES; ++next)
+            total += counts.getCount(row, next);
+
+        return total;
+    }
+
+    private int getThreshold(int index)
+    {
+        if (bits == 8)
+            return thresholds[index] & 0xFF;
+
+        return ((thresholds[2 * index] & 0xFF) << 8) | (thresholds[2 * index + 1] & 0xFF);
+    }
+
+    private void setThreshold(int index, int value)
+    {
+        if (bits == 8)
+            thresholds[index] = (byte) value;
+
+        else
+        {
+            thresholds[2 * index] = (byte) (value >>> 8);
+            thresholds[2 * index + 1] = (byte) value;
+        }
+    }
+}
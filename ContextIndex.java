@@ -0,0 +1,190 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash index from packed note contexts to dense row numbers.<br>
+ * A context of up to 15 notes is packed into a long: the low 4 bits hold its order (the number of notes), followed by 4 bits per note starting with the most recent one. Rows are numbered
+ * in the order contexts are first added, so per-context data can be kept in flat primitive arrays of NOTES entries per row and memory stays proportional to the contexts observed. The
+ * index itself works with any packing whose keys are never 0, such as the joint transitions of JointCounts.
+ *
+ * @author Harry Allen
+ */
+public class ContextIndex
+{
+
+    public static final int   MAX_ORDER = 15;       // Longest context that fits in a packed key
+    public static final int   NOTES     = 12;       // Number of pitch classes
+    private static final long EMPTY     = 0L;       // Key of an unused slot; no packed context is 0 since its order is at least 1
+    private static final long MIX       = 0x9E3779B97F4A7C15L;
+
+    private long[] slots;       // Key stored in each slot, EMPTY if unused
+    private int[]  slotRows;    // Row of the key stored in each slot
+    private long[] keys;        // Key of each row
+    private int    size;        // Number of rows
+    private int    shift;       // 64 - log2(number of slots)
+
+    /**
+     * Constructor.
+     *
+     * @param expected number of contexts expected, used to size the table
+     */
+    public ContextIndex(int expected)
+    {
+        int capacity = 16;
+
+        while (capacity < expected * 2)
+            capacity <<= 1;
+
+        slots = new long[capacity];
+        slotRows = new int[capacity];
+        keys = new long[Math.max(expected, 16)];
+        size = 0;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    /**
+     * Packs the most recent notes of a history into a context key.
+     *
+     * @param history pitch classes packed 4 bits each, the most recent note in the lowest bits
+     * @param order number of notes in the context (1 - 15)
+     * @return The packed context
+     */
+    public static long pack(long history, int order)
+    {
+        return ((history & ((1L << (4 * order)) - 1)) << 4) | order;
+    }
+
+    /**
+     * @param key packed context
+     * @return The number of notes in the context
+     */
+    public static int getOrder(long key)
+    {
+        return (int) (key & 0xF);
+    }
+
+    /**
+     * @param key packed context
+     * @param back 0 for the most recent note of the context, 1 for the one before it, and so on
+     * @return The pitch class of the note
+     */
+    public static int getNote(long key, int back)
+    {
+        return (int) ((key >>> (4 * back + 4)) & 0xF);
+    }
+
+    /**
+     * @param key packed context
+     * @param semitones number of half steps to move every note of the context
+     * @return The packed context with every note moved
+     */
+    public static long rotate(long key, int semitones)
+    {
+        int order = getOrder(key);
+        int shift = ((semitones % NOTES) + NOTES) % NOTES;
+        long rotated = order;
+
+        for (int back = 0; back < order; ++back)
+            rotated |= (long) ((getNote(key, back) + shift) % NOTES) << (4 * back + 4);
+
+        return rotated;
+    }
+
+    /**
+     * @param key packed context
+     * @return The row of the context, or -1 if it has not been added
+     */
+    public int get(long key)
+    {
+        int mask = slots.length - 1;
+
+        for (int slot = hash(key); ; slot = (slot + 1) & mask)
+        {
+            long stored = slots[slot];
+
+            if (stored == key)
+                return slotRows[slot];
+
+            if (stored == EMPTY)
+                return -1;
+        }
+    }
+
+    /**
+     * @param key packed context
+     * @return The row of the context, adding it as the next row if it has not been added
+     */
+    public int add(long key)
+    {
+        int mask = slots.length - 1;
+        int slot = hash(key);
+
+        for (; slots[slot] != EMPTY; slot = (slot + 1) & mask)
+        {
+            if (slots[slot] == key)
+                return slotRows[slot];
+        }
+
+        if (size == keys.length)
+            keys = Arrays.copyOf(keys, size * 2);
+
+        slots[slot] = key;
+        slotRows[slot] = size;
+        keys[size] = key;
+
+        if (++size * 2 > slots.length)
+            grow();
+
+        return size - 1;
+    }
+
+    /**
+     * @return The number of rows
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param row row number
+     * @return The packed context of the row
+     */
+    public long getKey(int row)
+    {
+        return keys[row];
+    }
+
+    /**
+     * Doubles the number of slots and inserts every key again.
+     */
+    private void grow()
+    {
+        long[] oldSlots = slots;
+        int[] oldRows = slotRows;
+
+        slots = new long[oldSlots.length * 2];
+        slotRows = new int[slots.length];
+        --shift;
+
+        int mask = slots.length - 1;
+
+        for (int i = 0; i < oldSlots.length; ++i)
+        {
+            if (oldSlots[i] != EMPTY)
+            {
+                int slot = hash(oldSlots[i]);
+
+                while (slots[slot] != EMPTY)
+                    slot = (slot + 1) & mask;
+
+                slots[slot] = oldSlots[i];
+                slotRows[slot] = oldRows[i];
+            }
+        }
+    }
+
+    private int hash(long key)
+    {
+        return (int) ((key * MIX) >>> shift);
+    }
+}
@@ -0,0 +1,870 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * Counts the note transitions of a corpus of MIDI files on several threads.<br>
+ * A reader thread maps each file into memory and loads its pages into a bounded queue while parser threads read the notes with a MidiScanner, so disk reads overlap with parsing. Zip and
+ * tar archives of MIDI files are streamed by the reader without being extracted: each entry is read into one of a fixed pool of buffers that the parsers hand back once the entry is
+ * parsed, so memory stays bounded however large the archive. Directories added as roots are searched by a CorpusWalker, and each file it finds is queued for the parsers at once rather
+ * than after the whole tree has been listed; this only applies to roots that have not been searched before counting starts, since asking for the files or the fingerprint searches
+ * every root first. Every parser accumulates into its own NoteCounts shard; the shards are then merged pairwise in a tree reduction. Counts are exact integers,
+ * so the result does not depend on the number of threads or the order files are parsed in. Copies of MIDI files already counted are recognized by a Deduplicator and skipped; a copy is
+ * only skipped when it would add the same counts again, so the result does not depend on which copy is counted either.
+ * Worker threads are daemon threads, so training in the background never keeps the application from exiting.
+ *
+ * @author Harry Allen
+ */
+public class CorpusTrainer
+{
+
+    private static final int         QUEUE_PER_THREAD = 4;                                  // Loaded files waiting per parser thread
+    private static final int         ENTRY_BUFFER     = 1 << 16;                            // Initial size of each buffer holding an archive entry
+    public static final int          MAX_ENTRY        = 1 << 22;                            // Largest archive entry read, larger entries are skipped
+    private static final Loaded      END              = new Loaded(null, null, null, null); // Marks the end of the corpus for a parser thread
+
+    private final int                maxOrder;      // Highest order of Markov chain counted
+    private final int                threads;       // Number of parser threads
+    private final ArrayList<File>    files;         // Files of the corpus
+    private final ArrayList<Integer> transposes;    // Half steps added to the notes of each file
+    private CorpusWalker             unwalked;      // Roots whose files have not been added to the corpus yet
+    private int                      deduplication; // Deduplicator mode of each training
+    private Deduplicator             deduplicator;  // Duplicates found by the latest training, null before the first
+
+    /**
+     * Receives the counts of each file when the corpus is counted file by file.
+     */
+    public interface Listener
+    {
+        /**
+         * Called on a parser thread once the notes of a file have been counted. Files that cannot be read or parsed are reported and never passed to the listener. An archive is passed
+         * once with the counts of all of its MIDI files by trainEach(), and once per MIDI file by trainEntries(); entries that cannot be parsed are reported and left out.
+         *
+         * @param file the file or archive counted
+         * @param transpose number of half steps added to the notes of the file
+         * @param counts the transition counts of the file alone
+         * @throws IOException to stop counting the corpus
+         */
+        void counted(File file, int transpose, NoteCounts counts) throws IOException;
+    }
+
+    /**
+     * A file of the corpus being counted. Every Loaded item of the file holds one reference to it until the item has been parsed, so the parser that releases the last reference knows
+     * that every MIDI file in it has been counted. When counting file by file, each parser thread counts the MIDI files of an archive it parses into counts of its own, so the threads
+     * sharing an archive never wait for each other; the parser releasing the last reference merges them.
+     */
+    private static final class Source
+    {
+        final File          file;
+        final int           transpose;
+        final NoteCounts[]  parts;          // Counts of the file alone by each parser thread, null unless counting file by file
+        final AtomicInteger references;
+        boolean             failed;         // Set when the file could not be read or parsed
+
+        Source(File file, int transpose, NoteCounts[] parts)
+        {
+            this.file = file;
+            this.transpose = transpose;
+            this.parts = parts;
+            references = new AtomicInteger(1);
+        }
+    }
+
+    /**
+     * A MIDI file read into memory, waiting to be parsed. An item without bytes releases the reader's reference to an archive once all of its entries have been queued.
+     */
+    private static final class Loaded
+    {
+        final Source     source;
+        final String     name;      // Path of the file, or of the archive and entry
+        final ByteBuffer midi;      // Bytes of the MIDI file, null for the end of an archive
+        final byte[]     buffer;    // Pool buffer holding the bytes, null if the file is mapped
+
+        Loaded(Source source, String name, ByteBuffer midi, byte[] buffer)
+        {
+            this.source = source;
+            this.name = name;
+            this.midi = midi;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxOrder highest order of Markov chain to count
+     * @param threads number of parser threads, values below 1 use one thread per available core
+     */
+    public CorpusTrainer(int maxOrder, int threads)
+    {
+        if (threads < 1)
+            threads = Runtime.getRuntime().availableProcessors();
+
+        this.maxOrder = maxOrder;
+        this.threads = threads;
+        files = new ArrayList<File>();
+        transposes = new ArrayList<Integer>();
+        unwalked = new CorpusWalker(threads);
+        deduplication = Deduplicator.CONTENT;
+    }
+
+    /**
+     * @return The number of parser threads
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @return The highest order of Markov chain counted
+     */
+    public int getMaxOrder()
+    {
+        return maxOrder;
+    }
+
+    /**
+     * @return How duplicate MIDI files are recognized: Deduplicator.NONE, CONTENT or NOTES
+     */
+    public synchronized int getDeduplication()
+    {
+        return deduplication;
+    }
+
+    /**
+     * Chooses how duplicate MIDI files are recognized and skipped. Byte-identical files are skipped by default.
+     *
+     * @param deduplication Deduplicator.NONE to count every file, CONTENT to skip byte-identical files, NOTES to also skip files with identical notes
+     */
+    public synchronized void setDeduplication(int deduplication)
+    {
+        if (deduplication < Deduplicator.NONE || deduplication > Deduplicator.NOTES)
+            throw new IllegalArgumentException("Unknown deduplication mode " + deduplication);
+
+        this.deduplication = deduplication;
+    }
+
+    /**
+     * @return The duplicates found by the latest training, or null if the corpus has not been counted yet
+     */
+    public synchronized Deduplicator getDeduplicator()
+    {
+        return deduplicator;
+    }
+
+    /**
+     * @return The number of files in the corpus, after searching the roots that have not been searched yet
+     */
+    public synchronized int getFiles()
+    {
+        list();
+        return files.size();
+    }
+
+    /**
+     * @param index index of the file, files found under roots following the files added before them
+     * @return The file
+     */
+    public synchronized File getFile(int index)
+    {
+        list();
+        return files.get(index);
+    }
+
+    /**
+     * @param index index of the file, files found under roots following the files added before them
+     * @return The number of half steps added to every note of the file
+     */
+    public synchronized int getTranspose(int index)
+    {
+        list();
+        return transposes.get(index);
+    }
+
+    /**
+     * Adds a MIDI file, or a zip, tar or gzip-compressed tar archive of MIDI files, to the corpus.
+     *
+     * @param midi the file to add
+     * @param transpose number of half steps added to every note of the file
+     */
+    public synchronized void addFile(File midi, int transpose)
+    {
+        files.add(midi);
+        transposes.add(transpose);
+    }
+
+    /**
+     * Adds MIDI files or archives of MIDI files to the corpus.
+     *
+     * @param midis the files to add
+     * @param transpose number of half steps added to every note of the files, e.g. minus the tonic to count relative to the key
+     */
+    public synchronized void addFiles(List<File> midis, int transpose)
+    {
+        for (File midi : midis)
+            addFile(midi, transpose);
+    }
+
+    /**
+     * Adds every MIDI file and archive under a directory to the corpus. The directory is searched when the corpus is first counted or its files or fingerprint are first asked for;
+     * files found while counting are parsed as soon as they are found. ModelCache and ShardStore need the fingerprint or the list of files before counting, so on their path the whole
+     * tree is searched before the first file is parsed.
+     *
+     * @param root the directory, searched with all of its subdirectories
+     * @param transpose number of half steps added to every note of the files
+     */
+    public synchronized void addRoot(File root, int transpose)
+    {
+        unwalked.addRoot(root, transpose);
+    }
+
+    /**
+     * Identifies the corpus by the path, size and modification time of every file, the transposition applied to it, the highest order counted, the deduplication mode, and the version of
+     * MidiScanner. Files are sorted first, so the fingerprint does not depend on the order they were added in. Every root not searched yet is searched to completion first.
+     *
+     * @return A hexadecimal fingerprint that changes whenever the corpus or the counts it would produce change.
+     */
+    public synchronized String getFingerprint()
+    {
+        list();
+
+        ArrayList<String> entries = new ArrayList<String>(files.size());
+
+        for (int i = 0; i < files.size(); ++i)
+        {
+            File midi = files.get(i);
+            entries.add(midi.getAbsolutePath() + '\0' + midi.length() + '\0' + midi.lastModified() + '\0' + transposes.get(i));
+        }
+
+        Collections.sort(entries);
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(("order " + maxOrder + " dedup " + deduplication + " scanner " + MidiScanner.VERSION).getBytes(StandardCharsets.UTF_8));
+
+            for (String entry : entries)
+            {
+                digest.update((byte) '\n');
+                digest.update(entry.getBytes(StandardCharsets.UTF_8));
+            }
+
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : Arrays.copyOf(digest.digest(), 16))
+                hex.append(String.format("%02x", b & 0xFF));
+
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Counts the transitions of every file in the corpus and blocks until all of them have been counted. Files that cannot be read or parsed are reported and skipped.
+     *
+     * @return The transition counts of the whole corpus.
+     * @throws IllegalStateException if training is interrupted or a parser thread fails
+     */
+    public NoteCounts train()
+    {
+        return train(new Deduplicator(getDeduplication()));
+    }
+
+    /**
+     * Counts the transitions of every file in the corpus, like train(), recognizing duplicates with a deduplicator that may already hold the hashes of files counted elsewhere.
+     *
+     * @param deduplicator recognizes the duplicates
+     * @return The transition counts of the whole corpus.
+     * @throws IllegalStateException if training is interrupted or a parser thread fails
+     */
+    public NoteCounts train(Deduplicator deduplicator)
+    {
+        try
+        {
+            return run(null, false, deduplicator, true);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("Corpus training failed: " + e.getCause(), e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Corpus training interrupted");
+        }
+    }
+
+    /**
+     * Counts the transitions of every file in the corpus separately and passes the counts of each file to the listener, from the parser threads, as soon as the file has been counted. Blocks
+     * until every file has been counted. Files that cannot be read or parsed are reported and skipped.
+     *
+     * @param listener receives the counts of each file
+     * @throws IOException if the listener fails; files still waiting are not counted
+     * @throws IllegalStateException if counting is interrupted or a parser thread fails
+     */
+    public void trainEach(Listener listener) throws IOException
+    {
+        trainEach(listener, new Deduplicator(getDeduplication()));
+    }
+
+    /**
+     * Counts the transitions of every file in the corpus separately, like trainEach(Listener), recognizing duplicates with a deduplicator that may already hold the hashes of files counted
+     * before. Duplicates are left out of the counts passed to the listener; a file that is entirely a duplicate is passed with empty counts. The deduplicator tells which hashes each file
+     * contributed and how many duplicates it held.
+     *
+     * @param listener receives the counts of each file
+     * @param deduplicator recognizes the duplicates
+     * @throws IOException if the listener fails; files still waiting are not counted
+     * @throws IllegalStateException if counting is interrupted or a parser thread fails
+     */
+    public void trainEach(Listener listener, Deduplicator deduplicator) throws IOException
+    {
+        try
+        {
+            run(listener, false, deduplicator, true);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IllegalStateException("Corpus training failed: " + e.getCause(), e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Corpus training interrupted");
+        }
+    }
+
+    /**
+     * Counts the transitions of every MIDI file in the corpus separately, archive entries included, and passes the counts of each to the listener from the parser thread that counted it,
+     * with the file or archive holding it. Unlike trainEach(), the counts of a whole archive are never gathered, so each parser thread holds the counts of one MIDI file at a time however
+     * large the archives. Duplicates, and files that cannot be read or parsed, are reported and never passed. Blocks until every file has been counted.
+     *
+     * @param listener receives the counts of each MIDI file
+     * @throws IOException if the listener fails; files still waiting are not counted
+     * @throws IllegalStateException if counting is interrupted or a parser thread fails
+     */
+    public void trainEntries(Listener listener) throws IOException
+    {
+        try
+        {
+            run(listener, true, new Deduplicator(getDeduplication()), true);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IllegalStateException("Corpus training failed: " + e.getCause(), e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Corpus training interrupted");
+        }
+    }
+
+    /**
+     * Records the hashes of every MIDI file in the corpus in a deduplicator without counting any notes, e.g. to find the files another part of the corpus holds too. Files are only read,
+     * unless the mode is Deduplicator.NOTES, where they are parsed as well; duplicates are hashed once. Blocks until every file has been hashed.
+     *
+     * @param deduplicator receives the hashes, see Deduplicator.getHashes()
+     * @throws IllegalStateException if hashing is interrupted or a parser thread fails
+     */
+    public void hash(Deduplicator deduplicator)
+    {
+        try
+        {
+            run(null, false, deduplicator, false);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("Corpus hashing failed: " + e.getCause(), e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Corpus hashing interrupted");
+        }
+    }
+
+    /**
+     * Runs the reader and parser stages on a new pool.
+     *
+     * @param listener receives the counts of each file, or null to count the whole corpus into shards that are then reduced
+     * @param entries true to pass the counts of each MIDI file to the listener, rather than those of each file or archive
+     * @param deduplicator recognizes the duplicates; its report is printed once the corpus has been counted if any were found
+     * @param count false to only record the hashes of the files in the deduplicator
+     * @return The counts of the whole corpus, or null when counting file by file or only hashing.
+     */
+    private NoteCounts run(final Listener listener, final boolean entries, final Deduplicator deduplicator, final boolean count) throws ExecutionException, InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "corpus-trainer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final BlockingQueue<Loaded> queue = new ArrayBlockingQueue<Loaded>(threads * QUEUE_PER_THREAD);
+        final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(threads * (QUEUE_PER_THREAD + 1));
+        final List<File> known;
+        final List<Integer> knownTransposes;
+        final CorpusWalker walking;
+
+        synchronized (this)
+        {
+            known = new ArrayList<File>(files);
+            knownTransposes = new ArrayList<Integer>(transposes);
+            walking = unwalked;
+            this.deduplicator = deduplicator;
+        }
+
+        ArrayList<Future<NoteCounts>> shards = new ArrayList<Future<NoteCounts>>();
+
+        try
+        {
+            pool.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws InterruptedException
+                {
+                    read(known, knownTransposes, walking, queue, free, listener != null && !entries);
+                    return null;
+                }
+            });
+
+            for (int t = 0; t < threads; ++t)
+            {
+                final int parser = t;
+
+                shards.add(pool.submit(new Callable<NoteCounts>()
+                {
+                    @Override
+                    public NoteCounts call() throws InterruptedException, IOException
+                    {
+                        return parse(parser, queue, free, listener, deduplicator, count);
+                    }
+                }));
+            }
+
+            ArrayList<NoteCounts> counts = new ArrayList<NoteCounts>();
+
+            for (Future<NoteCounts> shard : shards)
+                counts.add(shard.get());
+
+            if (count && deduplicator.getDuplicates() > 0)
+                System.out.println(deduplicator.getReport());
+
+            return count && listener == null ? reduce(counts, pool) : null;
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Reader stage. Maps every file into memory and loads its pages, or streams the MIDI files out of every archive into pool buffers, in corpus order. Then searches the roots that
+     * have not been searched yet, loading each file on the walker thread that found it, and adds the files found to the corpus. Finally tells each parser thread that the corpus has ended.
+     */
+    private void read(List<File> known, List<Integer> knownTransposes, CorpusWalker walking, final BlockingQueue<Loaded> queue, final BlockingQueue<byte[]> free, final boolean each)
+            throws InterruptedException
+    {
+        // The queue and the MIDI files being parsed never hold more buffers than this
+        while (free.remainingCapacity() > 0)
+            free.put(new byte[ENTRY_BUFFER]);
+
+        try
+        {
+            visit(known, knownTransposes, walking, new CorpusWalker.Visitor()
+            {
+                @Override
+                public void found(File file, int transpose) throws InterruptedException
+                {
+                    load(file, transpose, queue, free, each);
+                }
+            });
+        }
+        finally
+        {
+            for (int t = 0; t < threads; ++t)
+                queue.put(END);
+        }
+    }
+
+    /**
+     * Passes every file of the corpus to a visitor in corpus order, without holding the list of files first: the files added or found before, then those found under the roots that
+     * have not been searched yet, as soon as they are found and from the walker thread that found them. The files found are added to the corpus once every root has been searched.
+     *
+     * @param visitor receives every MIDI file and archive of the corpus
+     * @throws InterruptedException if the search is interrupted or the visitor stops it
+     */
+    public void visit(CorpusWalker.Visitor visitor) throws InterruptedException
+    {
+        List<File> known;
+        List<Integer> knownTransposes;
+        CorpusWalker walking;
+
+        synchronized (this)
+        {
+            known = new ArrayList<File>(files);
+            knownTransposes = new ArrayList<Integer>(transposes);
+            walking = unwalked;
+        }
+
+        visit(known, knownTransposes, walking, visitor);
+    }
+
+    private void visit(List<File> known, List<Integer> knownTransposes, CorpusWalker walking, final CorpusWalker.Visitor visitor) throws InterruptedException
+    {
+        for (int i = 0; i < known.size(); ++i)
+            visitor.found(known.get(i), knownTransposes.get(i));
+
+        if (walking.getRoots() > 0)
+        {
+            final ArrayList<File> found = new ArrayList<File>();
+            final ArrayList<Integer> foundTransposes = new ArrayList<Integer>();
+
+            walking.walk(new CorpusWalker.Visitor()
+            {
+                @Override
+                public void found(File file, int transpose) throws InterruptedException
+                {
+                    synchronized (found)
+                    {
+                        found.add(file);
+                        foundTransposes.add(transpose);
+                    }
+
+                    visitor.found(file, transpose);
+                }
+            });
+
+            addWalked(walking, found, foundTransposes);
+        }
+    }
+
+    /**
+     * Queues a MIDI file, or every MIDI file of an archive.
+     */
+    private void load(File midi, int transpose, BlockingQueue<Loaded> queue, BlockingQueue<byte[]> free, boolean each) throws InterruptedException
+    {
+        Source source = new Source(midi, transpose, each ? new NoteCounts[threads] : null);
+
+        if (ArchiveReader.isArchive(midi))
+        {
+            readArchive(source, queue, free);
+            return;
+        }
+
+        try
+        {
+            MappedByteBuffer bytes = MidiScanner.map(midi);
+            bytes.load();
+            queue.put(new Loaded(source, midi.getPath(), bytes, null));
+        }
+        catch (IOException e)
+        {
+            System.out.println(midi + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Searches the roots that have not been searched yet and adds the files found to the corpus.
+     */
+    private void list()
+    {
+        if (unwalked.getRoots() == 0)
+            return;
+
+        final ArrayList<File> found = new ArrayList<File>();
+        final ArrayList<Integer> foundTransposes = new ArrayList<Integer>();
+
+        try
+        {
+            unwalked.walk(new CorpusWalker.Visitor()
+            {
+                @Override
+                public void found(File file, int transpose)
+                {
+                    synchronized (found)
+                    {
+                        found.add(file);
+                        foundTransposes.add(transpose);
+                    }
+                }
+            });
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Corpus search interrupted");
+        }
+
+        addWalked(unwalked, found, foundTransposes);
+    }
+
+    /**
+     * Adds the files found under the roots of a walker to the corpus, unless another search of the same roots already added them.
+     */
+    private synchronized void addWalked(CorpusWalker walked, List<File> found, List<Integer> foundTransposes)
+    {
+        if (walked != unwalked)
+            return;
+
+        files.addAll(found);
+        transposes.addAll(foundTransposes);
+        unwalked = new CorpusWalker(threads);
+    }
+
+    /**
+     * Queues every MIDI file of an archive, then the end of the archive.
+     */
+    private void readArchive(Source source, BlockingQueue<Loaded> queue, BlockingQueue<byte[]> free) throws InterruptedException
+    {
+        try (ArchiveReader archive = new ArchiveReader(source.file))
+        {
+            for (String entry = archive.next(); entry != null; entry = archive.next())
+            {
+                String name = source.file.getPath() + "!" + entry;
+                byte[] buffer = free.take();
+                int length = 0;
+                boolean fits = archive.getSize() <= MAX_ENTRY;
+
+                try
+                {
+                    // One byte more than the entry's size, so its end is found without growing the buffer
+                    if (fits && archive.getSize() >= buffer.length)
+                        buffer = new byte[(int) archive.getSize() + 1];
+
+                    while (fits)
+                    {
+                        if (length == buffer.length)
+                        {
+                            fits = length < MAX_ENTRY;
+                            buffer = fits ? Arrays.copyOf(buffer, Math.min(length * 2, MAX_ENTRY)) : buffer;
+                            continue;
+                        }
+
+                        int read = archive.read(buffer, length, buffer.length - length);
+
+                        if (read < 0)
+                            break;
+
+                        length += read;
+                    }
+                }
+                catch (IOException e)
+                {
+                    free.put(buffer);
+                    throw e;
+                }
+
+                if (!fits)
+                {
+                    free.put(buffer);
+                    System.out.println(name + ": larger than " + MAX_ENTRY + " bytes, skipped");
+                    continue;
+                }
+
+                source.references.incrementAndGet();
+                queue.put(new Loaded(source, name, ByteBuffer.wrap(buffer, 0, length), buffer));
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println(source.file + ": " + e.toString());
+            source.failed = true;
+        }
+
+        queue.put(new Loaded(source, source.file.getPath(), null, null));
+    }
+
+    /**
+     * Parser stage. Skips duplicates, then reads the notes of loaded files and counts them into a shard owned by the calling thread, into counts passed to the listener at once, or into
+     * the thread's counts of each file, which are merged and passed to the listener once every MIDI file in it has been counted. Byte-identical files are recognized before they are parsed, files with identical notes before they
+     * are counted.
+     *
+     * @param parser index of the calling thread among the parser threads
+     * @param count false to only hash the files, parsing them only if the deduplicator compares notes
+     */
+    private NoteCounts parse(int parser, BlockingQueue<Loaded> queue, BlockingQueue<byte[]> free, Listener listener, Deduplicator deduplicator, boolean count)
+            throws InterruptedException, IOException
+    {
+        NoteCounts shard = new NoteCounts(maxOrder);
+        MidiScanner scanner = new MidiScanner();
+
+        for (Loaded loaded = queue.take(); loaded != END; loaded = queue.take())
+        {
+            Source source = loaded.source;
+
+            if (loaded.midi != null)
+            {
+                String path = source.file.getPath();
+                int size = loaded.midi.remaining();
+
+                try
+                {
+                    if (deduplicator.addContent(path, loaded.name, loaded.midi, source.transpose) && (count || deduplicator.getMode() == Deduplicator.NOTES))
+                    {
+                        scanner.scan(loaded.midi);
+
+                        if (deduplicator.addNotes(path, loaded.name, size, scanner, source.transpose) && count)
+                        {
+                            if (listener == null)
+                                shard.addScan(scanner, source.transpose);
+                            else if (source.parts == null)
+                            {
+                                NoteCounts entry = new NoteCounts(maxOrder);
+                                entry.addScan(scanner, source.transpose);
+                                listener.counted(source.file, source.transpose, entry);
+                            }
+                            else
+                            {
+                                // Only this thread writes its part, and the atomic release of its reference publishes it to the thread merging the parts
+                                if (source.parts[parser] == null)
+                                    source.parts[parser] = new NoteCounts(maxOrder);
+
+                                source.parts[parser].addScan(scanner, source.transpose);
+                            }
+                        }
+                    }
+                }
+                catch (InvalidMidiDataException e)
+                {
+                    reject(loaded, e);
+                }
+                catch (RuntimeException e)
+                {
+                    reject(loaded, e);
+                }
+                finally
+                {
+                    if (loaded.buffer != null)
+                        free.put(loaded.buffer);
+                }
+            }
+
+            if (source.references.decrementAndGet() == 0 && source.parts != null)
+            {
+                synchronized (source)
+                {
+                    if (!source.failed)
+                        listener.counted(source.file, source.transpose, merge(source.parts));
+                }
+            }
+        }
+
+        return shard;
+    }
+
+    /**
+     * Adds the counts of every parser thread to the largest of them, which has the fewest contexts to add.
+     *
+     * @return The sum of the counts, empty counts if no thread counted anything
+     */
+    private NoteCounts merge(NoteCounts[] parts)
+    {
+        NoteCounts merged = null;
+
+        for (NoteCounts part : parts)
+        {
+            if (part != null && (merged == null || part.getContexts() > merged.getContexts()))
+                merged = part;
+        }
+
+        if (merged == null)
+            return new NoteCounts(maxOrder);
+
+        for (NoteCounts part : parts)
+        {
+            if (part != null && part != merged)
+                merged.add(part);
+        }
+
+        return merged;
+    }
+
+    /**
+     * Reports a MIDI file that could not be parsed. A file on its own is left out of the listener's files; an archive entry is only left out of its archive's counts.
+     */
+    private static void reject(Loaded loaded, Exception e)
+    {
+        System.out.println(loaded.name + ": " + e.toString());
+
+        if (loaded.buffer == null)
+        {
+            synchronized (loaded.source)
+            {
+                loaded.source.failed = true;
+            }
+        }
+    }
+
+    /**
+     * Merges shards pairwise, each level of the tree on the pool, until one set of counts remains.
+     */
+    private static NoteCounts reduce(List<NoteCounts> shards, ExecutorService pool) throws InterruptedException, ExecutionException
+    {
+        ArrayList<NoteCounts> level = new ArrayList<NoteCounts>(shards);
+
+        while (level.size() > 1)
+        {
+            int half = (level.size() + 1) / 2;
+            ArrayList<Future<NoteCounts>> merges = new ArrayList<Future<NoteCounts>>();
+
+            for (int i = 0; i + half < level.size(); ++i)
+            {
+                final NoteCounts left = level.get(i);
+                final NoteCounts right = level.get(i + half);
+
+                merges.add(pool.submit(new Callable<NoteCounts>()
+                {
+                    @Override
+                    public NoteCounts call()
+                    {
+                        left.add(right);
+                        return left;
+                    }
+                }));
+            }
+
+            ArrayList<NoteCounts> next = new ArrayList<NoteCounts>(half);
+
+            for (int i = 0; i < half; ++i)
+                next.add(i < merges.size() ? merges.get(i).get() : level.get(i));
+
+            level = next;
+        }
+
+        return level.get(0);
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the MIDI files and archives of MIDI files under a set of corpus roots on several threads.<br>
+ * Every directory is listed by its own task, so on slow or network-mounted file systems the listings of sibling directories overlap instead of running one after another. Each file is
+ * passed to the visitor as soon as it is found, from the thread that found it. Files count as MIDI files when they start with an MThd header, whatever their name; zip and tar archives
+ * are recognized by name. Symbolic links are not followed, so links cannot make the walk loop.
+ *
+ * @author Harry Allen
+ */
+public class CorpusWalker
+{
+
+    private final int                threads;       // Number of threads listing directories
+    private final ArrayList<File>    roots;         // Directories walked
+    private final ArrayList<Integer> transposes;    // Half steps added to the notes of the files under each root
+
+    /**
+     * Receives the files found.
+     */
+    public interface Visitor
+    {
+        /**
+         * Called on a walker thread for every MIDI file or archive found.
+         *
+         * @param file the file found
+         * @param transpose number of half steps added to the notes of the files under its root
+         * @throws InterruptedException to stop walking
+         */
+        void found(File file, int transpose) throws InterruptedException;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threads number of threads listing directories, values below 1 use one thread per available core
+     */
+    public CorpusWalker(int threads)
+    {
+        if (threads < 1)
+            threads = Runtime.getRuntime().availableProcessors();
+
+        this.threads = threads;
+        roots = new ArrayList<File>();
+        transposes = new ArrayList<Integer>();
+    }
+
+    /**
+     * Adds a directory to walk.
+     *
+     * @param root the directory, searched with all of its subdirectories
+     * @param transpose number of half steps added to the notes of the files under the directory
+     */
+    public void addRoot(File root, int transpose)
+    {
+        roots.add(root);
+        transposes.add(transpose);
+    }
+
+    /**
+     * @return The number of roots
+     */
+    public int getRoots()
+    {
+        return roots.size();
+    }
+
+    /**
+     * @param index index of the root in the order roots were added
+     * @return The root
+     */
+    public File getRoot(int index)
+    {
+        return roots.get(index);
+    }
+
+    /**
+     * Walks every root and blocks until every directory under them has been listed. Roots that do not exist are skipped; directories that cannot be listed are reported and skipped.
+     *
+     * @param visitor receives every MIDI file and archive found
+     * @throws InterruptedException if walking is interrupted or the visitor stops it
+     */
+    public void walk(final Visitor visitor) throws InterruptedException
+    {
+        final ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "corpus-walker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final AtomicInteger pending = new AtomicInteger(roots.size());
+        final Object done = new Object();
+        final InterruptedException[] stopped = new InterruptedException[1];
+
+        try
+        {
+            for (int i = 0; i < roots.size(); ++i)
+            {
+                if (roots.get(i).isDirectory())
+                    submit(pool, roots.get(i).toPath(), transposes.get(i), visitor, pending, done, stopped);
+                else
+                    pending.decrementAndGet();
+            }
+
+            synchronized (done)
+            {
+                while (pending.get() > 0 && stopped[0] == null)
+                    done.wait();
+            }
+
+            if (stopped[0] != null)
+                throw stopped[0];
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @param file a file
+     * @return True if the file starts with the header chunk of a Standard MIDI File
+     */
+    public static boolean isMidi(Path file)
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            return channel.read(header) == 4 && header.getInt(0) == MidiScanner.MTHD;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Lists a directory on the pool. Subdirectories are submitted as tasks of their own, and the walk is done once no task is pending.
+     */
+    private void submit(final ExecutorService pool, final Path directory, final int transpose, final Visitor visitor, final AtomicInteger pending, final Object done,
+            final InterruptedException[] stopped)
+    {
+        pool.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    list(directory);
+                }
+                catch (InterruptedException e)
+                {
+                    synchronized (done)
+                    {
+                        stopped[0] = e;
+                        done.notifyAll();
+                    }
+                }
+                finally
+                {
+                    if (pending.decrementAndGet() == 0)
+                    {
+                        synchronized (done)
+                        {
+                            done.notifyAll();
+                        }
+                    }
+                }
+            }
+
+            private void list(Path directory) throws InterruptedException
+            {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory))
+                {
+                    for (Path entry : entries)
+                    {
+                        BasicFileAttributes attributes;
+
+                        try
+                        {
+                            attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        }
+                        catch (IOException e)
+                        {
+                            System.out.println("Unable to read " + entry + ": " + e.toString());
+                            continue;
+                        }
+
+                        if (attributes.isDirectory())
+                        {
+                            pending.incrementAndGet();
+                            submit(pool, entry, transpose, visitor, pending, done, stopped);
+                        }
+                        else if (attributes.isRegularFile() && (ArchiveReader.isArchive(entry.toFile()) || isMidi(entry)))
+                            visitor.found(entry.toFile(), transpose);
+
+                        if (Thread.interrupted())
+                            throw new InterruptedException();
+                    }
+                }
+                catch (IOException e)
+                {
+                    System.out.println("Unable to list " + directory + ": " + e.toString());
+                }
+            }
+        });
+    }
+}
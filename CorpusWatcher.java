@@ -0,0 +1,179 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directories of a corpus and runs a task once files in them have been created, deleted or modified.<br>
+ * Changes are collected until the directories have been quiet for a while, so copying many files into the corpus triggers a single refresh. Subdirectories are watched as well,
+ * including those created while watching. Directories that do not exist are skipped.
+ * The watcher runs on a daemon thread.
+ *
+ * @author Harry Allen
+ */
+public class CorpusWatcher
+{
+
+    private final List<File> directories;   // Directories watched
+    private final long       quiet;         // Time without changes before the task runs, in milliseconds
+    private final Runnable   task;          // Task run after changes
+    private WatchService     service;       // Service reporting the changes, null when not watching
+    private Thread           thread;        // Thread waiting for changes
+
+    /**
+     * Constructor.
+     *
+     * @param directories directories to watch
+     * @param quiet time without changes before the task runs, in milliseconds
+     * @param task task run after changes, on the watcher's thread
+     */
+    public CorpusWatcher(List<File> directories, long quiet, Runnable task)
+    {
+        this.directories = directories;
+        this.quiet = quiet;
+        this.task = task;
+    }
+
+    /**
+     * Starts watching. Does nothing if the watcher has already started.
+     *
+     * @throws IOException if the directories could not be watched
+     */
+    public synchronized void start() throws IOException
+    {
+        if (service != null)
+            return;
+
+        service = FileSystems.getDefault().newWatchService();
+
+        for (File dir : directories)
+        {
+            if (dir.isDirectory())
+                register(service, dir.toPath());
+        }
+
+        final WatchService watching = service;
+
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                watch(watching);
+            }
+        }, "corpus-watcher");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching.
+     */
+    public synchronized void stop()
+    {
+        if (service == null)
+            return;
+
+        try
+        {
+            service.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to stop watching the corpus: " + e.toString());
+        }
+
+        service = null;
+        thread = null;
+    }
+
+    /**
+     * Waits for changes until the service is closed.
+     */
+    private void watch(WatchService watching)
+    {
+        try
+        {
+            while (true)
+            {
+                drain(watching, watching.take());
+
+                // Wait for the directories to settle before running the task
+                for (WatchKey key = watching.poll(quiet, TimeUnit.MILLISECONDS); key != null; key = watching.poll(quiet, TimeUnit.MILLISECONDS))
+                    drain(watching, key);
+
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    System.out.println("Corpus refresh failed: " + e.toString());
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            // Stopped
+        }
+    }
+
+    /**
+     * Discards the events of a key, starting to watch the directories created, and makes it report further changes.
+     */
+    private static void drain(WatchService watching, WatchKey key)
+    {
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+            {
+                Path created = ((Path) key.watchable()).resolve((Path) event.context());
+
+                try
+                {
+                    if (Files.isDirectory(created, LinkOption.NOFOLLOW_LINKS))
+                        register(watching, created);
+                }
+                catch (IOException e)
+                {
+                    System.out.println("Unable to watch " + created + ": " + e.toString());
+                }
+            }
+        }
+
+        key.reset();
+    }
+
+    /**
+     * Watches a directory and all of its subdirectories.
+     */
+    private static void register(final WatchService watching, Path directory) throws IOException
+    {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException
+            {
+                dir.register(watching, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Count-min sketch of non-negative counts keyed by longs, taking the same memory however many keys are counted.<br>
+ * The counters form depth rows of width cells; every key is hashed to one cell of each row and its count is estimated by the smallest of its cells. Counts are added with conservative
+ * update: only the cells below the new estimate are raised, to it, which leaves the guarantees below intact while reducing the overestimates of rare keys. With N the total of the counts
+ * added, an estimate is never below the true count and exceeds it by more than e / width * N with probability at most e^-depth. A key never counted is estimated at 0 unless every one
+ * of its cells is shared with other keys, which happens with a probability of about getLoad()^depth. Counters are ints that stop at Integer.MAX_VALUE. Instances are not thread-safe.
+ *
+ * @author Harry Allen
+ */
+public class CountMinSketch
+{
+
+    private final int   width;      // Cells per row, a power of two
+    private final int   depth;      // Rows, one cell of each per key
+    private final int[] cells;      // cells[row * width + column]
+    private long        total;      // Sum of the counts added
+
+    /**
+     * Constructor.
+     *
+     * @param width cells per row, a power of two; the estimates exceed the true counts by at most e / width of the total counted, with probability 1 - e^-depth
+     * @param depth rows (1 - 32)
+     */
+    public CountMinSketch(int width, int depth)
+    {
+        if (width < 1 || Integer.bitCount(width) != 1)
+            throw new IllegalArgumentException("Width must be a power of two");
+
+        if (depth < 1 || depth > 32)
+            throw new IllegalArgumentException("Depth must be between 1 and 32");
+
+        if ((long) width * depth > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Sketch is too large");
+
+        this.width = width;
+        this.depth = depth;
+        cells = new int[width * depth];
+    }
+
+    /**
+     * @param bytes largest memory the counters may take
+     * @param depth rows (1 - 32)
+     * @return The widest sketch of that depth whose counters fit in the memory, at least 16 cells wide.
+     */
+    public static CountMinSketch ofSize(long bytes, int depth)
+    {
+        int width = 16;
+
+        while ((long) width * 2 * depth * 4 <= bytes && (long) width * 2 * depth <= Integer.MAX_VALUE)
+            width *= 2;
+
+        return new CountMinSketch(width, depth);
+    }
+
+    /**
+     * @return The number of cells per row
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return The number of rows
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * @return The number of bytes taken by the counters
+     */
+    public long getBytes()
+    {
+        return cells.length * 4L;
+    }
+
+    /**
+     * @return The sum of the counts added
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * @return The error factor e / width: an estimate exceeds the true count by more than this times getTotal() with probability at most getDelta()
+     */
+    public double getEpsilon()
+    {
+        return Math.E / width;
+    }
+
+    /**
+     * @return The probability e^-depth that an estimate exceeds the true count by more than getEpsilon() times getTotal()
+     */
+    public double getDelta()
+    {
+        return Math.exp(-depth);
+    }
+
+    /**
+     * @return The fraction of cells that are not 0
+     */
+    public double getLoad()
+    {
+        long used = 0;
+
+        for (int cell : cells)
+        {
+            if (cell != 0)
+                ++used;
+        }
+
+        return (double) used / cells.length;
+    }
+
+    /**
+     * Adds a count to a key with conservative update.
+     *
+     * @param key the key
+     * @param count count to add, at least 0
+     * @return The estimate of the key before the count was added
+     */
+    public long add(long key, long count)
+    {
+        if (count < 0)
+            throw new IllegalArgumentException("Counts cannot be removed from a sketch");
+
+        long before = estimate(key);
+        int after = (int) Math.min(Integer.MAX_VALUE, before + count);
+        long hash = mix(key);
+
+        for (int row = 0; row < depth; ++row)
+        {
+            int cell = getCell(hash, row);
+
+            if (cells[cell] < after)
+                cells[cell] = after;
+        }
+
+        total += count;
+        return before;
+    }
+
+    /**
+     * @param key the key
+     * @return The estimated count of the key, never below the sum of the counts added to it unless a counter overflowed
+     */
+    public long estimate(long key)
+    {
+        long hash = mix(key);
+        int smallest = Integer.MAX_VALUE;
+
+        for (int row = 0; row < depth; ++row)
+            smallest = Math.min(smallest, cells[getCell(hash, row)]);
+
+        return smallest;
+    }
+
+    /**
+     * Chooses the cell of a hashed key in a row by double hashing, the row-th of a sequence of cells spaced by the odd upper half of the hash.
+     */
+    private int getCell(long hash, int row)
+    {
+        int column = (int) hash + row * ((int) (hash >>> 32) | 1);
+        return row * width + (column & (width - 1));
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreading every bit of the value over the result.
+     */
+    private static long mix(long value)
+    {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+}
@@ -0,0 +1,332 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Recognizes MIDI files that were already counted, so that copies of the same music collected from several sources are counted once.<br>
+ * Every MIDI file is identified by a 64-bit hash of its bytes, taken before it is parsed; optionally a second hash of its notes, taken after parsing, also catches files that differ only in
+ * their meta events. Both hashes include the transposition of the file, so a copy is only skipped when counting it would add exactly the same counts again, whichever copy is seen
+ * first. The chance of two different files sharing a hash is about n^2 / 2^65 for n files. Instances are shared by the parser threads of a CorpusTrainer and keep a report of what was
+ * skipped.
+ *
+ * @author Harry Allen
+ */
+public class Deduplicator
+{
+
+    public static final int   NONE     = 0;                     // Every file is counted
+    public static final int   CONTENT  = 1;                     // Byte-identical files are counted once
+    public static final int   NOTES    = 2;                     // Byte-identical files and files with identical notes are counted once
+
+    private static final long MULTIPLY = 0x9E3779B97F4A7C15L;   // Odd constant mixing each word into the hash
+    private static final long NOTE_TAG = 0x6E6F746573L;         // Separates note hashes from content hashes
+    private static final int  EXAMPLES = 10;                    // Duplicates named in the report
+
+    private final int                                mode;          // NONE, CONTENT or NOTES
+    private final HashMap<Long, String>              first;         // Name of the first file seen with each hash
+    private final HashMap<String, ArrayList<Long>>   kept;          // Hashes first seen in each file or archive of the corpus
+    private final HashMap<String, ArrayList<Long>>   skipped;       // Hashes of the duplicates found in each file or archive of the corpus
+    private final ArrayList<String>                  examples;      // First duplicates found, with the file they copy
+    private long                                     files;         // MIDI files checked
+    private long                                     copies;        // Byte-identical files skipped
+    private long                                     noteCopies;    // Files with identical notes skipped
+    private long                                     bytes;         // Bytes of the files skipped
+
+    /**
+     * Constructor.
+     *
+     * @param mode NONE, CONTENT or NOTES
+     */
+    public Deduplicator(int mode)
+    {
+        if (mode < NONE || mode > NOTES)
+            throw new IllegalArgumentException("Unknown deduplication mode " + mode);
+
+        this.mode = mode;
+        first = new HashMap<Long, String>();
+        kept = new HashMap<String, ArrayList<Long>>();
+        skipped = new HashMap<String, ArrayList<Long>>();
+        examples = new ArrayList<String>();
+    }
+
+    /**
+     * @param name none, content or notes, in any case
+     * @return The mode of the name
+     * @throws IllegalArgumentException if the name is not a mode
+     */
+    public static int parseMode(String name)
+    {
+        switch (name.trim().toLowerCase(Locale.ROOT))
+        {
+            case "none":
+            case "off":
+                return NONE;
+
+            case "content":
+                return CONTENT;
+
+            case "notes":
+                return NOTES;
+
+            default:
+                throw new IllegalArgumentException("Unknown deduplication mode " + name + ", expected none, content or notes");
+        }
+    }
+
+    /**
+     * @return NONE, CONTENT or NOTES
+     */
+    public int getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * @param midi bytes of a MIDI file, from its position to its limit; the position is left alone
+     * @param transpose number of half steps added to the notes of the file
+     * @return The content hash of the file.
+     */
+    public static long hashContent(ByteBuffer midi, int transpose)
+    {
+        ByteBuffer data = midi.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long hash = mix(data.remaining() * MULTIPLY + transpose);
+
+        while (data.remaining() >= 8)
+            hash = (hash ^ mix(data.getLong())) * MULTIPLY;
+
+        long tail = 0;
+
+        for (int shift = 0; data.hasRemaining(); shift += 8)
+            tail |= (data.get() & 0xFFL) << shift;
+
+        return mix(hash ^ mix(tail));
+    }
+
+    /**
+     * @param scanner scanner holding the notes of a file
+     * @param transpose number of half steps added to the notes of the file
+     * @return The hash of the time division, of the pitch, onset and duration of every note, in the order they are counted, and of the first note of every track holding notes.
+     */
+    public static long hashNotes(MidiScanner scanner, int transpose)
+    {
+        long hash = mix(NOTE_TAG ^ (scanner.getDivision() * MULTIPLY + transpose));
+
+        for (int i = 0; i < scanner.getSize(); ++i)
+        {
+            hash = (hash ^ mix(scanner.getPitch(i))) * MULTIPLY;
+            hash = (hash ^ mix(scanner.getOnset(i))) * MULTIPLY;
+            hash = (hash ^ mix(scanner.getDuration(i))) * MULTIPLY;
+        }
+
+        int previous = -1;
+
+        // Where the tracks holding notes start decides which notes the joint chains follow from one to the next
+        for (int t = 0; t < scanner.getTracks(); ++t)
+        {
+            int start = scanner.getTrackStart(t);
+
+            if (start != previous && start < scanner.getSize())
+                hash = (hash ^ mix(start)) * MULTIPLY;
+
+            previous = start;
+        }
+
+        return mix(hash ^ scanner.getSize());
+    }
+
+    /**
+     * Records a hash counted elsewhere, e.g. by an earlier training whose counts are kept, so that copies of it are skipped.
+     *
+     * @param hash content or note hash
+     * @param origin where the hash was counted, for the report
+     */
+    public synchronized void seed(long hash, String origin)
+    {
+        if (!first.containsKey(hash))
+            first.put(hash, origin);
+    }
+
+    /**
+     * Checks the bytes of a MIDI file before it is parsed.
+     *
+     * @param source path of the file or of the archive holding it
+     * @param name name of the file, for the report
+     * @param midi bytes of the file, from its position to its limit
+     * @param transpose number of half steps added to the notes of the file
+     * @return True if the file should be counted, false if a byte-identical file with the same transposition was seen before.
+     */
+    public boolean addContent(String source, String name, ByteBuffer midi, int transpose)
+    {
+        if (mode == NONE)
+            return true;
+
+        int size = midi.remaining();
+        long hash = hashContent(midi, transpose);
+
+        synchronized (this)
+        {
+            ++files;
+
+            if (add(source, name, hash))
+                return true;
+
+            ++copies;
+            bytes += size;
+            return false;
+        }
+    }
+
+    /**
+     * Checks the notes of a MIDI file after it is parsed. Does nothing unless the mode is NOTES.
+     *
+     * @param source path of the file or of the archive holding it
+     * @param name name of the file, for the report
+     * @param size size of the file in bytes
+     * @param scanner scanner holding the notes of the file
+     * @param transpose number of half steps added to the notes of the file
+     * @return True if the file should be counted, false if a file with the same notes and transposition was seen before.
+     */
+    public boolean addNotes(String source, String name, long size, MidiScanner scanner, int transpose)
+    {
+        if (mode != NOTES)
+            return true;
+
+        long hash = hashNotes(scanner, transpose);
+
+        synchronized (this)
+        {
+            if (add(source, name, hash))
+                return true;
+
+            ++noteCopies;
+            bytes += size;
+            return false;
+        }
+    }
+
+    /**
+     * @return Every hash seen or seeded, in no particular order
+     */
+    public synchronized long[] getHashes()
+    {
+        return toArray(new ArrayList<Long>(first.keySet()));
+    }
+
+    /**
+     * @param source path of a file or archive of the corpus
+     * @return The hashes first seen in the file or archive
+     */
+    public synchronized long[] getKept(String source)
+    {
+        return toArray(kept.get(source));
+    }
+
+    /**
+     * @param source path of a file or archive of the corpus
+     * @return The hashes of the duplicates skipped in the file or archive, one per duplicate
+     */
+    public synchronized long[] getSkipped(String source)
+    {
+        return toArray(skipped.get(source));
+    }
+
+    /**
+     * @return The number of MIDI files checked
+     */
+    public synchronized long getFiles()
+    {
+        return files;
+    }
+
+    /**
+     * @return The number of files skipped, byte-identical or with identical notes
+     */
+    public synchronized long getDuplicates()
+    {
+        return copies + noteCopies;
+    }
+
+    /**
+     * @return The number of bytes of the files skipped
+     */
+    public synchronized long getBytesSkipped()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return How many files and bytes were skipped, followed by the first duplicates found and the files they copy.
+     */
+    public synchronized String getReport()
+    {
+        StringBuilder report = new StringBuilder();
+
+        report.append("Skipped ").append(copies + noteCopies).append(" duplicate MIDI files of ").append(files).append(" (").append(copies).append(" byte-identical");
+
+        if (mode == NOTES)
+            report.append(", ").append(noteCopies).append(" with identical notes");
+
+        report.append("), ").append(bytes / 1024).append(" KB not counted");
+
+        for (String example : examples)
+            report.append(System.getProperty("line.separator")).append("    ").append(example);
+
+        if (copies + noteCopies > examples.size())
+            report.append(System.getProperty("line.separator")).append("    ...");
+
+        return report.toString();
+    }
+
+    /**
+     * Records a hash.
+     *
+     * @return True if it had not been seen before
+     */
+    private boolean add(String source, String name, long hash)
+    {
+        String original = first.get(hash);
+
+        if (original == null)
+        {
+            first.put(hash, name);
+
+            if (!kept.containsKey(source))
+                kept.put(source, new ArrayList<Long>());
+
+            kept.get(source).add(hash);
+            return true;
+        }
+
+        if (!skipped.containsKey(source))
+            skipped.put(source, new ArrayList<Long>());
+
+        skipped.get(source).add(hash);
+
+        if (examples.size() < EXAMPLES)
+            examples.add(name + " duplicates " + original);
+
+        return false;
+    }
+
+    private static long[] toArray(ArrayList<Long> hashes)
+    {
+        long[] result = new long[hashes == null ? 0 : hashes.size()];
+
+        for (int i = 0; i < result.length; ++i)
+            result[i] = hashes.get(i);
+
+        return result;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreading every bit of the value over the result.
+     */
+    private static long mix(long value)
+    {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+}
@@ -0,0 +1,462 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Counts a corpus with several TrainingWorker processes and merges their counts.<br>
+ * The files of the corpus are split between the workers by size, largest first, each file going to the worker with the fewest bytes so far, and each worker's part is written to a task
+ * file in a shared directory. Unless deduplication is off, the workers first hash their own parts in parallel, reading every file and archive entry and parsing them too when notes are
+ * compared, and write the hashes to the directory; exchange() then gives every hash to the first worker holding it and tells the others to skip it. Since identical bytes always have
+ * identical notes, each set of duplicates is then counted exactly once, as by the Deduplicator of a single process. Workers started by train() run on this host and deliver their counts
+ * either as shard files in the directory or over a loopback socket. Workers can also be started on other hosts sharing the directory, first with --hashes if deduplicating, then with
+ * --shard once exchange() has rewritten the tasks, with collect() waiting for their shards. The shards are always added together in worker order, and counts are exact integers, so the
+ * merge is associative and deterministic and the result equals the counts of a single CorpusTrainer over the whole corpus.
+ *
+ * @author Harry Allen
+ */
+public class DistributedTrainer
+{
+
+    private static final String TASK   = "task-";    // Start of the name of each task file
+    private static final String HASHES = "hashes-";  // Start of the name of each hash file
+    private static final String SHARD  = "shard-";   // Start of the name of each shard file
+    private static final String LOCK   = "lock";     // Name of the lock file held while training
+    private static final long   POLL   = 500;        // Time between checks on the workers, in milliseconds
+
+    private final CorpusTrainer       corpus;           // Trainer holding the corpus
+    private final File                directory;        // Directory holding the task, hash and shard files
+    private final int                 workers;          // Number of worker processes
+    private boolean                   socket;           // True if local workers send their counts over a socket rather than writing shards
+    private int                       threads;          // Parser threads of each worker, as written to the tasks
+    private List<List<File>>          parts;            // Files of each worker, or null until the tasks are written
+    private List<List<Integer>>       partTransposes;   // Half steps added to the notes of each file of each worker
+
+    /**
+     * Constructor.
+     *
+     * @param corpus trainer holding the corpus; its highest order is counted by every worker
+     * @param directory directory holding the task and shard files, created when the tasks are written
+     * @param workers number of worker processes
+     */
+    public DistributedTrainer(CorpusTrainer corpus, File directory, int workers)
+    {
+        if (workers < 1)
+            throw new IllegalArgumentException("At least one worker is needed");
+
+        this.corpus = corpus;
+        this.directory = directory;
+        this.workers = workers;
+        socket = false;
+    }
+
+    /**
+     * @return The number of worker processes
+     */
+    public int getWorkers()
+    {
+        return workers;
+    }
+
+    /**
+     * @return True if local workers send their counts over a socket rather than writing shards
+     */
+    public boolean isSocket()
+    {
+        return socket;
+    }
+
+    /**
+     * @param socket true to have local workers send their counts over a loopback socket, false to have them write shards to the directory
+     */
+    public void setSocket(boolean socket)
+    {
+        this.socket = socket;
+    }
+
+    /**
+     * @param worker index of a worker
+     * @return The task file of the worker
+     */
+    public File getTask(int worker)
+    {
+        return new File(directory, TASK + worker + ".txt");
+    }
+
+    /**
+     * @param worker index of a worker
+     * @return The file the worker writes the hashes of its part to
+     */
+    public File getHashes(int worker)
+    {
+        return new File(directory, HASHES + worker + ".bin");
+    }
+
+    /**
+     * @param worker index of a worker
+     * @return The shard file the worker writes its counts to
+     */
+    public File getShard(int worker)
+    {
+        return new File(directory, SHARD + worker + ".bin");
+    }
+
+    /**
+     * Splits the corpus between the workers and writes the task file of each, skipping nothing, and deletes the hashes and shards left from an earlier run.
+     *
+     * @param threads number of parser threads of each worker, values below 1 use one thread per available core of the worker's host
+     * @throws IOException if the directory or a task file could not be written
+     */
+    public void writeTasks(int threads) throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create directory " + directory);
+
+        final ArrayList<File> files = new ArrayList<File>();
+        final ArrayList<Long> sizes = new ArrayList<Long>();
+        ArrayList<Integer> order = new ArrayList<Integer>();
+
+        for (int i = 0; i < corpus.getFiles(); ++i)
+        {
+            files.add(corpus.getFile(i).getAbsoluteFile());
+            sizes.add(files.get(i).length());
+            order.add(i);
+        }
+
+        // Largest files first, so the small ones even out the parts
+        Collections.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                int bySize = Long.compare(sizes.get(b), sizes.get(a));
+                return bySize != 0 ? bySize : files.get(a).getPath().compareTo(files.get(b).getPath());
+            }
+        });
+
+        long[] loads = new long[workers];
+        parts = new ArrayList<List<File>>();
+        partTransposes = new ArrayList<List<Integer>>();
+        this.threads = threads;
+
+        for (int w = 0; w < workers; ++w)
+        {
+            parts.add(new ArrayList<File>());
+            partTransposes.add(new ArrayList<Integer>());
+        }
+
+        for (int i : order)
+        {
+            int lightest = 0;
+
+            for (int w = 1; w < workers; ++w)
+            {
+                if (loads[w] < loads[lightest])
+                    lightest = w;
+            }
+
+            loads[lightest] += sizes.get(i);
+            parts.get(lightest).add(files.get(i));
+            partTransposes.get(lightest).add(corpus.getTranspose(i));
+        }
+
+        for (int w = 0; w < workers; ++w)
+        {
+            if (getHashes(w).exists() && !getHashes(w).delete())
+                throw new IOException("Unable to delete " + getHashes(w));
+
+            if (getShard(w).exists() && !getShard(w).delete())
+                throw new IOException("Unable to delete " + getShard(w));
+
+            TrainingWorker.writeTask(getTask(w), corpus.getMaxOrder(), threads, corpus.getDeduplication(), new ArrayList<Long>(), parts.get(w), partTransposes.get(w));
+        }
+    }
+
+    /**
+     * Waits for the hashes of workers started elsewhere with --hashes, then rewrites the task of each worker with the hashes it skips. The tasks must have been written with writeTasks()
+     * by this trainer.
+     *
+     * @param timeout longest time to wait, in milliseconds
+     * @throws IOException if a hash file did not appear within the timeout or could not be read, or a task could not be written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void exchange(long timeout) throws IOException, InterruptedException
+    {
+        long end = System.currentTimeMillis() + timeout;
+
+        for (int w = 0; w < workers; ++w)
+            await(getHashes(w), end);
+
+        exchange();
+    }
+
+    /**
+     * Splits the corpus between the workers, starts every worker as a process on this host, and merges their counts once all of them have finished. The cores of the host are divided
+     * between the workers. Blocks until every worker has finished. A lock file keeps trainings sharing the directory, in this process or others, from running at the same time.
+     *
+     * @return The transition counts of the whole corpus.
+     * @throws IOException if a worker fails or its counts could not be read
+     * @throws InterruptedException if interrupted while waiting for the workers, which are then stopped
+     */
+    public NoteCounts train() throws IOException, InterruptedException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create directory " + directory);
+
+        // File locks are held by the whole process, so threads of this process take turns first
+        synchronized (DistributedTrainer.class)
+        {
+            return lockAndTrain();
+        }
+    }
+
+    /**
+     * Trains while holding the lock file. The lock is only held, never referenced, hence the suppressed warning.
+     */
+    @SuppressWarnings("try")
+    private NoteCounts lockAndTrain() throws IOException, InterruptedException
+    {
+        try (FileChannel lockChannel = FileChannel.open(new File(directory, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = lockChannel.lock())
+        {
+            return run();
+        }
+    }
+
+    /**
+     * Writes the tasks, runs the workers and merges their counts.
+     */
+    private NoteCounts run() throws IOException, InterruptedException
+    {
+        writeTasks(Math.max(1, Runtime.getRuntime().availableProcessors() / workers));
+
+        Process[] processes = new Process[workers];
+        ServerSocket server = null;
+
+        try
+        {
+            if (corpus.getDeduplication() != Deduplicator.NONE)
+            {
+                for (int w = 0; w < workers; ++w)
+                    processes[w] = start(w, "--hashes", getHashes(w).getPath());
+
+                for (int w = 0; w < workers; ++w)
+                    check(w, processes[w].waitFor());
+
+                exchange();
+            }
+
+            if (socket)
+            {
+                server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress());
+                server.setSoTimeout((int) POLL);
+            }
+
+            for (int w = 0; w < workers; ++w)
+            {
+                if (server != null)
+                    processes[w] = start(w, "--send", server.getInetAddress().getHostAddress() + ":" + server.getLocalPort(), "--worker", Integer.toString(w));
+                else
+                    processes[w] = start(w, "--shard", getShard(w).getPath());
+            }
+
+            if (server != null)
+                return merge(receive(server, processes));
+
+            for (int w = 0; w < workers; ++w)
+                check(w, processes[w].waitFor());
+
+            return merge();
+        }
+        finally
+        {
+            for (Process process : processes)
+            {
+                if (process != null)
+                    process.destroy();
+            }
+
+            if (server != null)
+                server.close();
+        }
+    }
+
+    /**
+     * Waits for the shards of workers started elsewhere, e.g. on other hosts sharing the directory, then merges them. The tasks must have been written with writeTasks(), and rewritten
+     * with exchange() unless deduplication is off.
+     *
+     * @param timeout longest time to wait, in milliseconds
+     * @return The transition counts of the whole corpus.
+     * @throws IOException if a shard did not appear within the timeout or could not be read
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public NoteCounts collect(long timeout) throws IOException, InterruptedException
+    {
+        long end = System.currentTimeMillis() + timeout;
+
+        for (int w = 0; w < workers; ++w)
+            await(getShard(w), end);
+
+        return merge();
+    }
+
+    /**
+     * Adds the shards of every worker together, in worker order.
+     *
+     * @return The transition counts of the whole corpus.
+     * @throws IOException if a shard is missing or could not be read
+     */
+    public NoteCounts merge() throws IOException
+    {
+        NoteCounts[] shards = new NoteCounts[workers];
+
+        for (int w = 0; w < workers; ++w)
+        {
+            try (FileChannel channel = FileChannel.open(getShard(w).toPath(), StandardOpenOption.READ))
+            {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                shards[w] = NoteCounts.read(buffer);
+            }
+        }
+
+        return merge(shards);
+    }
+
+    private NoteCounts merge(NoteCounts[] shards)
+    {
+        NoteCounts total = new NoteCounts(corpus.getMaxOrder());
+
+        for (NoteCounts shard : shards)
+            total.add(shard);
+
+        return total;
+    }
+
+    /**
+     * Starts a worker on this host with the class path of this process.
+     *
+     * @param options options telling the worker what to deliver and where
+     */
+    private Process start(int worker, String... options) throws IOException
+    {
+        ArrayList<String> command = new ArrayList<String>();
+
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("TrainingWorker");
+        command.add("--task");
+        command.add(getTask(worker).getPath());
+        Collections.addAll(command, options);
+
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /**
+     * Reads the hashes of every worker and rewrites the tasks. A hash found in several workers is counted by the first of them and skipped by the others.
+     */
+    private void exchange() throws IOException
+    {
+        if (parts == null)
+            throw new IllegalStateException("The tasks have not been written");
+
+        HashMap<Long, Integer> owners = new HashMap<Long, Integer>();
+
+        for (int w = 0; w < workers; ++w)
+        {
+            ArrayList<Long> seeds = new ArrayList<Long>();
+
+            // Every hash appears once per worker, so one seen before belongs to an earlier worker
+            for (long hash : TrainingWorker.readHashes(getHashes(w)))
+            {
+                if (owners.containsKey(hash))
+                    seeds.add(hash);
+                else
+                    owners.put(hash, w);
+            }
+
+            TrainingWorker.writeTask(getTask(w), corpus.getMaxOrder(), threads, corpus.getDeduplication(), seeds, parts.get(w), partTransposes.get(w));
+        }
+    }
+
+    /**
+     * Waits for a worker to write a file.
+     *
+     * @param end time to give up at, in milliseconds since the epoch
+     */
+    private static void await(File file, long end) throws IOException, InterruptedException
+    {
+        while (!file.isFile())
+        {
+            if (System.currentTimeMillis() >= end)
+                throw new IOException("Timed out waiting for " + file);
+
+            Thread.sleep(POLL);
+        }
+    }
+
+    /**
+     * Accepts the counts of every worker over the socket. Stops with an error as soon as a worker exits without having sent its counts.
+     */
+    private NoteCounts[] receive(ServerSocket server, Process[] processes) throws IOException, InterruptedException
+    {
+        NoteCounts[] shards = new NoteCounts[workers];
+        int received = 0;
+
+        while (received < workers)
+        {
+            try (Socket connection = server.accept())
+            {
+                DataInputStream in = new DataInputStream(connection.getInputStream());
+                int worker = in.readInt();
+                int length = in.readInt();
+
+                if (worker < 0 || worker >= workers || shards[worker] != null || length < 0)
+                    throw new IOException("Unexpected counts from worker " + worker);
+
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                shards[worker] = NoteCounts.read(ByteBuffer.wrap(bytes));
+                ++received;
+            }
+            catch (SocketTimeoutException e)
+            {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+
+                for (int w = 0; w < workers; ++w)
+                {
+                    if (shards[w] == null && !processes[w].isAlive())
+                    {
+                        check(w, processes[w].exitValue());
+                        throw new IOException("Training worker " + w + " exited without sending its counts");
+                    }
+                }
+            }
+        }
+
+        for (int w = 0; w < workers; ++w)
+            check(w, processes[w].waitFor());
+
+        return shards;
+    }
+
+    private static void check(int worker, int status) throws IOException
+    {
+        if (status != 0)
+            throw new IOException("Training worker " + worker + " failed with status " + status);
+    }
+}
@@ -0,0 +1,185 @@
+import java.util.ArrayList;
+
+/**
+ * Describes a single piece to be produced by the BatchGenerator: the L-System to expand (either one of the presets in LSystem or a custom grammar), the number of iterations, and the musical
+ * settings handed to the ScoreGenerator.
+ *
+ * @author Harry Allen
+ */
+public class GenerationJob
+{
+
+    private String            name;         // Base name of the output file
+    private int               preset;       // Index of the preset L-System, or -1 when a custom grammar is used
+    private ArrayList<String> alphabet;     // Custom alphabet
+    private String            axiom;        // Custom axiom
+    private ArrayList<String> rules;        // Custom production rules, one per symbol of the alphabet
+    private int               iterations;   // Number of times the L-System is expanded
+    private int               key;          // Key signature (1 - 12)
+    private int               tempo;        // Tempo in BPM
+    private int               order;        // Markov chain order; 0 maps the production directly onto the score
+    private long              seed;         // Seed for every random decision made while generating
+    private boolean           seeded;       // Whether a seed has been set for this job
+
+    /**
+     * Constructor for a job using one of the preset L-Systems.
+     *
+     * @param name base name of the output file
+     * @param preset index of the preset L-System (0 based)
+     * @param iterations number of times the L-System is expanded
+     */
+    public GenerationJob(String name, int preset, int iterations)
+    {
+        this.name = name;
+        this.preset = preset;
+        this.iterations = iterations;
+        alphabet = null;
+        axiom = null;
+        rules = null;
+        key = 1;
+        tempo = 120;
+        order = 0;
+        seed = 0;
+        seeded = false;
+    }
+
+    /**
+     * Constructor for a job using a custom grammar.
+     *
+     * @param name base name of the output file
+     * @param alphabet alphabet of the L-System
+     * @param axiom axiom of the L-System
+     * @param rules production rules, one per symbol of the alphabet
+     * @param iterations number of times the L-System is expanded
+     */
+    public GenerationJob(String name, ArrayList<String> alphabet, String axiom, ArrayList<String> rules, int iterations)
+    {
+        this(name, -1, iterations);
+        this.alphabet = alphabet;
+        this.axiom = axiom;
+        this.rules = rules;
+    }
+
+    /**
+     * @return Base name of the output file
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return Index of the preset L-System, or -1 when a custom grammar is used
+     */
+    public int getPreset()
+    {
+        return preset;
+    }
+
+    /**
+     * @return Number of times the L-System is expanded
+     */
+    public int getIterations()
+    {
+        return iterations;
+    }
+
+    /**
+     * @return Key signature of the piece
+     */
+    public int getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return Tempo of the piece
+     */
+    public int getTempo()
+    {
+        return tempo;
+    }
+
+    /**
+     * @return Order of the Markov chain, 0 when the production is mapped directly onto the score
+     */
+    public int getOrder()
+    {
+        return order;
+    }
+
+    /**
+     * @return Seed for the random decisions made while generating
+     */
+    public long getSeed()
+    {
+        return seed;
+    }
+
+    /**
+     * @return Whether a seed has been set; jobs without a seed are seeded by the BatchGenerator
+     */
+    public boolean isSeeded()
+    {
+        return seeded;
+    }
+
+    /**
+     * @param key the new key signature (1 - 12)
+     */
+    public void setKey(int key)
+    {
+        this.key = key;
+    }
+
+    /**
+     * @param tempo the new tempo
+     */
+    public void setTempo(int tempo)
+    {
+        this.tempo = tempo;
+    }
+
+    /**
+     * @param order the new Markov chain order, 0 to map the production directly onto the score
+     */
+    public void setOrder(int order)
+    {
+        this.order = order;
+    }
+
+    /**
+     * @param seed the new seed
+     */
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+        seeded = true;
+    }
+
+    /**
+     * Configures the L-System passed to the grammar described by this job and expands it.
+     *
+     * @param lsys the L-System to configure
+     * @return The production of the L-System.
+     */
+    public String expand(LSystem lsys)
+    {
+        if (preset >= 0)
+        {
+            lsys.setAlphabetDef(preset);
+            lsys.setAxiomDef(preset);
+            lsys.setRulesDef(preset);
+        }
+
+        else
+        {
+            lsys.setAlphabet(new ArrayList<String>(alphabet));
+            lsys.setAxiom(axiom);
+            lsys.setRules(new ArrayList<String>(rules));
+        }
+
+        lsys.iterate(iterations);
+        return lsys.getTree();
+    }
+}
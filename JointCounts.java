@@ -0,0 +1,437 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Transition counts of Markov chains over joint (pitch, duration) events, of every order up to a maximum.<br>
+ * An event is a note of one pitch class or a rest, together with one of the eight durations used by RhythmGenerator (o, x, t, s, i, q, h, w). Events are numbered pitch class * 8 +
+ * duration, rests taking pitch class 12, so there are 104 of them. Since a context is followed by only a few of the 104 events, counts are stored per observed transition rather than per
+ * context: each transition is a row of a ContextIndex keyed by the packed context and the event that followed it. Like NoteCounts, counts are exact integers that can be added together
+ * and subtracted.
+ *
+ * @author Harry Allen
+ */
+public class JointCounts
+{
+
+    public static final int     PITCHES   = 12;             // Number of pitch classes
+    public static final int     REST      = 12;             // Pitch class of a rest
+    public static final int     DURATIONS = 8;              // Number of durations, from a 128th note to a whole note
+    public static final int     EVENTS    = (PITCHES + 1) * DURATIONS;
+    public static final int     MAX_ORDER = 7;              // Longest context that fits in a packed transition
+
+    private static final int    MAGIC     = 0x4A435453;     // "JCTS", start of serialized counts
+    private static final int    VERSION   = 1;              // Version of the serialized format
+    private static final String NOTES     = "oxtsiqhw";     // Duration of each note, shortest first
+    private static final String RESTS     = "01234567";     // Duration of each rest, shortest first
+
+    private final int          maxOrder;       // Highest order counted
+    private final ContextIndex transitions;    // Row of each transition observed
+    private long[]             counts;         // Number of times each transition was observed
+    private long               events;         // Number of events counted
+
+    /**
+     * Constructor.
+     *
+     * @param maxOrder highest order of Markov chain to count (1 - 7)
+     */
+    public JointCounts(int maxOrder)
+    {
+        if (maxOrder < 1 || maxOrder > MAX_ORDER)
+            throw new IllegalArgumentException("Order must be between 1 and " + MAX_ORDER);
+
+        this.maxOrder = maxOrder;
+        transitions = new ContextIndex(256);
+        counts = new long[256];
+        events = 0;
+    }
+
+    /**
+     * @param pitchClass pitch class of a note (0 - 11), or REST
+     * @param duration duration (0 for a 128th note - 7 for a whole note)
+     * @return The event
+     */
+    public static int getEvent(int pitchClass, int duration)
+    {
+        return pitchClass * DURATIONS + duration;
+    }
+
+    /**
+     * @param event an event
+     * @return The pitch class of the event, or REST
+     */
+    public static int getPitchClass(int event)
+    {
+        return event / DURATIONS;
+    }
+
+    /**
+     * @param event an event
+     * @return The duration of the event (0 for a 128th note - 7 for a whole note)
+     */
+    public static int getDuration(int event)
+    {
+        return event % DURATIONS;
+    }
+
+    /**
+     * @param event an event
+     * @return The duration of the event as used by RhythmGenerator: a letter for a note, a digit for a rest
+     */
+    public static char getDurationChar(int event)
+    {
+        return getPitchClass(event) == REST ? RESTS.charAt(getDuration(event)) : NOTES.charAt(getDuration(event));
+    }
+
+    /**
+     * @param duration a duration as used by RhythmGenerator, a letter for a note or a digit for a rest
+     * @return The duration (0 for a 128th note - 7 for a whole note), or -1 if the character is not a duration
+     */
+    public static int getDuration(char duration)
+    {
+        int d = NOTES.indexOf(duration);
+        return d != -1 ? d : RESTS.indexOf(duration);
+    }
+
+    /**
+     * @param event an event
+     * @param semitones number of half steps to move the pitch class of a note; rests are left alone
+     * @return The moved event
+     */
+    public static int transpose(int event, int semitones)
+    {
+        int pitchClass = getPitchClass(event);
+
+        if (pitchClass == REST)
+            return event;
+
+        int shift = ((semitones % PITCHES) + PITCHES) % PITCHES;
+        return getEvent((pitchClass + shift) % PITCHES, getDuration(event));
+    }
+
+    /**
+     * Packs the most recent events of a history into a context key. The low 4 bits hold the order, followed by 7 bits per event starting with the most recent one.
+     *
+     * @param history events packed 7 bits each, the most recent event in the lowest bits
+     * @param order number of events in the context (1 - 7)
+     * @return The packed context
+     */
+    public static long pack(long history, int order)
+    {
+        return ((history & ((1L << (7 * order)) - 1)) << 4) | order;
+    }
+
+    /**
+     * @param context packed context
+     * @param next event following the context
+     * @return The packed transition: the context with the event following it in the 7 bits above the order
+     */
+    public static long getTransition(long context, int next)
+    {
+        return ((context >>> 4) << 11) | ((long) next << 4) | (context & 0xF);
+    }
+
+    /**
+     * @param transition packed transition
+     * @return The packed context of the transition
+     */
+    public static long getContext(long transition)
+    {
+        return ((transition >>> 11) << 4) | (transition & 0xF);
+    }
+
+    /**
+     * @param transition packed transition
+     * @return The event following the context of the transition
+     */
+    public static int getNext(long transition)
+    {
+        return (int) ((transition >>> 4) & 0x7F);
+    }
+
+    /**
+     * Turns the notes read by a scanner into events. The notes of each track form a melody of their own: of notes starting together only the highest is kept, each note lasts until the
+     * next note of the track starts, and a note released before half of that time has passed is followed by a rest. Lengths are rounded to the nearest duration. Files whose time
+     * division is not in ticks per quarter note produce no events.
+     *
+     * @param scanner scanner holding the notes of a file
+     * @param transpose number of half steps added to every note
+     * @param events receives the events, -1 marking the end of each track; must hold at least 3 * scanner.getSize() entries
+     * @return The number of entries written to events.
+     */
+    public static int getEvents(MidiScanner scanner, int transpose, int[] events)
+    {
+        int division = scanner.getDivision();
+        int shift = ((transpose % PITCHES) + PITCHES) % PITCHES;
+        int size = scanner.getSize();
+        int length = 0;
+
+        if (division <= 0)
+            return 0;
+
+        for (int track = 0; track < scanner.getTracks(); ++track)
+        {
+            int end = track + 1 < scanner.getTracks() ? scanner.getTrackStart(track + 1) : size;
+
+            for (int i = scanner.getTrackStart(track); i < end; )
+            {
+                long onset = scanner.getOnset(i);
+                int highest = i;
+                int next = i + 1;
+
+                // Notes of the track starting together, keeping the highest
+                for (; next < end && scanner.getOnset(next) == onset; ++next)
+                {
+                    if (scanner.getPitch(next) > scanner.getPitch(highest))
+                        highest = next;
+                }
+
+                long sounding = scanner.getDuration(highest);
+                boolean last = next == end;
+                long between = last ? sounding : scanner.getOnset(next) - onset;
+                int pitchClass = (scanner.getPitch(highest) + shift) % PITCHES;
+
+                if (sounding * 2 >= between)
+                    events[length++] = getEvent(pitchClass, quantize(between, division));
+
+                else
+                {
+                    events[length++] = getEvent(pitchClass, quantize(sounding, division));
+                    events[length++] = getEvent(REST, quantize(between - sounding, division));
+                }
+
+                if (last)
+                    events[length++] = -1;
+
+                i = next;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * @return The highest order counted
+     */
+    public int getMaxOrder()
+    {
+        return maxOrder;
+    }
+
+    /**
+     * @return The number of events counted
+     */
+    public long getEvents()
+    {
+        return events;
+    }
+
+    /**
+     * @return The number of transitions observed, of every order
+     */
+    public int getTransitions()
+    {
+        return transitions.size();
+    }
+
+    /**
+     * @param row row of a transition (0 - getTransitions() - 1)
+     * @return The packed transition of the row
+     */
+    public long getTransition(int row)
+    {
+        return transitions.getKey(row);
+    }
+
+    /**
+     * @param row row of a transition
+     * @return The number of times the transition was observed
+     */
+    public long getCount(int row)
+    {
+        return counts[row];
+    }
+
+    /**
+     * Counts every transition of every order in a sequence of events.
+     *
+     * @param sequence events; -1 ends a melody, so no transition is counted across it
+     * @param length number of entries in the sequence
+     */
+    public void addSequence(int[] sequence, int length)
+    {
+        long history = 0;   // Previous events, 7 bits each, the previous event in the lowest bits
+        int known = 0;
+
+        for (int i = 0; i < length; ++i)
+        {
+            int event = sequence[i];
+
+            if (event < 0)
+            {
+                known = 0;
+                continue;
+            }
+
+            for (int order = 1; order <= Math.min(known, maxOrder); ++order)
+            {
+                int row = getOrAddRow(getTransition(pack(history, order), event));
+                ++counts[row];
+            }
+
+            history = (history << 7) | event;
+            ++known;
+            ++events;
+        }
+    }
+
+    /**
+     * Adds every count of another set of counts to this one.
+     *
+     * @param other the counts to add, of the same maximum order
+     */
+    public void add(JointCounts other)
+    {
+        combine(other, 1);
+    }
+
+    /**
+     * Subtracts every count of another set of counts from this one.
+     *
+     * @param other the counts to subtract, of the same maximum order
+     */
+    public void subtract(JointCounts other)
+    {
+        combine(other, -1);
+    }
+
+    /**
+     * @return The chains of every order counted, in the pitch classes of the counts.
+     */
+    public JointModel toModel()
+    {
+        return new JointModel(this);
+    }
+
+    /**
+     * Writes the counts in a compact binary format: a header (magic number, format version, maximum order, number of events, number of transitions) followed by each transition and its
+     * count as big-endian longs.
+     *
+     * @param out the stream to write to, not closed
+     * @throws IOException if the counts could not be written
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        DataOutputStream data = new DataOutputStream(out);
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(maxOrder);
+        data.writeLong(events);
+        data.writeInt(transitions.size());
+
+        for (int row = 0; row < transitions.size(); ++row)
+        {
+            data.writeLong(transitions.getKey(row));
+            data.writeLong(counts[row]);
+        }
+
+        data.flush();
+    }
+
+    /**
+     * Reads counts written by write(). The buffer may be a read-only memory-mapped file; its position is advanced past the counts.
+     *
+     * @param buffer buffer positioned at the start of the counts
+     * @return The counts read.
+     * @throws IOException if the buffer does not hold counts in the current format
+     */
+    public static JointCounts read(ByteBuffer buffer) throws IOException
+    {
+        try
+        {
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("Not a joint count file");
+
+            int version = buffer.getInt();
+
+            if (version != VERSION)
+                throw new IOException("Unsupported joint count format " + version);
+
+            int maxOrder = buffer.getInt();
+
+            if (maxOrder < 1 || maxOrder > MAX_ORDER)
+                throw new IOException("Invalid order " + maxOrder);
+
+            JointCounts result = new JointCounts(maxOrder);
+            result.events = buffer.getLong();
+
+            int rows = buffer.getInt();
+
+            if (rows < 0 || (long) rows * 16 > buffer.remaining())
+                throw new IOException("Joint count file is truncated");
+
+            for (int i = 0; i < rows; ++i)
+            {
+                long key = buffer.getLong();
+                int order = (int) (key & 0xF);
+
+                if (order < 1 || order > maxOrder || getNext(key) >= EVENTS)
+                    throw new IOException("Invalid transition " + Long.toHexString(key));
+
+                int row = result.getOrAddRow(key);
+                result.counts[row] += buffer.getLong();
+            }
+
+            return result;
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IOException("Joint count file is truncated");
+        }
+    }
+
+    /**
+     * Rounds a length in ticks to the nearest duration, on a logarithmic scale, limited to the durations from a 128th note to a whole note.
+     */
+    private static int quantize(long ticks, int division)
+    {
+        // Length in 128th notes: a quarter note is division ticks and 32 128th notes
+        double length = ticks * 32.0 / division;
+
+        if (length <= 1.0)
+            return 0;
+
+        return (int) Math.min(DURATIONS - 1, Math.round(Math.log(length) / Math.log(2.0)));
+    }
+
+    /**
+     * @return The row of the transition, adding a row with a count of zero if it was never observed
+     */
+    private int getOrAddRow(long transition)
+    {
+        int row = transitions.add(transition);
+
+        if (row == counts.length)
+            counts = Arrays.copyOf(counts, counts.length * 2);
+
+        return row;
+    }
+
+    private void combine(JointCounts other, int sign)
+    {
+        if (other.maxOrder != maxOrder)
+            throw new IllegalArgumentException("Counts of different orders cannot be combined");
+
+        for (int theirs = 0; theirs < other.transitions.size(); ++theirs)
+        {
+            int mine = getOrAddRow(other.transitions.getKey(theirs));
+            counts[mine] += sign * other.counts[theirs];
+        }
+
+        events += sign * other.events;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Markov chains over joint (pitch, duration) events of every order up to a maximum, frozen into flat primitive tables with one alias table per observed context.<br>
+ * Each alias table covers only the events that followed its context, so a note and its duration are drawn together with a single random number. Sampling backs off from the longest
+ * context available to shorter ones, like VariableOrderModel. Instances are immutable and may be shared between threads.
+ *
+ * @author Harry Allen
+ */
+public class JointModel
+{
+
+    private final int          maxOrder;   // Highest order of the chains
+    private final ContextIndex contexts;   // Row of each context with at least one transition
+    private final int[]        starts;     // starts[row] to starts[row + 1] - 1: entries of the alias table of each row
+    private final int[]        outcomes;   // Event of each entry
+    private final double[]     cut;        // Alias table cut-offs of each entry
+    private final int[]        alias;      // Alias table outcomes of each entry, relative to the start of its row
+
+    /**
+     * Constructor. Builds the alias table of every context that was followed by at least one event.
+     *
+     * @param counts transition counts of every order
+     */
+    public JointModel(JointCounts counts)
+    {
+        maxOrder = counts.getMaxOrder();
+        contexts = new ContextIndex(counts.getTransitions() / 4);
+
+        int[] rows = new int[counts.getTransitions()];
+        int[] sizes = new int[Math.max(counts.getTransitions(), 1)];
+
+        // Number the contexts and count the events following each
+        for (int t = 0; t < counts.getTransitions(); ++t)
+        {
+            rows[t] = -1;
+
+            if (counts.getCount(t) > 0)
+            {
+                rows[t] = contexts.add(JointCounts.getContext(counts.getTransition(t)));
+                ++sizes[rows[t]];
+            }
+        }
+
+        starts = new int[contexts.size() + 1];
+
+        for (int row = 0; row < contexts.size(); ++row)
+            starts[row + 1] = starts[row] + sizes[row];
+
+        outcomes = new int[starts[contexts.size()]];
+        cut = new double[outcomes.length];
+        alias = new int[outcomes.length];
+
+        double[] weights = new double[outcomes.length];
+        int[] filled = new int[contexts.size()];
+
+        for (int t = 0; t < counts.getTransitions(); ++t)
+        {
+            if (rows[t] != -1)
+            {
+                int entry = starts[rows[t]] + filled[rows[t]]++;
+                outcomes[entry] = JointCounts.getNext(counts.getTransition(t));
+                weights[entry] = counts.getCount(t);
+            }
+        }
+
+        for (int row = 0; row < contexts.size(); ++row)
+            AliasTable.build(weights, starts[row], starts[row + 1] - starts[row], cut, alias);
+    }
+
+    /**
+     * @return The highest order of the chains
+     */
+    public int getMaxOrder()
+    {
+        return maxOrder;
+    }
+
+    /**
+     * @return The number of contexts with at least one transition
+     */
+    public int getContexts()
+    {
+        return contexts.size();
+    }
+
+    /**
+     * Randomly chooses the next event from the longest context of the history, up to order events, that has been followed by an event in the analyzed music.
+     *
+     * @param history previous events, the most recent last
+     * @param length number of events in the history
+     * @param order highest order to use; higher values than getMaxOrder() use getMaxOrder()
+     * @param transpose number of half steps added to the notes of the history to reach the pitch classes of the model, and subtracted from the note chosen
+     * @param random source of randomness
+     * @return The next event, or -1 if not even the last event was ever followed by another.
+     */
+    public int sample(int[] history, int length, int order, int transpose, RandomSource random)
+    {
+        int longest = Math.min(Math.min(order, maxOrder), length);
+        long packed = 0;
+
+        for (int i = length - longest; i < length; ++i)
+            packed = (packed << 7) | JointCounts.transpose(history[i], transpose);
+
+        for (int o = longest; o >= 1; --o)
+        {
+            int row = contexts.get(JointCounts.pack(packed, o));
+
+            if (row != -1)
+            {
+                int start = starts[row];
+                int next = AliasTable.sample(cut, alias, start, starts[row + 1] - start, random);
+                return JointCounts.transpose(outcomes[start + next], -transpose);
+            }
+        }
+
+        return -1;
+    }
+}
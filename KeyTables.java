@@ -0,0 +1,185 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed lookup tables for the musical details handled by Score.<br>
+ * Scale degrees, chord tones and closest pitches depend only on the key signature and a handful of small integers, so they are computed once and every query becomes an array lookup. Key
+ * signatures are numbered as in Score: 1 = C, 2 = G, 3 = D, 4 = A, 5 = E, 6 = B, 7 = Gb/F#, 8 = Db, 9 = Ab, 10 = Eb, 11 = Bb, 12 = F.
+ *
+ * @author Harry Allen
+ */
+public final class KeyTables
+{
+
+    public static final int         PITCHES   = 128;                                            // Number of MIDI pitches
+    private static final int[]      TONICS    = { 0, 7, 2, 9, 4, 11, 6, 1, 8, 3, 10, 5 };       // Pitch class of the tonic of each key signature
+    private static final double[]   OFFSETS   = { 1.0, 1.5, 2.0, 2.5, 3.0, 4.0, 4.5, 5.0, 5.5, 6.0, 6.5, 7.0 }; // Scale degree of each half step above the tonic
+    private static final int[]      STEPS     = { 0, 2, 4, 5, 7, 9, 11, 12 };                   // Half steps from the tonic to each scale degree, 1 - 8
+    private static final double[][] DEGREES   = new double[12][12];                             // DEGREES[key - 1][pitch class]: scale degree of the pitch class
+    private static final int[][][]  CHORDS    = new int[12][8][];                               // CHORDS[key - 1][degree - 1]: major triad built on the degree
+
+    private static final ConcurrentHashMap<Long, int[]> CLOSEST = new ConcurrentHashMap<Long, int[]>(); // Closest pitch tables of each pair of bounds
+
+    static
+    {
+        for (int k = 0; k < 12; ++k)
+        {
+            for (int pc = 0; pc < 12; ++pc)
+                DEGREES[k][pc] = OFFSETS[(pc - TONICS[k] + 12) % 12];
+
+            for (int d = 0; d < 8; ++d)
+            {
+                int root = (TONICS[k] + STEPS[d]) % 12;
+                CHORDS[k][d] = new int[] { root, (root + 4) % 12, (root + 7) % 12 };
+            }
+        }
+    }
+
+    private KeyTables()
+    {
+    }
+
+    /**
+     * @param key key signature (1 - 12)
+     * @return Pitch class of the tonic of the key signature
+     */
+    public static int getTonic(int key)
+    {
+        return TONICS[key - 1];
+    }
+
+    /**
+     * @param key key signature (1 - 12)
+     * @param pitch pitch or pitch class
+     * @return Scale degree of the pitch in the key signature, with accidentals represented as numbers between integer scale degrees.
+     */
+    public static double getDegree(int key, int pitch)
+    {
+        return DEGREES[key - 1][((pitch % 12) + 12) % 12];
+    }
+
+    /**
+     * @param key key signature (1 - 12)
+     * @param chordDegree scale degree of the root of the chord (1 - 8)
+     * @return The pitch classes of the major triad on the degree. The array is shared and must not be modified.
+     */
+    public static int[] getChord(int key, int chordDegree)
+    {
+        return CHORDS[key - 1][(chordDegree - 1) % 8];
+    }
+
+    /**
+     * Returns the table of closest pitches for the bounds passed, indexed [pitch * 12 + pitch class]. Tables are built once per pair of bounds and shared.
+     *
+     * @param lowerBound lower boundary for pitch
+     * @param upperBound upper boundary for pitch
+     * @return The closest pitch table. The array is shared and must not be modified.
+     */
+    public static int[] getClosestPitches(int lowerBound, int upperBound)
+    {
+        Long bounds = ((long) lowerBound << 32) | (upperBound & 0xFFFFFFFFL);
+        int[] table = CLOSEST.get(bounds);
+
+        if (table == null)
+        {
+            table = new int[PITCHES * 12];
+
+            for (int pitch = 0; pitch < PITCHES; ++pitch)
+            {
+                for (int next = 0; next < 12; ++next)
+                    table[pitch * 12 + next] = walkClosestPitch(next, pitch, lowerBound, upperBound);
+            }
+
+            int[] existing = CLOSEST.putIfAbsent(bounds, table);
+
+            if (existing != null)
+                table = existing;
+        }
+
+        return table;
+    }
+
+    /**
+     * Finds the closest pitch by walking half steps up and down from the current pitch. Used to fill the closest pitch tables and for pitches outside the MIDI range.
+     *
+     * @param next desired note
+     * @param pitch current pitch
+     * @param lowerBound lower boundary for pitch
+     * @param upperBound upper boundary for pitch
+     * @return Closest pitch matching next.
+     */
+    public static int walkClosestPitch(int next, int pitch, int lowerBound, int upperBound)
+    {
+        int distanceup = 0;
+        int distancedown = 0;
+        int note = pitch % 12;
+        int original = note;
+        int originalpitch = pitch;
+
+        while (note != next)
+        {
+            ++note;
+            ++pitch;
+
+            if (note > 11)
+                note = 0;
+
+            if (pitch > upperBound)
+            {
+                distanceup = 99;
+                break;
+            }
+
+            ++distanceup;
+        }
+
+        note = original;
+        pitch = originalpitch;
+
+        while (note != next)
+        {
+            --note;
+            --pitch;
+
+            if (note < 0)
+                note = 11;
+
+            if (pitch < lowerBound)
+            {
+                distancedown = 99;
+                break;
+            }
+
+            ++distancedown;
+        }
+
+        pitch = originalpitch;
+
+        if (distanceup < distancedown)
+        {
+            while (distanceup > 0)
+            {
+                ++pitch;
+
+                if (pitch > upperBound)
+                    pitch -= 24;
+
+                --distanceup;
+            }
+        }
+
+        else
+        {
+            while (distancedown > 0)
+            {
+                --pitch;
+
+                if (pitch < lowerBound)
+                    pitch += 24;
+
+                --distancedown;
+            }
+        }
+
+        return pitch;
+    }
+}
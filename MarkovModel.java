@@ -0,0 +1,120 @@
+/**
+ * Trained first-order and second-order Markov chains frozen into flat primitive tables.<br>
+ * The probability of each transition is stored in a double[] indexed by context and next note, and every context has a precomputed alias table so that choosing the next note is a constant
+ * time, allocation free operation. Instances are immutable and may be shared between threads.
+ *
+ * @author Harry Allen
+ */
+public class MarkovModel
+{
+
+    public static final int NOTES = 12;
+
+    private final double[]  first;          // first[note * 12 + next]: probability of next following note
+    private final double[]  second;         // second[(prevnote * 12 + note) * 12 + next]: probability of next following prevnote and note
+    private final double[]  firstCut;       // Alias table cut-offs of each first-order context
+    private final int[]     firstAlias;     // Alias table outcomes of each first-order context
+    private final double[]  secondCut;      // Alias table cut-offs of each second-order context
+    private final int[]     secondAlias;    // Alias table outcomes of each second-order context
+
+    /**
+     * Constructor. Normalizes the transition counts passed and builds the alias tables.
+     *
+     * @param firstCounts number of times each note followed each note, indexed [note * 12 + next]
+     * @param secondCounts number of times each note followed each pair of notes, indexed [(prevnote * 12 + note) * 12 + next]
+     */
+    public MarkovModel(double[] firstCounts, double[] secondCounts)
+    {
+        first = normalize(firstCounts);
+        second = normalize(secondCounts);
+        firstCut = new double[first.length];
+        firstAlias = new int[first.length];
+        secondCut = new double[second.length];
+        secondAlias = new int[second.length];
+
+        for (int i = 0; i < first.length; i += NOTES)
+            AliasTable.build(first, i, NOTES, firstCut, firstAlias);
+
+        for (int i = 0; i < second.length; i += NOTES)
+            AliasTable.build(second, i, NOTES, secondCut, secondAlias);
+    }
+
+    /**
+     * @param note note of the probability vector to return
+     * @return A copy of the probability vector for the note accepted as the parameter
+     */
+    public double[] getProbability(int note)
+    {
+        double[] vector = new double[NOTES];
+        System.arraycopy(first, note * NOTES, vector, 0, NOTES);
+        return vector;
+    }
+
+    /**
+     * @param prevnote second to last note recorded in the score
+     * @param note last note recorded in the score
+     * @return A copy of the probability vector based on the previous two notes recorded. If no prevnote has been recorded, will default to first order prob.
+     */
+    public double[] getSecondProb(int prevnote, int note)
+    {
+        if (prevnote == -1)
+            return getProbability(note);
+
+        double[] vector = new double[NOTES];
+        System.arraycopy(second, (prevnote * NOTES + note) * NOTES, vector, 0, NOTES);
+        return vector;
+    }
+
+    /**
+     * Randomly chooses a note based on the first-order probabilities.
+     *
+     * @param note the last note in the score
+     * @param random source of randomness
+     * @return The next note, or -1 if the note was never followed by another in the analyzed music.
+     */
+    public int sampleFirstOrder(int note, RandomSource random)
+    {
+        return AliasTable.sample(firstCut, firstAlias, note * NOTES, NOTES, random);
+    }
+
+    /**
+     * Randomly chooses a note based on the second-order probabilities.
+     *
+     * @param prevnote the second to last note in the score, or -1 to use the first-order probabilities
+     * @param note the last note in the score
+     * @param random source of randomness
+     * @return The next note, or -1 if the pair of notes was never followed by another in the analyzed music.
+     */
+    public int sampleSecondOrder(int prevnote, int note, RandomSource random)
+    {
+        if (prevnote == -1)
+            return sampleFirstOrder(note, random);
+
+        return AliasTable.sample(secondCut, secondAlias, (prevnote * NOTES + note) * NOTES, NOTES, random);
+    }
+
+    /**
+     * @param counts transition counts, NOTES entries per context
+     * @return The counts scaled so that the entries of every context sum to 1, contexts without any counts are left at 0.
+     */
+    private static double[] normalize(double[] counts)
+    {
+        double[] prob = new double[counts.length];
+
+        for (int i = 0; i < counts.length; i += NOTES)
+        {
+            double sum = 0.0;
+
+            for (int j = 0; j < NOTES; ++j)
+                sum += counts[i + j];
+
+            if (sum != 0)
+            {
+                for (int j = 0; j < NOTES; ++j)
+                    prob[i + j] = counts[i + j] / sum;
+            }
+        }
+
+        return prob;
+    }
+}
@@ -26,6 +26,23 @@ public class MidiFile
 
     public static void main(String[] args)
     {
+        if (args.length > 0)
+        {
+            runCommandLine(args);
+            return;
+        }
+
+        MusicAnalyzer.prefetch();                                   // Train the Markov chains in the background while the user builds an L-System
+
+        try
+        {
+            MusicAnalyzer.watch();                                  // Train the chains again when MIDI files are added to the corpus
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to watch the MIDI corpus: " + e.toString());
+        }
+
         Scanner scan = new Scanner(System.in);
         scan.useDelimiter(System.getProperty("line.separator"));
         Player player = new Player();                               // Create a player object to play a Pattern
@@ -240,7 +257,19 @@ public class MidiFile
                             String production = lsys.getTree();							// Retrieve the production
                             System.out.println(production);								// Print the raw production on-screen
 
-                            scoreGen.genScore(production, true, 1);						// Convert the production into a suitable format; store in a Pattern
+                            if (!MusicAnalyzer.isTrained())
+                                System.out.println("Waiting for Markov chain training to finish...");
+
+                            try
+                            {
+                                scoreGen.genScore(production, true, 1);					// Convert the production into a suitable format; store in a Pattern
+                            }
+                            catch (IllegalStateException e)
+                            {
+                                System.out.println(e.getMessage() + ": returning to menu.");
+                                continue;
+                            }
+
                             Pattern pattern = scoreGen.getScore();
                             System.out.println(pattern.toString());
                             player.play(pattern);
@@ -307,7 +336,19 @@ public class MidiFile
                             String production = lsys.getTree();							// Retrieve the production
                             System.out.println(production);								// Print the raw production on-screen
 
-                            scoreGen.genScore(production, true, 2);						// Convert the production into a suitable format; store in a Pattern
+                            if (!MusicAnalyzer.isTrained())
+                                System.out.println("Waiting for Markov chain training to finish...");
+
+                            try
+                            {
+                                scoreGen.genScore(production, true, 2);					// Convert the production into a suitable format; store in a Pattern
+                            }
+                            catch (IllegalStateException e)
+                            {
+                                System.out.println(e.getMessage() + ": returning to menu.");
+                                continue;
+                            }
+
                             Pattern pattern = scoreGen.getScore();
                             System.out.println(pattern.toString());
                             player.play(pattern);
@@ -513,6 +554,7 @@ public class MidiFile
                     }
 
                     scoreGen.setKey(key);
+                    auditionScore(scan, player, scoreGen);
                     break;
 
                 case 7:
@@ -532,6 +574,7 @@ public class MidiFile
                         }
                     }
                     scoreGen.setTempo(t);
+                    auditionScore(scan, player, scoreGen);
                     break;
 
                 // Produce MusicXML from MIDI file
@@ -624,4 +667,362 @@ public class MidiFile
 
         return;
     }
+
+    /**
+     * Offers to play the last generated score in the current key signature and tempo. The score is transposed and re-tempoed rather than generated again.
+     * 
+     * @param scan scanner reading user input
+     * @param player player used to play the score
+     * @param scoreGen generator holding the last generated score
+     */
+    private static void auditionScore(Scanner scan, Player player, ScoreGenerator scoreGen)
+    {
+        if (scoreGen.getScore().getMusicString().trim().isEmpty())
+            return;
+
+        System.out.print("1 to play the last score in the new key and tempo, anything else to return to menu: ");
+
+        while (scan.next().equals("1"))
+        {
+            player.play(scoreGen.getScore(scoreGen.getScoreT().getKeyInt(), scoreGen.getTempo()));
+            System.out.print("1 to play again, anything else to return to menu: ");
+        }
+    }
+
+    /**
+     * Runs a single generation, or a batch of generations, described entirely by command-line arguments. Nothing is read from standard input, no Player is created unless the piece is to be
+     * played, and the MIDI corpus is only analyzed when a Markov chain is requested.<br>
+     * Exits with status 1 if the arguments are invalid or a piece could not be written.
+     * 
+     * @param args command-line arguments
+     */
+    private static void runCommandLine(String[] args)
+    {
+        ArrayList<String> jobArgs = new ArrayList<String>();
+        String jobs = null;
+        String outdir = ".";
+        int threads = 0;
+        boolean play = true;
+        boolean print = false;
+
+        try
+        {
+            for (int i = 0; i < args.length; ++i)
+            {
+                switch (args[i])
+                {
+                    case "--help":
+                        printUsage();
+                        return;
+
+                    case "--jobs":
+                        jobs = getValue(args, ++i);
+                        break;
+
+                    case "--threads":
+                        threads = getInt(args, ++i);
+                        break;
+
+                    case "--outdir":
+                        outdir = getValue(args, ++i);
+                        break;
+
+                    case "--no-play":
+                        play = false;
+                        break;
+
+                    case "--print":
+                        print = true;
+                        break;
+
+                    default:
+                        jobArgs.add(args[i]);
+                        break;
+                }
+            }
+
+            // Run every job listed in the job file on the worker pool
+            if (jobs != null)
+            {
+                ArrayList<GenerationJob> list = readJobs(new File(jobs));
+
+                for (GenerationJob job : list)
+                {
+                    if (job.getOrder() > 0)
+                    {
+                        MusicAnalyzer.prefetch();
+                        break;
+                    }
+                }
+
+                BatchGenerator batch = new BatchGenerator(threads, new File(outdir));
+                ArrayList<File> files = batch.run(list);
+
+                System.out.println(files.size() + " of " + list.size() + " pieces written to " + batch.getOutputDir());
+
+                if (files.size() != list.size())
+                    System.exit(1);
+
+                return;
+            }
+
+            GenerationJob job = parseJob(jobArgs.toArray(new String[jobArgs.size()]), null);
+
+            if (job.getOrder() > 0)
+                MusicAnalyzer.prefetch();
+
+            ScoreGenerator scoreGen = new ScoreGenerator();
+            String production = job.expand(new LSystem());
+
+            scoreGen.setKey(job.getKey());
+            scoreGen.setTempo(job.getTempo());
+
+            if (job.isSeeded())
+                scoreGen.setSeed(job.getSeed());
+
+            long seed = scoreGen.getSeed();
+            scoreGen.genScore(production, job.getOrder() > 0, job.getOrder());
+            Pattern pattern = scoreGen.getScore();
+
+            if (print)
+                System.out.println("Seed: " + seed + "\r\n" + pattern.toString());
+
+            if (job.getName() != null)
+            {
+                String file = job.getName();
+
+                if (!file.endsWith(".mid"))
+                    file += ".mid";
+
+                BatchGenerator.saveMidi(pattern, new File(file));
+            }
+
+            if (play)
+                new Player().play(pattern);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+        catch (IllegalStateException e)
+        {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        catch (IOException e)
+        {
+            System.out.println(e.toString());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads a job file for batch generation. Each non-empty line that does not start with '#' describes one job using the same options as a single command-line run, e.g.<br>
+     * <code>--preset 3 --iterations 4 --key 2 --order 1 --seed 7 --out piece1</code><br>
+     * Values containing spaces, such as rules, may be enclosed in double quotes.
+     * 
+     * @param file the job file
+     * @return The jobs described in the file.
+     * @throws IOException if the file could not be read
+     */
+    private static ArrayList<GenerationJob> readJobs(File file) throws IOException
+    {
+        ArrayList<GenerationJob> jobs = new ArrayList<GenerationJob>();
+        java.util.regex.Pattern token = java.util.regex.Pattern.compile("\"([^\"]*)\"|(\\S+)");
+        int line = 0;
+
+        for (String str : java.nio.file.Files.readAllLines(file.toPath()))
+        {
+            ++line;
+            str = str.trim();
+
+            if (str.isEmpty() || str.startsWith("#"))
+                continue;
+
+            ArrayList<String> tokens = new ArrayList<String>();
+            java.util.regex.Matcher m = token.matcher(str);
+
+            while (m.find())
+                tokens.add(m.group(1) != null ? m.group(1) : m.group(2));
+
+            try
+            {
+                jobs.add(parseJob(tokens.toArray(new String[tokens.size()]), "job-" + line));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IllegalArgumentException(file + ", line " + line + ": " + e.getMessage());
+            }
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Builds a generation job from command-line style options.
+     * 
+     * @param args the options describing the job
+     * @param name output name used when no --out option is given
+     * @return The job described by the options.
+     */
+    private static GenerationJob parseJob(String[] args, String name)
+    {
+        int presets = new LSystem().getDefaultAlphabets().size();
+        int preset = 1;
+        int iterations = 3;
+        int key = 1;
+        int tempo = 120;
+        int order = 0;
+        Long seed = null;
+        String alphabet = null;
+        String axiom = null;
+        String rules = null;
+
+        for (int i = 0; i < args.length; ++i)
+        {
+            switch (args[i])
+            {
+                case "--preset":
+                    preset = getInt(args, ++i);
+                    break;
+
+                case "--alphabet":
+                    alphabet = getValue(args, ++i);
+                    break;
+
+                case "--axiom":
+                    axiom = getValue(args, ++i);
+                    break;
+
+                case "--rules":
+                    rules = getValue(args, ++i);
+                    break;
+
+                case "--iterations":
+                    iterations = getInt(args, ++i);
+                    break;
+
+                case "--key":
+                    key = getInt(args, ++i);
+                    break;
+
+                case "--tempo":
+                    tempo = getInt(args, ++i);
+                    break;
+
+                case "--order":
+                    order = getInt(args, ++i);
+                    break;
+
+                case "--seed":
+                    seed = Long.valueOf(getValue(args, ++i));
+                    break;
+
+                case "--out":
+                    name = getValue(args, ++i);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        if (preset < 1 || preset > presets)
+            throw new IllegalArgumentException("Preset must be between 1 and " + presets);
+
+        if (iterations < 1)
+            throw new IllegalArgumentException("Iterations must be at least 1");
+
+        if (key < 1 || key > 12)
+            throw new IllegalArgumentException("Key must be between 1 and 12");
+
+        if (tempo < 1 || tempo > 220)
+            throw new IllegalArgumentException("Tempo must be between 1 and 220");
+
+        if (order < 0 || order > MusicAnalyzer.MAX_ORDER)
+            throw new IllegalArgumentException("Order must be 0 (direct mapping) or a Markov chain order from 1 to " + MusicAnalyzer.MAX_ORDER);
+
+        GenerationJob job;
+
+        if (alphabet != null || axiom != null || rules != null)
+        {
+            if (alphabet == null || axiom == null || rules == null)
+                throw new IllegalArgumentException("A custom L-System needs --alphabet, --axiom and --rules");
+
+            ArrayList<String> newalphabet = new ArrayList<String>();
+            ArrayList<String> newrules = new ArrayList<String>();
+
+            for (String x : alphabet.split(","))
+                newalphabet.add(x.trim());
+
+            for (String x : rules.split(","))
+                newrules.add(x);
+
+            if (newalphabet.size() != newrules.size())
+                throw new IllegalArgumentException("Make sure each symbol in the alphabet has a corresponding rule.");
+
+            job = new GenerationJob(name, newalphabet, axiom, newrules, iterations);
+        }
+
+        else
+            job = new GenerationJob(name, preset - 1, iterations);
+
+        job.setKey(key);
+        job.setTempo(tempo);
+        job.setOrder(order);
+
+        if (seed != null)
+            job.setSeed(seed);
+
+        return job;
+    }
+
+    /**
+     * @param args command-line arguments
+     * @param i index of the value
+     * @return The value of the option preceding index i.
+     */
+    private static String getValue(String[] args, int i)
+    {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+
+        return args[i];
+    }
+
+    /**
+     * @param args command-line arguments
+     * @param i index of the value
+     * @return The integer value of the option preceding index i.
+     */
+    private static int getInt(String[] args, int i)
+    {
+        String value = getValue(args, i);
+
+        try
+        {
+            return Integer.valueOf(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Expected a number for " + args[i - 1] + ": " + value);
+        }
+    }
+
+    /**
+     * Prints the command-line options.
+     */
+    private static void printUsage()
+    {
+        System.out.println("Usage: MidiFile [options]\r\n" + "Without options the interactive menu is started.\r\n\r\n" + "  --preset N         preset L-System to use (default 1)\r\n"
+                + "  --alphabet A,B     custom alphabet, symbols separated with commas\r\n" + "  --axiom AXIOM      custom axiom\r\n"
+                + "  --rules R1,R2      custom rules, one per symbol, separated with commas\r\n" + "  --iterations N     number of iterations (default 3)\r\n"
+                + "  --key N            key signature 1 - 12 (default 1, C)\r\n" + "  --tempo N          tempo in BPM 1 - 220 (default 120)\r\n"
+                + "  --order N          0 for direct mapping, 1 - " + MusicAnalyzer.MAX_ORDER + " for a Markov chain of that order (default 0)\r\n" + "  --seed N           seed for random decisions; the same seed reproduces the same piece\r\n"
+                + "  --out NAME         write the piece to NAME.mid\r\n" + "  --print            print the generated score\r\n" + "  --no-play          do not play the piece\r\n"
+                + "  --jobs FILE        generate every job listed in FILE, one job per line\r\n" + "  --threads N        worker threads for --jobs (default one per core)\r\n"
+                + "  --outdir DIR       output directory for --jobs (default .)");
+    }
 }
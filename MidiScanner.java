@@ -0,0 +1,341 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * Reads the notes of a Standard MIDI File directly from its bytes.<br>
+ * The header and track chunks are walked in place, following running status and skipping meta and system exclusive events, and every note is written to primitive buffers as its pitch,
+ * onset, duration and channel. No Sequence, music string or Pattern is created, so a memory-mapped file can be scanned without copying it. Notes on the percussion channel are skipped.
+ * Notes are listed track by track, in order of onset within each track, and the index of the first note of each track is kept. A scanner reuses its buffers from one file to the next and is not thread safe.
+ *
+ * @author Harry Allen
+ */
+public class MidiScanner
+{
+
+    public static final int  VERSION    = 2;            // Changes whenever the notes or tracks reported for a file change
+    public static final int  PERCUSSION = 9;            // Channel reserved for percussion
+    public static final int  MTHD       = 0x4D546864;   // "MThd", the header chunk
+    private static final int MTRK       = 0x4D54726B;   // "MTrk", a track chunk
+
+    private int[]  pitches;     // MIDI pitch of each note
+    private int[]  channels;    // Channel of each note
+    private long[] onsets;      // Tick each note starts on
+    private long[] durations;   // Length of each note in ticks
+    private int    size;        // Number of notes read
+    private int[]  trackStarts; // Index of the first note of each track
+    private int    tracks;      // Number of track chunks read
+    private int    format;      // Format of the file read (0 - 2)
+    private int    division;    // Time division of the file read, ticks per quarter note when positive
+    private int[]  sounding;    // sounding[channel * 128 + pitch]: index of the note still sounding, or -1
+    private int    position;    // Position of the next byte to read
+
+    /**
+     * Constructor.
+     */
+    public MidiScanner()
+    {
+        pitches = new int[256];
+        channels = new int[256];
+        onsets = new long[256];
+        durations = new long[256];
+        trackStarts = new int[16];
+        sounding = new int[16 * 128];
+        size = 0;
+    }
+
+    /**
+     * Maps a file into memory read-only.
+     *
+     * @param file the file to map
+     * @return The contents of the file.
+     * @throws IOException if the file could not be mapped
+     */
+    public static MappedByteBuffer map(File file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Reads the notes of a Standard MIDI File, replacing the notes of the previous file. The buffer's position and limit are left unchanged.
+     *
+     * @param midi the file's bytes, from the buffer's position to its limit
+     * @throws InvalidMidiDataException if the bytes are not a Standard MIDI File
+     */
+    public void scan(ByteBuffer midi) throws InvalidMidiDataException
+    {
+        int start = midi.position();
+        int limit = midi.limit();
+
+        size = 0;
+        tracks = 0;
+
+        if (limit - start < 14 || midi.getInt(start) != MTHD)
+            throw new InvalidMidiDataException("Not a standard MIDI file");
+
+        long headerLength = midi.getInt(start + 4) & 0xFFFFFFFFL;
+        format = midi.getShort(start + 8) & 0xFFFF;
+        division = midi.getShort(start + 12);
+
+        long chunk = start + 8 + headerLength;
+
+        while (chunk + 8 <= limit)
+        {
+            int type = midi.getInt((int) chunk);
+            long length = midi.getInt((int) chunk + 4) & 0xFFFFFFFFL;
+            int end = (int) Math.min(limit, chunk + 8 + length);
+
+            if (type == MTRK)
+                scanTrack(midi, (int) chunk + 8, end);
+
+            chunk += 8 + length;
+        }
+    }
+
+    /**
+     * @return The number of notes read
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return The number of track chunks read, including those without notes
+     */
+    public int getTracks()
+    {
+        return tracks;
+    }
+
+    /**
+     * @param track index of the track (0 - getTracks() - 1)
+     * @return The index of the first note of the track; the track ends where the next one starts, the last track at getSize()
+     */
+    public int getTrackStart(int track)
+    {
+        return trackStarts[track];
+    }
+
+    /**
+     * @return The MIDI pitch of each note read, valid up to getSize(). The array is reused by the next scan and must not be modified.
+     */
+    public int[] getPitches()
+    {
+        return pitches;
+    }
+
+    /**
+     * @param note index of the note
+     * @return The MIDI pitch of the note
+     */
+    public int getPitch(int note)
+    {
+        return pitches[note];
+    }
+
+    /**
+     * @param note index of the note
+     * @return The channel of the note
+     */
+    public int getChannel(int note)
+    {
+        return channels[note];
+    }
+
+    /**
+     * @param note index of the note
+     * @return The tick the note starts on
+     */
+    public long getOnset(int note)
+    {
+        return onsets[note];
+    }
+
+    /**
+     * @param note index of the note
+     * @return The length of the note in ticks
+     */
+    public long getDuration(int note)
+    {
+        return durations[note];
+    }
+
+    /**
+     * @return The format of the file read (0 - 2)
+     */
+    public int getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * @return The time division of the file read: ticks per quarter note when positive, SMPTE frames and ticks per frame when negative
+     */
+    public int getDivision()
+    {
+        return division;
+    }
+
+    /**
+     * Reads the notes of one track chunk. A track cut short ends the notes still sounding where it ends.
+     */
+    private void scanTrack(ByteBuffer midi, int start, int end) throws InvalidMidiDataException
+    {
+        long tick = 0;
+        int status = 0;
+
+        Arrays.fill(sounding, -1);
+        position = start;
+
+        if (tracks == trackStarts.length)
+            trackStarts = Arrays.copyOf(trackStarts, tracks * 2);
+
+        trackStarts[tracks++] = size;
+
+        while (position < end)
+        {
+            long delta = readVariable(midi, end);
+
+            if (delta < 0 || position >= end)
+                break;
+
+            tick += delta;
+            int event = midi.get(position) & 0xFF;
+
+            if (event >= 0x80)
+            {
+                ++position;
+
+                if (event == 0xFF)
+                {
+                    if (position >= end || (midi.get(position++) & 0xFF) == 0x2F)
+                        break;
+
+                    long length = readVariable(midi, end);
+
+                    if (length < 0 || length > end - position)
+                        break;
+
+                    position += length;
+                    continue;
+                }
+
+                if (event == 0xF0 || event == 0xF7)
+                {
+                    long length = readVariable(midi, end);
+
+                    if (length < 0 || length > end - position)
+                        break;
+
+                    position += length;
+                    continue;
+                }
+
+                if (event > 0xF0)
+                    throw new InvalidMidiDataException("Unexpected system message " + Integer.toHexString(event) + " in track");
+
+                status = event;
+            }
+
+            else if (status == 0)
+                throw new InvalidMidiDataException("Running status without a preceding status byte");
+
+            int command = status & 0xF0;
+            int length = command == 0xC0 || command == 0xD0 ? 1 : 2;
+
+            if (position + length > end)
+                break;
+
+            int channel = status & 0x0F;
+            int data1 = midi.get(position) & 0x7F;
+            int data2 = length == 2 ? midi.get(position + 1) & 0x7F : 0;
+
+            position += length;
+
+            if (channel == PERCUSSION)
+                continue;
+
+            if (command == 0x90 && data2 > 0)
+                noteOn(channel, data1, tick);
+
+            else if (command == 0x80 || command == 0x90)
+                noteOff(channel, data1, tick);
+        }
+
+        for (int i = 0; i < sounding.length; ++i)
+        {
+            if (sounding[i] != -1)
+                durations[sounding[i]] = tick - onsets[sounding[i]];
+        }
+    }
+
+    /**
+     * Starts a note. A note already sounding on the same channel and pitch is ended first.
+     */
+    private void noteOn(int channel, int pitch, long tick)
+    {
+        noteOff(channel, pitch, tick);
+
+        if (size == pitches.length)
+        {
+            int capacity = size * 2;
+            pitches = Arrays.copyOf(pitches, capacity);
+            channels = Arrays.copyOf(channels, capacity);
+            onsets = Arrays.copyOf(onsets, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+        }
+
+        pitches[size] = pitch;
+        channels[size] = channel;
+        onsets[size] = tick;
+        durations[size] = 0;
+        sounding[channel * 128 + pitch] = size++;
+    }
+
+    /**
+     * Ends the note sounding on the channel and pitch, if any.
+     */
+    private void noteOff(int channel, int pitch, long tick)
+    {
+        int note = sounding[channel * 128 + pitch];
+
+        if (note != -1)
+        {
+            durations[note] = tick - onsets[note];
+            sounding[channel * 128 + pitch] = -1;
+        }
+    }
+
+    /**
+     * Reads a variable-length quantity of at most four bytes.
+     *
+     * @return The quantity, or -1 if the track ends before it does.
+     */
+    private long readVariable(ByteBuffer midi, int end)
+    {
+        long value = 0;
+
+        for (int i = 0; i < 4; ++i)
+        {
+            if (position >= end)
+                return -1;
+
+            int b = midi.get(position++) & 0xFF;
+            value = (value << 7) | (b & 0x7F);
+
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        return value;
+    }
+}
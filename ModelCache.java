@@ -0,0 +1,229 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Keeps trained note counts on disk so that a corpus is only analyzed again when it changes.<br>
+ * Each cache file is named after the fingerprint of the corpus it was trained on. A matching file is memory-mapped read-only, so several generator processes on the same host share the
+ * same pages. Files are written to a temporary name and moved into place, so readers never see a partly written file. Only the newest few cache files are kept, so a corpus that keeps
+ * changing, e.g. while watched, does not fill the disk with the counts of its earlier versions.
+ *
+ * @author Harry Allen
+ */
+public class ModelCache
+{
+
+    public static final String  DIRECTORY_PROPERTY = "lsystem.cache";   // System property overriding the cache directory
+    private static final String PREFIX             = "markov-";         // Start of the name of each cache file
+    private static final String SUFFIX             = ".bin";            // End of the name of each cache file
+    private static final String SHARDS             = "shards";          // Subdirectory holding the ShardStore
+    private static final String WORKERS            = "workers";         // Subdirectory holding the task and shard files of a DistributedTrainer
+    private static final int    KEEP               = 3;                 // Newest cache files kept, for other corpora sharing the directory
+
+    private final File directory;   // Directory holding the cache files
+
+    /**
+     * Constructor.
+     *
+     * @param directory directory holding the cache files, created when the first file is stored
+     */
+    public ModelCache(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The directory named by the lsystem.cache system property, or .lsystem-music in the user's home directory.
+     */
+    public static File getDefaultDirectory()
+    {
+        String dir = System.getProperty(DIRECTORY_PROPERTY);
+
+        if (dir != null && !dir.isEmpty())
+            return new File(dir);
+
+        return new File(System.getProperty("user.home"), ".lsystem-music");
+    }
+
+    /**
+     * @return The directory holding the cache files
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Returns the counts of the trainer's corpus, from the cache when the corpus has not changed and otherwise by training and storing the result. Training goes through a ShardStore
+     * in the cache directory, so only the files that changed since the last training are counted.
+     *
+     * @param trainer trainer holding the corpus
+     * @return The transition counts of the corpus.
+     */
+    public NoteCounts getOrTrain(CorpusTrainer trainer)
+    {
+        return getOrTrain(trainer, 1);
+    }
+
+    /**
+     * Returns the counts of the trainer's corpus, from the cache when the corpus has not changed and otherwise by training and storing the result. With one worker, training goes
+     * through a ShardStore in the cache directory, so only the files that changed since the last training are counted. With more, the whole corpus is counted by a DistributedTrainer
+     * with that many worker processes, exchanging shards through the cache directory. The fingerprint is taken first, so every root of the corpus is searched before any file is parsed.
+     *
+     * @param trainer trainer holding the corpus
+     * @param workers number of worker processes
+     * @return The transition counts of the corpus.
+     */
+    public NoteCounts getOrTrain(CorpusTrainer trainer, int workers)
+    {
+        String fingerprint = trainer.getFingerprint();
+        NoteCounts counts = load(fingerprint);
+
+        if (counts == null)
+        {
+            try
+            {
+                if (workers > 1)
+                    counts = new DistributedTrainer(trainer, new File(directory, WORKERS), workers).train();
+                else
+                    counts = new ShardStore(new File(directory, SHARDS)).update(trainer);
+            }
+            catch (IOException e)
+            {
+                System.out.println("Unable to train in " + (workers > 1 ? "worker processes" : "the shard store") + ", counting the whole corpus: " + e.toString());
+                counts = trainer.train();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Corpus training interrupted");
+            }
+
+            store(fingerprint, counts);
+        }
+
+        return counts;
+    }
+
+    /**
+     * @param fingerprint fingerprint of the corpus
+     * @return The cached counts of the corpus, or null if there are none or the cache file cannot be read.
+     */
+    public NoteCounts load(String fingerprint)
+    {
+        File file = getFile(fingerprint);
+
+        if (!file.isFile())
+            return null;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return NoteCounts.read(buffer);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Ignoring model cache " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores counts under the fingerprint of their corpus, then deletes all but the newest KEEP cache files. Failures are reported and leave the cache unchanged.
+     *
+     * @param fingerprint fingerprint of the corpus
+     * @param counts the counts to store
+     */
+    public void store(String fingerprint, NoteCounts counts)
+    {
+        File file = getFile(fingerprint);
+        File temp = null;
+
+        try
+        {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Unable to create directory " + directory);
+
+            temp = File.createTempFile(PREFIX, ".tmp", directory);
+
+            try (OutputStream out = new FileOutputStream(temp))
+            {
+                counts.write(out);
+            }
+
+            try
+            {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to write model cache " + file + ": " + e.toString());
+
+            if (temp != null)
+                temp.delete();
+
+            return;
+        }
+
+        prune(file);
+    }
+
+    /**
+     * Deletes the oldest cache files beyond KEEP, never the one just stored. A file still mapped by another process may not be deletable on some systems; it is then left for a later
+     * store.
+     */
+    private void prune(File stored)
+    {
+        File[] files = directory.listFiles();
+
+        if (files == null)
+            return;
+
+        File[] cached = new File[files.length];
+        int count = 0;
+
+        for (File cache : files)
+        {
+            if (cache.isFile() && cache.getName().startsWith(PREFIX) && cache.getName().endsWith(SUFFIX) && !cache.equals(stored))
+                cached[count++] = cache;
+        }
+
+        cached = Arrays.copyOf(cached, count);
+
+        // Newest first
+        Arrays.sort(cached, new Comparator<File>()
+        {
+            @Override
+            public int compare(File a, File b)
+            {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+
+        for (int i = KEEP - 1; i < cached.length; ++i)
+            cached[i].delete();
+    }
+
+    /**
+     * @param fingerprint fingerprint of the corpus
+     * @return The cache file of the corpus
+     */
+    private File getFile(String fingerprint)
+    {
+        return new File(directory, PREFIX + fingerprint + SUFFIX);
+    }
+}
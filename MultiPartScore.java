@@ -0,0 +1,147 @@
+import org.jfugue.Pattern;
+import java.util.ArrayList;
+
+/**
+ * Builds a score out of a base pattern and any number of additional parts.<br>
+ * Each part is kept in its own buffer together with the voice and instrument assigned to it, so adding or extending a part only costs time proportional to the music added. The combined
+ * pattern is rendered once when it is requested and cached until the score changes.
+ *
+ * @author Harry Allen
+ */
+public class MultiPartScore
+{
+
+    private static final int         PERCUSSION = 9;    // Voice reserved for percussion
+    private static final int         VOICES     = 16;   // Number of voices available
+
+    private StringBuilder            base;              // Music already voiced by the generator
+    private ArrayList<StringBuilder> parts;             // Music of each added part
+    private ArrayList<Integer>       voices;            // Voice assigned to each added part
+    private ArrayList<Integer>       instruments;       // Instrument assigned to each added part
+    private int                      nextVoice;         // Next voice that may be assigned to a part
+    private Pattern                  rendered;          // Cached combined pattern, null when out of date
+
+    /**
+     * Constructor. Parts are assigned voices above the highest voice used by the base music, skipping the percussion voice.
+     *
+     * @param music base music
+     */
+    public MultiPartScore(String music)
+    {
+        base = new StringBuilder(music);
+        parts = new ArrayList<StringBuilder>();
+        voices = new ArrayList<Integer>();
+        instruments = new ArrayList<Integer>();
+        nextVoice = highestVoice(music) + 1;
+        rendered = null;
+    }
+
+    /**
+     * Adds a new part played by the instrument passed.
+     *
+     * @param music music of the part
+     * @param instrument instrument that will play the part
+     * @return The index of the part, for use with appendToPart().
+     */
+    public int addPart(String music, int instrument)
+    {
+        if (nextVoice == PERCUSSION)
+            ++nextVoice;
+
+        if (nextVoice >= VOICES)
+            throw new IllegalStateException("No free voice left for another part");
+
+        parts.add(new StringBuilder(music));
+        voices.add(nextVoice++);
+        instruments.add(instrument);
+        rendered = null;
+
+        return parts.size() - 1;
+    }
+
+    /**
+     * @param part index of the part
+     * @param music music to append to the part
+     */
+    public void appendToPart(int part, String music)
+    {
+        parts.get(part).append(' ').append(music);
+        rendered = null;
+    }
+
+    /**
+     * @param music music to append to the base
+     */
+    public void appendToBase(String music)
+    {
+        base.append(' ').append(music);
+        rendered = null;
+    }
+
+    /**
+     * @param part index of the part
+     * @return The voice assigned to the part
+     */
+    public int getVoice(int part)
+    {
+        return voices.get(part);
+    }
+
+    /**
+     * @return The number of added parts
+     */
+    public int getParts()
+    {
+        return parts.size();
+    }
+
+    /**
+     * @return The base music and every part combined into a single pattern.
+     */
+    public Pattern render()
+    {
+        if (rendered == null)
+        {
+            int length = base.length();
+
+            for (StringBuilder part : parts)
+                length += part.length() + 16;
+
+            StringBuilder music = new StringBuilder(length);
+            music.append(base);
+
+            for (int i = 0; i < parts.size(); ++i)
+                music.append(" V").append(voices.get(i)).append(" I").append(instruments.get(i)).append(' ').append(parts.get(i));
+
+            rendered = new Pattern(music.toString());
+        }
+
+        return rendered;
+    }
+
+    /**
+     * @param music music string
+     * @return The highest voice selected with a V token in the music, at least voice 2 since chords are written to voices V1 and V2.
+     */
+    private static int highestVoice(String music)
+    {
+        int highest = 2;
+
+        for (int i = 0; i < music.length() - 1; ++i)
+        {
+            if (music.charAt(i) == 'V' && (i == 0 || music.charAt(i - 1) == ' ') && Character.isDigit(music.charAt(i + 1)))
+            {
+                int voice = 0;
+                int j = i + 1;
+
+                while (j < music.length() && Character.isDigit(music.charAt(j)))
+                    voice = voice * 10 + (music.charAt(j++) - '0');
+
+                if (voice > highest && voice < VOICES)
+                    highest = voice;
+            }
+        }
+
+        return highest;
+    }
+}
@@ -1,44 +1,119 @@
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import org.jfugue.*;
-import com.esotericsoftware.wildcard.*;
-import javax.sound.midi.InvalidMidiDataException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
 
 /**
  * Analyzes a series of MIDI files, producing first-order and second-order Markov Chains which represent <br>
- * the probability of one note following another and one note following a sequence of two notes, respectively.
+ * the probability of one note following another and one note following a sequence of two notes, respectively, variable-order chains of up to MAX_ORDER notes, and joint chains of
+ * notes and rests together with their durations.<br>
+ * The chains are learned once, relative to the tonic, from the MIDI files of every key signature and shared by all analyzers; switching key only selects the rotated chains of that key.<br>
+ * <br>
+ * Training is configured by system properties:<br>
+ * lsystem.corpus: the corpus roots, see getRoots()<br>
+ * lsystem.dedup: the duplicate MIDI files skipped, none, content (byte-identical copies, the default) or notes (files with identical notes too)<br>
+ * lsystem.workers: the number of worker processes counting a changed corpus, see DistributedTrainer<br>
+ * lsystem.quantize: 8 or 16 to quantize the variable-order chains, see getChains()<br>
+ * lsystem.prune: the fewest transitions a quantized or sketched context above the first order needs<br>
+ * lsystem.sketch: megabytes of a count-min sketch holding the orders from the fifth, see SketchModel<br>
+ * lsystem.sample: a time budget in milliseconds for estimating the counts from a sample of the corpus, see ApproximateTrainer
  * 
  * @author Harry Allen
  */
 public class MusicAnalyzer
 {
 
-    private ArrayList<ArrayList<Double>>            prob;       // Markov chain: stores the probability vector for each note
-    private ArrayList<ArrayList<ArrayList<Double>>> secondProb;	// Markov chain: stores the probability vector for each combination of the current note and immediately preceding note
-    private int                                     key;        // Current key signature
+    public static final int              MAX_ORDER       = 8;               // Highest order of the variable-order chains
+    private static final long            DEFAULT_TIMEOUT = 600000;          // Default time an analyzer waits for training, in milliseconds
+
+    public static final String           CORPUS_PROPERTY = "lsystem.corpus";  // System property listing the corpus roots
+    private static final String          CORPUS          = "C:/EclipseWorkspace/L-SystemMusic/MIDIs/"; // Default directory holding the folder of each key signature
+    private static final String[]        FOLDERS         = { "Rock", "GMajor", "DMajor", "AMajor", "EMajor", "BMajor", "F#Major", "DbMajor", "AbMajor", "EbMajor", "BbMajor", "FMajor" };
+    private static final long            WATCH_QUIET     = 2000;            // Time the corpus must be unchanged before it is trained again, in milliseconds
+    public static final String           BITS_PROPERTY   = "lsystem.quantize"; // System property selecting quantized variable-order chains of 8 or 16 bits
+    public static final String           PRUNE_PROPERTY  = "lsystem.prune";   // System property giving the fewest transitions a quantized or sketched context above the first order needs
+    public static final String           WORKERS_PROPERTY = "lsystem.workers"; // System property giving the number of worker processes counting the corpus
+    public static final String           DEDUP_PROPERTY  = "lsystem.dedup";   // System property choosing which duplicate MIDI files are skipped: none, content or notes
+    public static final String           SAMPLE_PROPERTY = "lsystem.sample";  // System property giving a time budget in milliseconds for training on a sample of the corpus
+    public static final String           SKETCH_PROPERTY = "lsystem.sketch";  // System property giving the megabytes of a count-min sketch holding the chains from SketchModel.FIRST_ORDER
+    private static final int             SKETCH_DEPTH    = 4;               // Rows of the sketch, bounding the chance of a larger error by e^-4
+    private static final Object          GENERATIONS     = new Object();    // Guards started, published and latest when chains are published
+
+    private static FutureTask<Trained>   training;                          // Trains the Markov chains from one key-normalized model of every corpus
+    private static volatile Trained      latest;                            // Chains of the most recently started training to finish
+    private static long                  started;                           // Generation of the latest training started
+    private static long                  published;                         // Generation of the training whose chains are in latest
+    private static CorpusWatcher         watcher;                           // Trains the chains again when the corpus changes, null when not watching
+    private static volatile long         timeout         = DEFAULT_TIMEOUT; // Time an analyzer waits for training, in milliseconds
+    private Trained                      trained;                           // Chains the analyzer currently uses
+    private MarkovModel                  model;                             // Markov chains for the current key signature
+    private NoteChain                    chains;                            // Variable-order chains relative to the tonic, shared by every key signature
+    private JointModel                   rhythm;                            // Joint pitch and duration chains relative to the tonic, shared by every key signature
+    private int                          key;                               // Current key signature
+
+    /**
+     * The trained chains.
+     */
+    private static final class Trained
+    {
+        final MarkovModel[]      models;    // First-order and second-order chains of each key signature, indexed by key - 1
+        final NoteChain          chains;    // Variable-order chains relative to the tonic
+        final JointModel         rhythm;    // Joint pitch and duration chains relative to the tonic
+
+        Trained(MarkovModel[] models, NoteChain chains, JointModel rhythm)
+        {
+            this.models = models;
+            this.chains = chains;
+            this.rhythm = rhythm;
+        }
+    }
 
     /**
      * Default constructor.
      */
     public MusicAnalyzer()
     {
-        prob = new ArrayList<ArrayList<Double>>();
-        secondProb = new ArrayList<ArrayList<ArrayList<Double>>>();
-        key = 1;
+        this(1);
+    }
+
+    /**
+     * Constructor. The MIDI files are only analyzed once, by the training started with prefetch() or by the first analyzer created; every analyzer shares the trained model. Blocks until
+     * training has finished.
+     * 
+     * @param key key signature of the Markov chains
+     * @throws IllegalStateException if the Markov chains could not be trained within the timeout
+     */
+    public MusicAnalyzer(int key)
+    {
+        this.key = 0;
+        setKey(key);
+    }
 
-        resetProbabilities();
-        analyzePitch();
-        analyzePitchSecondOrder();
+    /**
+     * @return The Markov chains for the current key signature
+     */
+    public MarkovModel getModel()
+    {
+        update();
+        return model;
     }
 
     /**
      * @param note note of the probability vector to return
      * @return The probability vector for the note accepted as the parameter
      */
-    public ArrayList<Double> getProbability(int note)
+    public double[] getProbability(int note)
     {
-        return prob.get(note);
+        update();
+        return model.getProbability(note);
     }
 
     /**
@@ -46,13 +121,41 @@ public class MusicAnalyzer
      * @param note last note recorded in the score
      * @return the probability vector based on the previous two notes recorded. If no prevnote has been recorded, will default to first order prob.
      */
-    public ArrayList<Double> getSecondProb(int prevnote, int note)
+    public double[] getSecondProb(int prevnote, int note)
     {
-        if (prevnote != -1)
-            return secondProb.get(note).get(prevnote);
+        update();
+        return model.getSecondProb(prevnote, note);
+    }
 
-        else
-            return prob.get(note);
+    /**
+     * Randomly chooses the next note from the chain of the order passed, backing off to shorter contexts when the most recent notes never occurred in the analyzed music.
+     * 
+     * @param history previous notes, the most recent last
+     * @param length number of notes in the history
+     * @param order order of the Markov chain (1 - MAX_ORDER)
+     * @param random source of randomness
+     * @return The next note, or -1 if the last note was never followed by another.
+     */
+    public int sample(int[] history, int length, int order, RandomSource random)
+    {
+        update();
+        return chains.sample(history, length, order, -KeyTables.getTonic(key), random);
+    }
+
+    /**
+     * Randomly chooses the next note or rest together with its duration from the joint chain of the order passed, backing off to shorter contexts when the most recent events never
+     * occurred in the analyzed music. See JointCounts for how events are numbered.
+     * 
+     * @param history previous events, the most recent last
+     * @param length number of events in the history
+     * @param order order of the Markov chain, limited to NoteCounts.JOINT_ORDER
+     * @param random source of randomness
+     * @return The next event, or -1 if the last event was never followed by another.
+     */
+    public int sampleEvent(int[] history, int length, int order, RandomSource random)
+    {
+        update();
+        return rhythm.sample(history, length, order, -KeyTables.getTonic(key), random);
     }
 
     /**
@@ -64,7 +167,7 @@ public class MusicAnalyzer
     }
 
     /**
-     * Sets key signature to the integer passed in, resets the probabilities, and analyzes MIDI files in the new key.
+     * Sets key signature to the integer passed in and selects the Markov chains of the new key. No MIDI files are analyzed again.
      * 
      * @param newkey new key signature
      */
@@ -78,666 +181,363 @@ public class MusicAnalyzer
             else
                 key = 1;
 
-            resetProbabilities();
-            analyzePitch();
-            analyzePitchSecondOrder();
+            select(getTrained());
         }
     }
 
     /**
-     * Resets all probability vectors to 0.0 in preparation for another call to analyze() and analyzeSecondOrder().
+     * Switches to the chains of the most recent training if the corpus has been trained again since the analyzer last looked.
      */
-    public void resetProbabilities()
+    private void update()
     {
-        prob.clear();
-        secondProb.clear();
+        Trained current = latest;
 
-        for (int i = 0; i < 12; ++i)
+        if (current != null && current != trained)
+            select(current);
+    }
+
+    /**
+     * Selects the chains of the current key signature.
+     */
+    private void select(Trained chosen)
+    {
+        trained = chosen;
+        model = chosen.models[key - 1];
+        chains = chosen.chains;
+        rhythm = chosen.rhythm;
+    }
+
+    /**
+     * Starts training the Markov chains on a background thread, unless training has already started. Call this early so that the chains are ready by the time the first Markov chain is
+     * needed; nothing waits on the returned future unless asked to.
+     * 
+     * @return The training in progress
+     */
+    public static synchronized Future<?> prefetch()
+    {
+        if (training == null)
         {
-            prob.add(new ArrayList<Double>());
-            secondProb.add(new ArrayList<ArrayList<Double>>());
+            training = new FutureTask<Trained>(new Callable<Trained>()
+            {
+                @Override
+                public Trained call()
+                {
+                    return train();
+                }
+            });
+
+            Thread thread = new Thread(training, "markov-training");
+            thread.setDaemon(true);
+            thread.start();
         }
 
-        for (ArrayList<Double> list : prob)
+        return training;
+    }
+
+    /**
+     * @return Whether the Markov chains have been trained successfully, i.e. whether creating an analyzer will not block
+     */
+    public static synchronized boolean isTrained()
+    {
+        if (latest != null)
+            return true;
+
+        if (training == null || !training.isDone())
+            return false;
+
+        try
         {
-            for (int i = 0; i < 12; ++i)
-                list.add(0.0);
+            training.get();
+            return true;
         }
-
-        for (ArrayList<ArrayList<Double>> list : secondProb)
+        catch (InterruptedException e)
         {
-            for (int i = 0; i < 12; ++i)
-                list.add(new ArrayList<Double>());
+            Thread.currentThread().interrupt();
+            return false;
         }
-
-        for (ArrayList<ArrayList<Double>> list : secondProb)
+        catch (ExecutionException e)
         {
-            for (ArrayList<Double> x : list)
-            {
-                for (int i = 0; i < 12; ++i)
-                    x.add(0.0);
-            }
+            return false;
         }
     }
 
     /**
-     * Performs a basic analysis of the MIDI files in the MIDIs folder. Based on the given MIDI files the method will generate a first-order Markov Chain which will give the likelihood of a note being
-     * chosen based on the previous note.
+     * Starts watching the corpus directories. Whenever MIDI files are added, removed or modified, the chains are trained again on the watcher's thread; only the files that changed are
+     * analyzed, and every analyzer switches to the new chains on its next use.
+     * 
+     * @throws IOException if the directories could not be watched
      */
-    public void analyzePitch()
+    public static synchronized void watch() throws IOException
     {
-        Player player = new Player();
-        ArrayList<Double> note;
-        String musicstring = "";
-        char[] music;
-        Paths midis = getPath();
-
-        // Run analysis on each MIDI file
-        for (File midi : midis.getFiles())
+        if (watcher == null)
         {
-            try
-            {
-                Pattern pat = player.loadMidi(midi);
-                musicstring = pat.getMusicString();
-            }
-            catch (InvalidMidiDataException e)
-            {
-                System.out.println(e.toString());
-            }
-            catch (IOException e)
-            {
-                System.out.println(e.toString());
-            }
-
-            music = musicstring.toCharArray();
-            int prevnote = -1;
+            ArrayList<File> directories = new ArrayList<File>(getRoots().keySet());
 
-            for (int i = 0; i < music.length; ++i)
+            watcher = new CorpusWatcher(directories, WATCH_QUIET, new Runnable()
             {
-                if (prevnote != -1)
-                    note = prob.get(prevnote);
-
-                else
+                @Override
+                public void run()
                 {
-                    note = new ArrayList<Double>();
-
-                    for (int j = 0; j < 12; ++j)
-                        note.add(0.0);
+                    refresh();
                 }
+            });
 
-                switch (music[i])
-                {
-                    case 'C':
-                        if (prevnote == -1)
-                            break;
-
-                        else if (music[i + 1] == '#')
-                            note.set(1, note.get(1) + 1);
-
-                        else
-                            note.set(0, note.get(0) + 1);
-                        break;
-
-                    case 'D':
-                        if (prevnote == -1)
-                            break;
-
-                        else if (music[i + 1] == 'b')
-                            note.set(1, note.get(1) + 1);
-
-                        else if (music[i + 1] == '#')
-                            note.set(3, note.get(3) + 1);
-
-                        else
-                            note.set(2, note.get(2) + 1);
-                        break;
-
-                    case 'E':
-                        if (prevnote == -1)
-                            break;
-
-                        else if (music[i + 1] == 'b')
-                            note.set(3, note.get(3) + 1);
-
-                        else
-                            note.set(4, note.get(4) + 1);
-
-                        break;
-
-                    case 'F':
-                        if (prevnote == -1)
-                            break;
-
-                        else if (music[i + 1] == '#')
-                            note.set(6, note.get(6) + 1);
-
-                        else
-                            note.set(5, note.get(5) + 1);
-
-                        break;
-
-                    case 'G':
-                        if (prevnote == -1)
-                            break;
-
-                        else if (music[i + 1] == 'b')
-                            note.set(6, note.get(6) + 1);
-
-                        else if (music[i + 1] == '#')
-                            note.set(8, note.get(8) + 1);
-
-                        else
-                            note.set(7, note.get(7) + 1);
-                        break;
-
-                    case 'A':
-                        if (prevnote == -1)
-                            break;
+            watcher.start();
+        }
+    }
 
-                        else if (music[i + 1] == 'b')
-                            note.set(8, note.get(8) + 1);
+    /**
+     * Stops watching the corpus directories.
+     */
+    public static synchronized void unwatch()
+    {
+        if (watcher != null)
+        {
+            watcher.stop();
+            watcher = null;
+        }
+    }
 
-                        else if (music[i + 1] == '#')
-                            note.set(10, note.get(10) + 1);
+    /**
+     * Trains the chains again on the calling thread and makes every analyzer switch to them on its next use. Only files that changed since the last training are analyzed.
+     */
+    public static void refresh()
+    {
+        train();
+    }
 
-                        else
-                            note.set(9, note.get(9) + 1);
-                        break;
+    /**
+     * @return How long an analyzer waits for training to finish, in milliseconds
+     */
+    public static long getTimeout()
+    {
+        return timeout;
+    }
 
-                    case 'B':
-                        if (prevnote == -1)
-                            break;
+    /**
+     * @param millis how long an analyzer waits for training to finish, in milliseconds
+     */
+    public static void setTimeout(long millis)
+    {
+        timeout = millis;
+    }
 
-                        else if (music[i + 1] == 'b')
-                            note.set(10, note.get(10) + 1);
+    /**
+     * Waits for the Markov chains to be trained, starting the training if no one has yet. A failed training is forgotten so that the next analyzer tries again.
+     * 
+     * @return The trained chains
+     * @throws IllegalStateException if training fails, is interrupted, or does not finish within the timeout
+     */
+    private static Trained getTrained()
+    {
+        Trained current = latest;
 
-                        else
-                            note.set(11, note.get(11) + 1);
-                        break;
-                }
+        if (current != null)
+            return current;
 
-                switch (music[i])
-                {
-                    case 'C':
-                        if (music[i + 1] == '#')
-                        {
-                            prevnote = 1;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnote = 0;
-                            ++i;
-                        }
-                        break;
-
-                    case 'D':
-                        if (music[i + 1] == 'b')
-                        {
-                            prevnote = 1;
-                            i = i + 2;
-                        }
-
-                        else if (music[i + 1] == '#')
-                        {
-                            prevnote = 3;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnote = 2;
-                            ++i;
-                        }
-                        break;
-
-                    case 'E':
-                        if (music[i + 1] == 'b')
-                        {
-                            prevnote = 3;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnote = 4;
-                            ++i;
-                        }
-                        break;
-
-                    case 'F':
-                        if (music[i + 1] == '#')
-                        {
-                            prevnote = 6;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnote = 5;
-                            ++i;
-                        }
-                        break;
-
-                    case 'G':
-                        if (music[i + 1] == 'b')
-                        {
-                            prevnote = 6;
-                            i = i + 2;
-                        }
-
-                        else if (music[i + 1] == '#')
-                        {
-                            prevnote = 8;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnote = 7;
-                            ++i;
-                        }
-                        break;
-
-                    case 'A':
-                        if (music[i + 1] == 'b')
-                        {
-                            prevnote = 8;
-                            i = i + 2;
-                        }
-
-                        else if (music[i + 1] == '#')
-                        {
-                            prevnote = 10;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnote = 9;
-                            ++i;
-                        }
-                        break;
-
-                    case 'B':
-                        if (music[i + 1] == 'b')
-                        {
-                            prevnote = 10;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnote = 11;
-                            ++i;
-                        }
-                        break;
-                }
+        Future<Trained> future;
 
-            }
+        synchronized (MusicAnalyzer.class)
+        {
+            prefetch();
+            future = training;
         }
 
-        // Iterate through each note's probability vector and calculate the probability of a given note being chosen
-        for (int k = 0; k < prob.size(); ++k)
+        try
         {
-            ArrayList<Double> list = prob.get(k);
-            double x = 0.0;
-            double sum = 0.0;
-
-            for (Double y : list)
-                sum += y;
-
-            for (int l = 0; l < list.size(); ++l)
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            throw new IllegalStateException("Markov chains were not trained within " + timeout + " ms");
+        }
+        catch (ExecutionException e)
+        {
+            synchronized (MusicAnalyzer.class)
             {
-                x = list.get(l);
-
-                if (sum != 0)
-                    list.set(l, (x / sum));
+                if (training == future)
+                    training = null;
             }
+
+            throw new IllegalStateException("Markov chain training failed: " + e.getCause(), e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the Markov chains");
         }
     }
 
     /**
-     * Performs an analysis of the MIDI files in the MIDIs folder. Based on the given MIDI files the method will generate a second-order Markov Chain which will give the likelihood of a note being
-     * chosen based on the previous two notes.
+     * Trains the Markov chains. The MIDI files and archives under the corpus roots of every key signature are analyzed and their notes are counted relative to the tonic of that key, so all
+     * corpora contribute to a single key-normalized model; the files are loaded and parsed in parallel by CorpusTrainer. The counts are kept in the ModelCache, so the corpus is only
+     * analyzed again after it changes, unless lsystem.sketch or lsystem.sample asks for sketched chains or sampled counts instead, which are not cached.<br>
+     * The chains of each key signature are then derived by rotating the pitch classes of that model to the key's tonic; the variable-order chains stay relative to the tonic and are
+     * rotated when sampled, as do the joint pitch and duration chains counted in the same pass. The chains become the latest chains used by every analyzer, unless a training started
+     * after this one, e.g. by refresh() while the prefetch was still running, has already published its own.
+     * 
+     * @return The trained chains
      */
-    public void analyzePitchSecondOrder()
+    private static Trained train()
     {
-        Player player = new Player();
-        ArrayList<Double> note;				// Temporarily stores musical data to calculate probabilities
-        int[] prevnotes = { -1, -1 };
-        String musicstring = "";
-        char[] music;						// Stores music from MIDI files
-        Paths midis = getPath();
-
-        // Run analysis on each MIDI file
-        for (File midi : midis.getFiles())
+        long generation;
+
+        synchronized (GENERATIONS)
+        {
+            generation = ++started;
+        }
+
+        CorpusTrainer trainer = new CorpusTrainer(MAX_ORDER, 0);
+
+        for (Map.Entry<File, Integer> root : getRoots().entrySet())
+            trainer.addRoot(root.getKey(), -KeyTables.getTonic(root.getValue()));
+
+        String dedup = System.getProperty(DEDUP_PROPERTY);
+
+        if (dedup != null)
         {
             try
             {
-                Pattern pat = player.loadMidi(midi);
-                musicstring = pat.getMusicString();
-            }
-            catch (InvalidMidiDataException e)
-            {
-                System.out.println(e.toString());
+                trainer.setDeduplication(Deduplicator.parseMode(dedup));
             }
-            catch (IOException e)
+            catch (IllegalArgumentException e)
             {
-                System.out.println(e.toString());
+                System.out.println("Ignoring " + DEDUP_PROPERTY + ": " + e.getMessage());
             }
+        }
 
-            music = musicstring.toCharArray();
-
-            for (int i = 0; i < music.length; ++i)
-            {
-                if (prevnotes[0] != -1 && prevnotes[1] != -1)
-                    note = secondProb.get(prevnotes[1]).get(prevnotes[0]);
-
-                else
-                {
-                    note = new ArrayList<Double>();
-
-                    for (int j = 0; j < 12; ++j)
-                        note.add(0.0);
-                }
-
-                switch (music[i])
-                {
-                    case 'C':
-                        if (prevnotes[0] == -1 || prevnotes[1] == -1)
-                            break;
-
-                        else if (music[i + 1] == '#')
-                            note.set(1, note.get(1) + 1);
-
-                        else
-                            note.set(0, note.get(0) + 1);
-                        break;
-
-                    case 'D':
-                        if (prevnotes[0] == -1 || prevnotes[1] == -1)
-                            break;
-
-                        else if (music[i + 1] == 'b')
-                            note.set(1, note.get(1) + 1);
-
-                        else if (music[i + 1] == '#')
-                            note.set(3, note.get(3) + 1);
-
-                        else
-                            note.set(2, note.get(2) + 1);
-                        break;
-
-                    case 'E':
-                        if (prevnotes[0] == -1 || prevnotes[1] == -1)
-                            break;
-
-                        else if (music[i + 1] == 'b')
-                            note.set(3, note.get(3) + 1);
+        NoteCounts counts;
+        NoteChain chains = null;
+        Long sample = Long.getLong(SAMPLE_PROPERTY);
+        Long sketch = Long.getLong(SKETCH_PROPERTY);
 
-                        else
-                            note.set(4, note.get(4) + 1);
+        if (sketch != null)
+        {
+            SketchModel sketched = SketchModel.train(trainer, CountMinSketch.ofSize(Math.max(1L, sketch) << 20, SKETCH_DEPTH),
+                    Math.max(0L, Long.getLong(PRUNE_PROPERTY, 0L)));
+            CountMinSketch cells = sketched.getSketch();
+
+            counts = sketched.getCounts();
+            chains = sketched;
+            System.out.println("Sketched chains: orders " + SketchModel.FIRST_ORDER + " to " + MAX_ORDER + ", about " + sketched.getContexts() + " contexts in "
+                    + cells.getBytes() + " bytes, " + String.format("estimates within +%.0f with probability %.3f, %.1f%% of cells used, ", cells.getEpsilon() * cells.getTotal(),
+                            1.0 - cells.getDelta(), 100.0 * cells.getLoad()) + "contexts sampled from " + sketched.getMinTotal() + " transitions");
+        }
 
-                        break;
+        else if (sample != null)
+        {
+            ApproximateTrainer sampler = new ApproximateTrainer(trainer, new RandomSource());
+            sampler.setBudget(sample);
+            counts = sampler.train();
+            System.out.println(sampler.getReport());
+        }
 
-                    case 'F':
-                        if (prevnotes[0] == -1 || prevnotes[1] == -1)
-                            break;
+        else
+            counts = new ModelCache(ModelCache.getDefaultDirectory()).getOrTrain(trainer, Integer.getInteger(WORKERS_PROPERTY, 1));
 
-                        else if (music[i + 1] == '#')
-                            note.set(6, note.get(6) + 1);
+        MarkovModel[] keyModels = new MarkovModel[12];
 
-                        else
-                            note.set(5, note.get(5) + 1);
+        for (int k = 1; k <= 12; ++k)
+            keyModels[k - 1] = counts.toModel(KeyTables.getTonic(k));
 
-                        break;
+        Trained trained = new Trained(keyModels, chains != null ? chains : getChains(counts), counts.toJointModel());
+        synchronized (GENERATIONS)
+        {
+            if (generation > published)
+            {
+                published = generation;
+                latest = trained;
+            }
+        }
 
-                    case 'G':
-                        if (prevnotes[0] == -1 || prevnotes[1] == -1)
-                            break;
+        return trained;
+    }
 
-                        else if (music[i + 1] == 'b')
-                            note.set(6, note.get(6) + 1);
+    /**
+     * Builds the variable-order chains of the counts. When the lsystem.quantize system property is 8 or 16 the chains are quantized to thresholds of that many bits, leaving out the
+     * contexts above the first order with fewer transitions than the lsystem.prune system property (1 if not set), and their size and distance from the full-precision chains are
+     * reported. Otherwise the full-precision chains are used.
+     * 
+     * @param counts counts of every order
+     * @return The chains
+     */
+    private static NoteChain getChains(NoteCounts counts)
+    {
+        int bits = Integer.getInteger(BITS_PROPERTY, 0);
 
-                        else if (music[i + 1] == '#')
-                            note.set(8, note.get(8) + 1);
+        if (bits != 8 && bits != 16)
+        {
+            if (bits != 0)
+                System.out.println("Ignoring " + BITS_PROPERTY + "=" + bits + ": thresholds must have 8 or 16 bits");
 
-                        else
-                            note.set(7, note.get(7) + 1);
-                        break;
+            return counts.toVariableModel();
+        }
 
-                    case 'A':
-                        if (prevnotes[0] == -1 || prevnotes[1] == -1)
-                            break;
+        CompactModel compact = counts.toCompactModel(bits, Math.max(1L, Long.getLong(PRUNE_PROPERTY, 1L)));
 
-                        else if (music[i + 1] == 'b')
-                            note.set(8, note.get(8) + 1);
+        System.out.println("Quantized chains: " + compact.getContexts() + " contexts in " + compact.getBytes() + " bytes, mean distance "
+                + String.format("%.5f", compact.getDistance(counts)));
 
-                        else if (music[i + 1] == '#')
-                            note.set(10, note.get(10) + 1);
+        return compact;
+    }
 
-                        else
-                            note.set(9, note.get(9) + 1);
-                        break;
+    /**
+     * Returns the corpus roots, read from the lsystem.corpus system property. Roots are separated by the platform's path separator (; on Windows, : elsewhere). An entry key=directory
+     * holds music written in key signature key (1 - 12); any other entry is a directory holding one folder per key signature, named like the folders of the default corpus (Rock, GMajor,
+     * DMajor, ...). Without the property, the default corpus is used. Invalid entries are reported and skipped.
+     * 
+     * @return Each root with the key signature of the MIDI files under it
+     */
+    public static LinkedHashMap<File, Integer> getRoots()
+    {
+        LinkedHashMap<File, Integer> roots = new LinkedHashMap<File, Integer>();
+        String property = System.getProperty(CORPUS_PROPERTY);
 
-                    case 'B':
-                        if (prevnotes[0] == -1 || prevnotes[1] == -1)
-                            break;
+        if (property == null || property.trim().isEmpty())
+        {
+            addKeyFolders(roots, new File(CORPUS));
+            return roots;
+        }
 
-                        else if (music[i + 1] == 'b')
-                            note.set(10, note.get(10) + 1);
+        for (String entry : property.split(Pattern.quote(File.pathSeparator)))
+        {
+            entry = entry.trim();
 
-                        else
-                            note.set(11, note.get(11) + 1);
-                        break;
-                }
+            if (entry.isEmpty())
+                continue;
 
-                switch (music[i])
-                {
-                    case 'C':
-                        if (music[i + 1] == '#')
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 1;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 0;
-                            ++i;
-                        }
-                        break;
-
-                    case 'D':
-                        if (music[i + 1] == 'b')
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 1;
-                            i = i + 2;
-                        }
-
-                        else if (music[i + 1] == '#')
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 3;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 2;
-                            ++i;
-                        }
-                        break;
-
-                    case 'E':
-                        if (music[i + 1] == 'b')
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 3;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 4;
-                            ++i;
-                        }
-                        break;
-
-                    case 'F':
-                        if (music[i + 1] == '#')
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 6;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 5;
-                            ++i;
-                        }
-                        break;
-
-                    case 'G':
-                        if (music[i + 1] == 'b')
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 6;
-                            i = i + 2;
-                        }
-
-                        else if (music[i + 1] == '#')
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 8;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 7;
-                            ++i;
-                        }
-                        break;
-
-                    case 'A':
-                        if (music[i + 1] == 'b')
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 8;
-                            i = i + 2;
-                        }
-
-                        else if (music[i + 1] == '#')
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 10;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 9;
-                            ++i;
-                        }
-                        break;
-
-                    case 'B':
-                        if (music[i + 1] == 'b')
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 10;
-                            i = i + 2;
-                        }
-
-                        else
-                        {
-                            prevnotes[1] = prevnotes[0];
-                            prevnotes[0] = 11;
-                            ++i;
-                        }
-                        break;
-                }
+            int equals = entry.indexOf('=');
 
+            if (equals < 0)
+            {
+                addKeyFolders(roots, new File(entry));
+                continue;
             }
-        }
 
-        // Iterate through each note's probability vector and calculate the probability of a given note being chosen
-        for (int k = 0; k < 12; ++k)
-        {
-            for (int l = 0; l < 12; ++l)
+            try
             {
-                ArrayList<Double> list = secondProb.get(k).get(l);
-                double x = 0.0;
-                double sum = 0.0;
+                int key = Integer.parseInt(entry.substring(0, equals).trim());
 
-                for (Double y : list)
-                    sum += y;
+                if (key < 1 || key > 12)
+                    throw new NumberFormatException();
 
-                for (int m = 0; m < list.size(); ++m)
-                {
-                    x = list.get(m);
-
-                    if (sum != 0)
-                        list.set(m, (x / sum));
-                }
+                roots.put(new File(entry.substring(equals + 1).trim()), key);
+            }
+            catch (NumberFormatException e)
+            {
+                System.out.println("Ignoring corpus root " + entry + ": key signature must be between 1 and 12");
             }
         }
+
+        return roots;
     }
 
-    public Paths getPath()
+    /**
+     * Adds the folder of every key signature under a directory.
+     */
+    private static void addKeyFolders(LinkedHashMap<File, Integer> roots, File directory)
     {
-        switch (key)
-        {
-            case 1:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/Rock", "*.mid");
-
-            case 2:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/GMajor", "*.mid");
-
-            case 3:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/DMajor", "*.mid");
-
-            case 4:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/AMajor", "*.mid");
-
-            case 5:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/EMajor", "*.mid");
-
-            case 6:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/BMajor", "*.mid");
-
-            case 7:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/F#Major", "*.mid");
-
-            case 8:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/DbMajor", "*.mid");
-
-            case 9:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/AbMajor", "*.mid");
-
-            case 10:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/EbMajor", "*.mid");
-
-            case 11:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/BbMajor", "*.mid");
-
-            case 12:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/FMajor", "*.mid");
-
-            default:
-                return new Paths("C:/EclipseWorkspace/L-SystemMusic/MIDIs/CMajor", "*.mid");
-        }
+        for (int k = 1; k <= 12; ++k)
+            roots.put(new File(directory, FOLDERS[k - 1]), k);
     }
 }
@@ -0,0 +1,29 @@
+/**
+ * Markov chains over pitch classes of every order up to a maximum, sampled with back-off from the longest known context to shorter ones.
+ *
+ * @author Harry Allen
+ */
+public interface NoteChain
+{
+    /**
+     * @return The highest order of the chains
+     */
+    int getMaxOrder();
+
+    /**
+     * @return The number of contexts the chains can sample from
+     */
+    int getContexts();
+
+    /**
+     * Randomly chooses the next note from the longest context of the history, up to order notes, that the chains hold.
+     *
+     * @param history previous pitch classes, the most recent last
+     * @param length number of notes in the history
+     * @param order highest order to use; higher values than getMaxOrder() use getMaxOrder()
+     * @param transpose number of half steps added to the history to reach the pitch classes of the chains, and subtracted from the note chosen
+     * @param random source of randomness
+     * @return The next pitch class, or -1 if not even the last note was ever followed by another.
+     */
+    int sample(int[] history, int length, int order, int transpose, RandomSource random);
+}
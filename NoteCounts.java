@@ -0,0 +1,393 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Transition counts of Markov chains of every order up to a maximum, gathered in a single pass over each note sequence.<br>
+ * Counts are exact integers, so counts gathered separately can be added together (or subtracted) in any order with the same result. Only the contexts actually observed are stored: each
+ * context is a row of a ContextIndex with the number of times each pitch class followed it. The joint (pitch, duration) transitions of the same notes are counted alongside in a
+ * JointCounts, so both are gathered, merged, cached and stored together.
+ *
+ * @author Harry Allen
+ */
+public class NoteCounts
+{
+
+    public static final int NOTES       = 12;
+    public static final int JOINT_ORDER = 4;   // Highest order of the joint pitch and duration chains
+
+    private static final int MAGIC   = 0x4E435453;  // "NCTS", start of serialized counts
+    private static final int VERSION = 3;           // Version of the serialized format
+
+    private final int          maxOrder;   // Highest order counted
+    private final ContextIndex contexts;   // Row of each context observed
+    private long[]             counts;     // counts[row * 12 + next]: number of times next followed the context of the row
+    private long               notes;      // Number of notes counted
+    private JointCounts        joint;      // Joint pitch and duration transitions of the same notes
+    private int[]              events;     // Events of the file being counted
+
+    /**
+     * Constructor.
+     *
+     * @param maxOrder highest order of Markov chain to count (1 - 15)
+     */
+    public NoteCounts(int maxOrder)
+    {
+        if (maxOrder < 1 || maxOrder > ContextIndex.MAX_ORDER)
+            throw new IllegalArgumentException("Order must be between 1 and " + ContextIndex.MAX_ORDER);
+
+        this.maxOrder = maxOrder;
+        contexts = new ContextIndex(256);
+        counts = new long[256 * NOTES];
+        notes = 0;
+        joint = new JointCounts(Math.min(maxOrder, JOINT_ORDER));
+        events = new int[0];
+    }
+
+    /**
+     * @return The highest order counted
+     */
+    public int getMaxOrder()
+    {
+        return maxOrder;
+    }
+
+    /**
+     * @return The number of notes counted
+     */
+    public long getNotes()
+    {
+        return notes;
+    }
+
+    /**
+     * @return The joint pitch and duration transitions counted alongside the pitch transitions
+     */
+    public JointCounts getJoint()
+    {
+        return joint;
+    }
+
+    /**
+     * @return The number of contexts observed, of every order
+     */
+    public int getContexts()
+    {
+        return contexts.size();
+    }
+
+    /**
+     * @param row row of a context (0 - getContexts() - 1)
+     * @return The packed context of the row, see ContextIndex
+     */
+    public long getContext(int row)
+    {
+        return contexts.getKey(row);
+    }
+
+    /**
+     * @param row row of a context
+     * @param next pitch class
+     * @return The number of times next followed the context
+     */
+    public long getCount(int row, int next)
+    {
+        return counts[row * NOTES + next];
+    }
+
+    /**
+     * @param context packed context, see ContextIndex
+     * @return The row of the context, or -1 if it was never observed
+     */
+    public int getRow(long context)
+    {
+        return contexts.get(context);
+    }
+
+    /**
+     * Counts every transition of every order in a sequence of notes.
+     *
+     * @param sequence pitches or pitch classes, counted by pitch class
+     * @param length number of notes in the sequence
+     * @param transpose number of half steps added to every note before it is counted
+     */
+    public void addSequence(int[] sequence, int length, int transpose)
+    {
+        int shift = ((transpose % NOTES) + NOTES) % NOTES;
+        long history = 0;   // Previous notes, 4 bits each, the previous note in the lowest bits
+        int known = 0;
+
+        for (int i = 0; i < length; ++i)
+        {
+            int note = (sequence[i] + shift) % NOTES;
+
+            for (int order = 1; order <= Math.min(known, maxOrder); ++order)
+            {
+                int row = getOrAddRow(ContextIndex.pack(history, order));
+                ++counts[row * NOTES + note];
+            }
+
+            history = (history << 4) | note;
+            ++known;
+            ++notes;
+        }
+    }
+
+    /**
+     * Counts every transition of every order in the notes of a file, both of pitch classes and of joint pitch and duration events.
+     *
+     * @param scanner scanner holding the notes of the file
+     * @param transpose number of half steps added to every note before it is counted
+     */
+    public void addScan(MidiScanner scanner, int transpose)
+    {
+        addSequence(scanner.getPitches(), scanner.getSize(), transpose);
+
+        if (events.length < 3 * scanner.getSize())
+            events = new int[3 * scanner.getSize()];
+
+        joint.addSequence(events, JointCounts.getEvents(scanner, transpose, events));
+    }
+
+    /**
+     * Adds every count of another set of counts to this one.
+     *
+     * @param other the counts to add, of the same maximum order
+     */
+    public void add(NoteCounts other)
+    {
+        combine(other, 1);
+    }
+
+    /**
+     * Adds the counts of the contexts up to this maximum order from counts of a higher maximum order, leaving out the higher orders.
+     *
+     * @param other the counts to add, of at least this maximum order and with joint counts of the same order, i.e. both orders at least JOINT_ORDER or equal
+     */
+    public void addLowOrders(NoteCounts other)
+    {
+        if (other.maxOrder < maxOrder || other.joint.getMaxOrder() != joint.getMaxOrder())
+            throw new IllegalArgumentException("Counts of order " + other.maxOrder + " do not hold the orders of counts of order " + maxOrder);
+
+        for (int theirs = 0; theirs < other.contexts.size(); ++theirs)
+        {
+            long key = other.contexts.getKey(theirs);
+
+            if (ContextIndex.getOrder(key) <= maxOrder)
+            {
+                int mine = getOrAddRow(key);
+
+                for (int next = 0; next < NOTES; ++next)
+                    counts[mine * NOTES + next] += other.counts[theirs * NOTES + next];
+            }
+        }
+
+        notes += other.notes;
+        joint.add(other.joint);
+    }
+
+    /**
+     * Subtracts every count of another set of counts from this one.
+     *
+     * @param other the counts to subtract, of the same maximum order
+     */
+    public void subtract(NoteCounts other)
+    {
+        combine(other, -1);
+    }
+
+    /**
+     * @param order order of the Markov chain, small enough for 12^(order + 1) entries
+     * @param semitones number of half steps to move every pitch class
+     * @return The transition counts of that order with every pitch class moved, as doubles indexed [context * 12 + next], contexts written oldest note first.
+     */
+    public double[] getRotated(int order, int semitones)
+    {
+        int size = NOTES;
+
+        for (int o = 0; o < order; ++o)
+            size *= NOTES;
+
+        double[] rotated = new double[size];
+        int shift = ((semitones % NOTES) + NOTES) % NOTES;
+
+        for (int row = 0; row < contexts.size(); ++row)
+        {
+            long key = contexts.getKey(row);
+
+            if (ContextIndex.getOrder(key) != order)
+                continue;
+
+            int context = 0;
+
+            for (int back = order - 1; back >= 0; --back)
+                context = context * NOTES + (ContextIndex.getNote(key, back) + shift) % NOTES;
+
+            for (int next = 0; next < NOTES; ++next)
+                rotated[context * NOTES + (next + shift) % NOTES] += counts[row * NOTES + next];
+        }
+
+        return rotated;
+    }
+
+    /**
+     * @param semitones number of half steps to move every pitch class, i.e. the tonic when the counts are relative to the tonic
+     * @return The first-order and second-order chains of the rotated counts.
+     */
+    public MarkovModel toModel(int semitones)
+    {
+        return new MarkovModel(getRotated(1, semitones), getRotated(2, semitones));
+    }
+
+    /**
+     * @return The chains of every order counted, in the pitch classes of the counts.
+     */
+    public VariableOrderModel toVariableModel()
+    {
+        return new VariableOrderModel(this);
+    }
+
+    /**
+     * @param bits bits per quantized threshold, 8 or 16
+     * @param minTotal number of transitions below which a context above the first order is left out; 1 keeps every context
+     * @return The chains of every order counted, quantized, in the pitch classes of the counts.
+     */
+    public CompactModel toCompactModel(int bits, long minTotal)
+    {
+        return new CompactModel(this, bits, minTotal);
+    }
+
+    /**
+     * @return The joint pitch and duration chains of every order counted, in the pitch classes of the counts.
+     */
+    public JointModel toJointModel()
+    {
+        return joint.toModel();
+    }
+
+    /**
+     * Writes the counts in a compact binary format: a header (magic number, format version, maximum order, number of notes, number of contexts) followed by each context and its counts as
+     * big-endian longs, then the joint counts.
+     *
+     * @param out the stream to write to, not closed
+     * @throws IOException if the counts could not be written
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        DataOutputStream data = new DataOutputStream(out);
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(maxOrder);
+        data.writeLong(notes);
+        data.writeInt(contexts.size());
+
+        for (int row = 0; row < contexts.size(); ++row)
+        {
+            data.writeLong(contexts.getKey(row));
+
+            for (int next = 0; next < NOTES; ++next)
+                data.writeLong(counts[row * NOTES + next]);
+        }
+
+        joint.write(data);
+        data.flush();
+    }
+
+    /**
+     * Reads counts written by write(). The buffer may be a read-only memory-mapped file; its position is advanced past the counts.
+     *
+     * @param buffer buffer positioned at the start of the counts
+     * @return The counts read.
+     * @throws IOException if the buffer does not hold counts in the current format
+     */
+    public static NoteCounts read(ByteBuffer buffer) throws IOException
+    {
+        try
+        {
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("Not a note count file");
+
+            int version = buffer.getInt();
+
+            if (version != VERSION)
+                throw new IOException("Unsupported note count format " + version);
+
+            int maxOrder = buffer.getInt();
+
+            if (maxOrder < 1 || maxOrder > ContextIndex.MAX_ORDER)
+                throw new IOException("Invalid order " + maxOrder);
+
+            NoteCounts result = new NoteCounts(maxOrder);
+            result.notes = buffer.getLong();
+
+            int rows = buffer.getInt();
+
+            if (rows < 0 || (long) rows * (NOTES + 1) * 8 > buffer.remaining())
+                throw new IOException("Note count file is truncated");
+
+            for (int i = 0; i < rows; ++i)
+            {
+                long key = buffer.getLong();
+                int order = ContextIndex.getOrder(key);
+
+                if (order < 1 || order > maxOrder)
+                    throw new IOException("Invalid context " + Long.toHexString(key));
+
+                int row = result.getOrAddRow(key);
+
+                for (int next = 0; next < NOTES; ++next)
+                    result.counts[row * NOTES + next] += buffer.getLong();
+            }
+
+            result.joint = JointCounts.read(buffer);
+
+            if (result.joint.getMaxOrder() != Math.min(maxOrder, JOINT_ORDER))
+                throw new IOException("Invalid joint order " + result.joint.getMaxOrder());
+
+            return result;
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IOException("Note count file is truncated");
+        }
+    }
+
+    /**
+     * @return The row of the context, adding a row of zero counts if it was never observed
+     */
+    private int getOrAddRow(long context)
+    {
+        int row = contexts.add(context);
+
+        if ((row + 1) * NOTES > counts.length)
+            counts = Arrays.copyOf(counts, counts.length * 2);
+
+        return row;
+    }
+
+    private void combine(NoteCounts other, int sign)
+    {
+        if (other.maxOrder != maxOrder)
+            throw new IllegalArgumentException("Counts of different orders cannot be combined");
+
+        for (int theirs = 0; theirs < other.contexts.size(); ++theirs)
+        {
+            int mine = getOrAddRow(other.contexts.getKey(theirs));
+
+            for (int next = 0; next < NOTES; ++next)
+                counts[mine * NOTES + next] += sign * other.counts[theirs * NOTES + next];
+        }
+
+        notes += sign * other.notes;
+
+        if (sign > 0)
+            joint.add(other.joint);
+
+        else
+            joint.subtract(other.joint);
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.SplittableRandom;
+
+/**
+ * Source of every random decision made while generating music.<br>
+ * Wraps a SplittableRandom so that a piece can be reproduced exactly from its seed, and so that independent streams can be split off for each thread, piece or voice without any shared state
+ * or contention between them. A RandomSource is not thread safe; split it instead of sharing it.
+ *
+ * @author Harry Allen
+ */
+public class RandomSource
+{
+
+    private SplittableRandom random;    // Underlying generator
+    private long             seed;      // Seed the generator was created with
+
+    /**
+     * Default Constructor. Seeds the generator with an arbitrary seed which can be retrieved with getSeed().
+     */
+    public RandomSource()
+    {
+        this(new SplittableRandom().nextLong());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param seed the seed of the generator
+     */
+    public RandomSource(long seed)
+    {
+        this.seed = seed;
+        random = new SplittableRandom(seed);
+    }
+
+    /**
+     * @return The seed this source was created with
+     */
+    public long getSeed()
+    {
+        return seed;
+    }
+
+    /**
+     * @return A uniformly distributed value between 0.0 (inclusive) and 1.0 (exclusive)
+     */
+    public double nextDouble()
+    {
+        return random.nextDouble();
+    }
+
+    /**
+     * @param bound the upper bound (exclusive), must be positive
+     * @return A uniformly distributed value between 0 (inclusive) and bound (exclusive)
+     */
+    public int nextInt(int bound)
+    {
+        return random.nextInt(bound);
+    }
+
+    /**
+     * @return A uniformly distributed long value
+     */
+    public long nextLong()
+    {
+        return random.nextLong();
+    }
+
+    /**
+     * Splits off a new, statistically independent source. The result depends only on the seed of this source and the number of values drawn from it so far.
+     *
+     * @return The new source.
+     */
+    public RandomSource split()
+    {
+        return new RandomSource(random.nextLong());
+    }
+}
@@ -63,6 +63,7 @@ public class RhythmGenerator
     private int           minDuration;
     private static char[] durations = { 'o', 'x', 't', 's', 'i', 'q', 'h', 'w' };
     private char[]        rhythm;
+    private RandomSource  random;       // Source of the random choices of pulses and steps
 
     /**
      * Default Constructor.
@@ -71,6 +72,7 @@ public class RhythmGenerator
     {
         density = 50;
         minDuration = 3;
+        random = new RandomSource();
     }
 
     /**
@@ -113,6 +115,14 @@ public class RhythmGenerator
         minDuration = newMinDuration;
     }
 
+    /**
+     * @param newrandom the new source of random choices
+     */
+    public void setRandom(RandomSource newrandom)
+    {
+        random = newrandom;
+    }
+
     /**
      * Uses Bjorklund to generate rhythms one 4/4 measure at a time to be implemented into the music.<br>
      * Rhythms are subdivided either into quarter, eighth, or sixteenth notes.
@@ -121,8 +131,8 @@ public class RhythmGenerator
      */
     public char[] genRhythm()
     {
-        double pulse = Math.random() * 1000;
-        double step = Math.random() * 1000;
+        double pulse = random.nextDouble() * 1000;
+        double step = random.nextDouble() * 1000;
         String rhythm = "";
         int duration = 3;
         int pulses = 0;
@@ -201,7 +211,7 @@ public class RhythmGenerator
      */
     public char[] genQuarterRhythm()
     {
-        double pulse = Math.random() * 1000;
+        double pulse = random.nextDouble() * 1000;
         String rhythm = "";
         int pulses = 0;
 
@@ -227,7 +237,7 @@ public class RhythmGenerator
      */
     public char[] genEighthRhythm()
     {
-        double pulse = Math.random() * 1000;
+        double pulse = random.nextDouble() * 1000;
         String rhythm = "";
         int pulses = 0;
         int count = 3;
@@ -256,7 +266,7 @@ public class RhythmGenerator
      */
     public char[] genSixteenthRhythm()
     {
-        double pulse = Math.random() * 1000;
+        double pulse = random.nextDouble() * 1000;
         String rhythm = "";
         int pulses = 0;
         int count = 6;
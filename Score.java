@@ -1,4 +1,5 @@
 import org.jfugue.Pattern;
+import java.util.HashMap;
 
 /**
  * Handles musical details; stores the music score.
@@ -8,15 +9,28 @@ import org.jfugue.Pattern;
 public class Score
 {
 
-    private Pattern         score;                                                                                     // Stores music score
+    private MultiPartScore  score;                                                                                     // Stores music score and any added parts
     private int             keySig;                                                                                    // Stores current key signature
     private int             tempo;                                                                                     // Stores tempo for music to be played
     private double          degree;                                                                                    // Represents the degree of the current pitch in the current key signature
     private int             note;
     private int             prevNote;
+    private int[]           history;                                                                                   // Ring of the most recent notes, oldest overwritten first
+    private int             historyEnd;                                                                                // Index of the next note written to the ring
+    private int             historySize;                                                                               // Number of notes in the ring
+    private int[]           jointHistory;                                                                              // Ring of the most recent joint pitch and duration events
+    private int             jointEnd;                                                                                  // Index of the next event written to the ring
+    private int             jointSize;                                                                                 // Number of events in the ring
     private int             voices;                                                                                    // Represents the number of voices currently active in the score
     private int             layers;                                                                                    // Represents the number of layers currently active in a voice
     private int             beat;
+    private int             scoreKey;                                                                                  // Key signature the current score was generated in
+    private int             scoreTempo;                                                                                // Tempo the current score was generated at
+    private ScoreEvents     events;                                                                                    // Current score parsed into events, built on first use
+    private HashMap<Integer, Pattern> variants;                                                                        // Current score re-keyed or re-tempoed, keyed by key * 1000 + tempo
+    private int[]           closest;                                                                                   // Closest pitch table for the bounds below
+    private int             closestLower;
+    private int             closestUpper;
     private static String[] keySigs = 				                                                                   // Stores key signatures
                                     { "C", "G", "D", "A", "E", "B", "Gb/F#", "Db", "Ab", "Eb", "Bb", "F" };
     private static String[] notes   = 				                                                                   // Stores all possible notes
@@ -27,12 +41,22 @@ public class Score
      */
     public Score()
     {
-        score = new Pattern();
+        score = new MultiPartScore("");
+        scoreKey = 1;
+        scoreTempo = 120;
+        events = null;
+        variants = new HashMap<Integer, Pattern>();
         keySig = 1;
         tempo = 120;
         degree = 1;
         note = -1;
         prevNote = -1;
+        history = new int[MusicAnalyzer.MAX_ORDER];
+        historyEnd = 0;
+        historySize = 0;
+        jointHistory = new int[NoteCounts.JOINT_ORDER];
+        jointEnd = 0;
+        jointSize = 0;
         voices = 1;
         layers = 1;
         beat = 1;
@@ -108,6 +132,22 @@ public class Score
         return prevNote;
     }
 
+    /**
+     * Copies the most recent notes recorded into the array passed, oldest first, so that the last note recorded is the last one copied.
+     * 
+     * @param recent receives the notes
+     * @return The number of notes copied, at most the length of the array and MusicAnalyzer.MAX_ORDER
+     */
+    public int getHistory(int[] recent)
+    {
+        int length = Math.min(recent.length, historySize);
+
+        for (int i = 0; i < length; ++i)
+            recent[i] = history[(historyEnd - length + i + history.length) % history.length];
+
+        return length;
+    }
+
     /**
      * @return The degree of the current note
      */
@@ -121,67 +161,16 @@ public class Score
      */
     public Pattern getScore()
     {
-        return score;
+        return score.render();
     }
     
+    /**
+     * @param chordDegree scale degree of the root of the chord (1 - 8)
+     * @return The pitch classes of the major triad on the degree in the current key signature. The array is shared and must not be modified.
+     */
     public int[] getChord(int chordDegree)
     {
-        int[] chord = new int[3];
-        int degree = 1;
-        int tonic = 0;
-        
-        while (!notes[tonic].equals(keySigs[keySig-1]))
-            tonic = upHalfStep(tonic);
-        
-        while(degree != chordDegree)
-        {
-            switch(degree)
-            {
-                case 1:
-                    tonic = upWholeStep(tonic);
-                    degree += 1;
-                    break;
-    
-                case 2:
-                    tonic = upWholeStep(tonic);
-                    degree += 1;
-                    break;
-    
-                case 3:
-                    tonic = upHalfStep(tonic);
-                    degree += 1;
-                    break;
-                    
-                case 4:
-                    tonic = upWholeStep(tonic);
-                    degree += 1;
-                    break;
-    
-                case 5:
-                    tonic = upWholeStep(tonic);
-                    degree += 1;
-                    break;
-                    
-                case 6:
-                    tonic = upWholeStep(tonic);
-                    degree += 1;
-                    break;
-    
-                case 7:
-                    tonic = upHalfStep(tonic);
-                    degree += 1.0;
-                    break;
-            }
-            
-            if (tonic == 12)
-                tonic = 0;
-        }
-        
-        chord[0] = tonic;
-        chord[1] = (chord[0] + 4) % 12;
-        chord[2] = (chord[1] + 3) % 12;
-        
-        return chord;
+        return KeyTables.getChord(keySig, chordDegree);
     }
 
     /**
@@ -243,20 +232,8 @@ public class Score
     {
         prevNote = note;
         note = newnote;
-        degree = 1.0;
-        int tonic = 0;
-
-        while (!notes[tonic].equals(keySigs[keySig-1]))
-            tonic = upHalfStep(tonic);
-
-        while (tonic != note)
-            tonic = upDegree(tonic);
-
-        if (tonic == 12)
-            tonic = 0;
-
-        if (degree == 8.0)
-            degree = 1.0;
+        degree = KeyTables.getDegree(keySig, newnote);
+        recordHistory(note);
     }
 
     /**
@@ -267,79 +244,12 @@ public class Score
      */
     public void setNotePitch(int pitch)
     {
-        pitch = pitch % 12;
         prevNote = note;
-        degree = 1.0;
-        int tonic = 0;
-
-        switch (pitch)
-        {
-            case 0:
-                note = 0;
-                break;
-
-            case 1:
-                note = 1;
-                break;
-
-            case 2:
-                note = 2;
-                break;
-
-            case 3:
-                note = 3;
-                break;
-
-            case 4:
-                note = 4;
-                break;
-
-            case 5:
-                note = 5;
-                break;
-
-            case 6:
-                note = 6;
-                break;
-
-            case 7:
-                note = 7;
-                break;
-
-            case 8:
-                note = 8;
-                break;
-
-            case 9:
-                note = 9;
-                break;
-
-            case 10:
-                note = 10;
-                break;
-
-            case 11:
-                note = 11;
-                break;
-
-            default:
-                note = 0;
-                break;
-        }
-
-        while (!notes[tonic].equals(keySigs[keySig-1]))
-            tonic = upHalfStep(tonic);
-
-        while (tonic != pitch)
-            tonic = upDegree(tonic);
-
-        if (tonic == 12)
-            tonic = 0;
-
-        if (degree == 8.0)
-            degree = 1.0;
+        note = ((pitch % 12) + 12) % 12;
+        degree = KeyTables.getDegree(keySig, note);
+        recordHistory(note);
     }
-    
+
     /**
      * @param next  desired note
      * @param pitch  current pitch
@@ -349,206 +259,126 @@ public class Score
      */
     public int findClosestPitch(int next, int pitch, int lowerBound, int upperBound)
     {
-        int distanceup = 0;
-        int distancedown = 0;
-        int note = pitch % 12;
-        int original = note;
-        int originalpitch = pitch;
-        
-        while (note != next)
-        {
-            note = upHalfStep(note);
-            pitch = upHalfStep(pitch);
-
-            if (note > 11)
-                note = 0;
-            
-            if(pitch > upperBound)
-            {
-                distanceup = 99;
-                break;
-            }
-
-            ++distanceup;
-        }
+        if (pitch < 0 || pitch >= KeyTables.PITCHES)
+            return KeyTables.walkClosestPitch(next, pitch, lowerBound, upperBound);
 
-        note = original;
-        pitch = originalpitch;
-
-        while (note != next)
-        {
-            note = downHalfStep(note);
-            pitch = downHalfStep(pitch);
-
-            if (note < 0)
-                note = 11;
-            
-            if(pitch < lowerBound)
-            {
-                distancedown = 99;
-                break;
-            }
-
-            ++distancedown;
-        }
-        
-        note = original;
-        pitch = originalpitch;
-        
-        if(distanceup < distancedown)
+        if (closest == null || lowerBound != closestLower || upperBound != closestUpper)
         {
-            while (distanceup > 0)
-            {
-                note = upHalfStep(note);
-
-                if (note > 11)
-                    note = 0;
-
-                pitch = upHalfStep(pitch);
-
-                if (pitch > upperBound)
-                    pitch -= 24;
-
-                --distanceup;
-            }
+            closest = KeyTables.getClosestPitches(lowerBound, upperBound);
+            closestLower = lowerBound;
+            closestUpper = upperBound;
         }
-        
-        else
-        {
-            while (distancedown > 0)
-            {
-                note = downHalfStep(note);
-
-                if (note < 0)
-                    note = 11;
-
-                pitch = downHalfStep(pitch);
 
-                if (pitch < lowerBound)
-                    pitch += 24;
-
-                --distancedown;
-            }
-        }
-        
-        return pitch;
+        return closest[pitch * 12 + next];
     }
-    
+
     /**
-     * Increments the note passed and degree based on current scale degree.
+     * Set score to the parameter, discarding any parts added to the previous score.
      * 
-     * @param tonic  note to increment.
-     * @return The modified parameter.
+     * @param pattern new score
      */
-    private int upDegree(int note)
+    public void setScore(Pattern pattern)
     {
-        if (degree == 1.0)
-        {
-            note = upHalfStep(note);
-            degree += 0.5;
-        }
-
-        else if (degree == 1.5)
-        {
-            note = upHalfStep(note);
-            degree += 0.5;
-        }
-
-        else if (degree == 2.0)
-        {
-            note = upHalfStep(note);
-            degree += 0.5;
-        }
-
-        else if (degree == 2.5)
-        {
-            note = upHalfStep(note);
-            degree += 0.5;
-        }
-
-        else if (degree == 3.0)
-        {
-            note = upHalfStep(note);
-            degree += 1.0;
-        }
+        score = new MultiPartScore(pattern.getMusicString());
+        scoreKey = keySig;
+        scoreTempo = tempo;
+        clearVariants();
+    }
 
-        else if (degree == 4.0)
-        {
-            note = upHalfStep(note);
-            degree += 0.5;
-        }
+    /**
+     * Returns the current score in another key signature and tempo. The score is transposed by the smallest interval between the two tonics and every tempo change is replaced; nothing is
+     * generated again. Variants are cached until the score changes.
+     * 
+     * @param key key signature of the variant
+     * @param newtempo tempo of the variant
+     * @return The score in the key signature and tempo passed.
+     */
+    public Pattern getVariant(int key, int newtempo)
+    {
+        if (key == scoreKey && newtempo == scoreTempo)
+            return getScore();
 
-        else if (degree == 4.5)
-        {
-            note = upHalfStep(note);
-            degree += 0.5;
-        }
+        Integer name = key * 1000 + newtempo;
+        Pattern variant = variants.get(name);
 
-        else if (degree == 5.0)
+        if (variant == null)
         {
-            note = upHalfStep(note);
-            degree += 0.5;
-        }
+            if (events == null)
+                events = new ScoreEvents(getScore().getMusicString());
 
-        else if (degree == 5.5)
-        {
-            note = upHalfStep(note);
-            degree += 0.5;
-        }
+            int shift = (KeyTables.getTonic(key) - KeyTables.getTonic(scoreKey) + 12) % 12;
 
-        else if (degree == 6.0)
-        {
-            note = upHalfStep(note);
-            degree += 0.5;
-        }
+            if (shift > 6)
+                shift -= 12;
 
-        else if (degree == 6.5)
-        {
-            note = upHalfStep(note);
-            degree += 0.5;
+            variant = new Pattern(events.transpose(shift).withTempo(newtempo).render());
+            variants.put(name, variant);
         }
 
-        else if (degree == 7.0)
-        {
-            note = upHalfStep(note);
-            degree += 1.0;
-        }
+        return variant;
+    }
 
-        else
-        {
-            note = upHalfStep(note);
-            degree = 1.5;
-        }
+    /**
+     * Discards the events and variants of the current score after it has changed.
+     */
+    private void clearVariants()
+    {
+        events = null;
+        variants.clear();
+    }
 
-        if (note == 12)
-            note = 0;
-        
-        return note;
+    /**
+     * Appends a part to the score, played on its own voice by the instrument passed.
+     * 
+     * @param newvoice part to be appended
+     * @param instrument instrument that will play the part
+     * @return The voice assigned to the part.
+     */
+    public int appendPart(String newvoice, int instrument)
+    {
+        clearVariants();
+        return score.getVoice(score.addPart(newvoice, instrument));
     }
 
     /**
-     * Set score to the parameter.
+     * Appends a note to the end of the score.
      * 
-     * @param pattern new score
+     * @param note note to be appended
      */
-    public void setScore(Pattern pattern)
+    public void appendNote(String note)
     {
-        score = pattern;
+        clearVariants();
+        score.appendToBase(note);
     }
 
     /**
-     * Appends a voice to the score.
+     * Copies the most recent joint pitch and duration events recorded into the array passed, oldest first.
      * 
-     * @param newvoice voice to be appended
+     * @param recent receives the events
+     * @return The number of events copied, at most the length of the array and NoteCounts.JOINT_ORDER
      */
-    public void appendPart(String newvoice, int instrument)
+    public int getJointHistory(int[] recent)
     {
-        score.add(score.toString() + " V1 I" + instrument + " " + newvoice + " ");
+        int length = Math.min(recent.length, jointSize);
+
+        for (int i = 0; i < length; ++i)
+            recent[i] = jointHistory[(jointEnd - length + i + jointHistory.length) % jointHistory.length];
+
+        return length;
     }
 
-    public void appendNote(String note)
+    /**
+     * Adds a note or rest with its duration to the ring of recent joint events.
+     * 
+     * @param event the event, see JointCounts
+     */
+    public void recordEvent(int event)
     {
-        score.add(" " + note);
+        jointHistory[jointEnd] = event;
+        jointEnd = (jointEnd + 1) % jointHistory.length;
+
+        if (jointSize < jointHistory.length)
+            ++jointSize;
     }
 
     /**
@@ -562,6 +392,25 @@ public class Score
         beat = 1;
         note = -1;
         prevNote = -1;
+        historyEnd = 0;
+        historySize = 0;
+        jointEnd = 0;
+        jointSize = 0;
+    }
+
+    /**
+     * Adds a note to the ring of recent notes.
+     */
+    private void recordHistory(int newnote)
+    {
+        if (newnote < 0)
+            return;
+
+        history[historyEnd] = newnote;
+        historyEnd = (historyEnd + 1) % history.length;
+
+        if (historySize < history.length)
+            ++historySize;
     }
 
     /**
@@ -0,0 +1,157 @@
+/**
+ * A generated score parsed once into a compact sequence of events, so that it can be transposed or given a new tempo without generating it again.<br>
+ * Notes written with numeric pitches ("[60]q") and tempo changes ("T120") keep their values in an int array; every other token of the music string is kept as literal text. Transforms
+ * return a new ScoreEvents sharing the literal text and take time linear in the number of events.
+ *
+ * @author Harry Allen
+ */
+public class ScoreEvents
+{
+
+    private static final byte OTHER = 0;    // Literal token
+    private static final byte NOTE  = 1;    // Note with a numeric pitch; the literal holds what follows the pitch
+    private static final byte TEMPO = 2;    // Tempo change
+
+    private final byte[]      kinds;        // Kind of each event
+    private final int[]       values;       // Pitch of each note, BPM of each tempo change
+    private final String[]    literals;     // Literal text of each event
+    private final int         size;         // Number of events
+
+    /**
+     * Constructor. Parses a music string into events.
+     *
+     * @param music the music string
+     */
+    public ScoreEvents(String music)
+    {
+        String[] tokens = music.trim().split("\\s+");
+        int n = tokens.length == 1 && tokens[0].isEmpty() ? 0 : tokens.length;
+
+        kinds = new byte[n];
+        values = new int[n];
+        literals = new String[n];
+        size = n;
+
+        for (int i = 0; i < n; ++i)
+        {
+            String token = tokens[i];
+            int close = token.indexOf(']');
+
+            if (token.startsWith("[") && close > 1 && isNumber(token, 1, close))
+            {
+                kinds[i] = NOTE;
+                values[i] = Integer.parseInt(token.substring(1, close));
+                literals[i] = token.substring(close + 1);
+            }
+
+            else if (token.length() > 1 && token.charAt(0) == 'T' && isNumber(token, 1, token.length()))
+            {
+                kinds[i] = TEMPO;
+                values[i] = Integer.parseInt(token.substring(1));
+            }
+
+            else
+                literals[i] = token;
+        }
+    }
+
+    /**
+     * Constructor used by the transforms.
+     */
+    private ScoreEvents(byte[] kinds, int[] values, String[] literals)
+    {
+        this.kinds = kinds;
+        this.values = values;
+        this.literals = literals;
+        size = kinds.length;
+    }
+
+    /**
+     * @param semitones number of half steps to move every note, may be negative
+     * @return The events with every note transposed. Notes that would leave the MIDI range are moved by an octave in the other direction.
+     */
+    public ScoreEvents transpose(int semitones)
+    {
+        int[] transposed = values.clone();
+
+        for (int i = 0; i < size; ++i)
+        {
+            if (kinds[i] == NOTE)
+            {
+                int pitch = values[i] + semitones;
+
+                if (pitch < 0)
+                    pitch += 12;
+
+                else if (pitch >= KeyTables.PITCHES)
+                    pitch -= 12;
+
+                transposed[i] = pitch;
+            }
+        }
+
+        return new ScoreEvents(kinds, transposed, literals);
+    }
+
+    /**
+     * @param tempo the new tempo in BPM
+     * @return The events with every tempo change set to the tempo passed.
+     */
+    public ScoreEvents withTempo(int tempo)
+    {
+        int[] changed = values.clone();
+
+        for (int i = 0; i < size; ++i)
+        {
+            if (kinds[i] == TEMPO)
+                changed[i] = tempo;
+        }
+
+        return new ScoreEvents(kinds, changed, literals);
+    }
+
+    /**
+     * @return The events as a music string.
+     */
+    public String render()
+    {
+        StringBuilder music = new StringBuilder(size * 6);
+
+        for (int i = 0; i < size; ++i)
+        {
+            if (i > 0)
+                music.append(' ');
+
+            switch (kinds[i])
+            {
+                case NOTE:
+                    music.append('[').append(values[i]).append(']').append(literals[i]);
+                    break;
+
+                case TEMPO:
+                    music.append('T').append(values[i]);
+                    break;
+
+                default:
+                    music.append(literals[i]);
+                    break;
+            }
+        }
+
+        return music.toString();
+    }
+
+    /**
+     * @return Whether the characters of str from start to end (exclusive) are all digits
+     */
+    private static boolean isNumber(String str, int start, int end)
+    {
+        for (int i = start; i < end; ++i)
+        {
+            if (!Character.isDigit(str.charAt(i)))
+                return false;
+        }
+
+        return end > start;
+    }
+}
@@ -1,5 +1,4 @@
 import org.jfugue.Pattern;
-import java.util.ArrayList;
 
 /**
  * Generates a properly formatted score for use in JFugue from an L-system production.<br>
@@ -79,30 +78,45 @@ public class ScoreGenerator
 {
 
     private Turtle                        turtle;       // Turtle to keep track of "drawing" actions
-    private MusicAnalyzer                 analyzer;     // Analyzes MIDI files and generates a first-order Markov chain for all notes on the Western Scale
+    private MusicAnalyzer                 analyzer;     // Analyzes MIDI files and generates Markov chains for all notes on the Western Scale; created on first use
     private Score                         score;        // Stores the music score and related information
     private RhythmGenerator               rhythmGen;    // Generates rhythms to be implemented into the melody or accompaniment
     private int[]                         chords;       // Chord progression to be implemented into composition
-    private ArrayList<ArrayList<Integer>> chordProb;    // Stores the chords and the likelihood of their transition to other chords
+    private ChordProgression              progression;  // Generates chord progressions from a chord transition matrix
+    private ChordVoicings.Strategy        voicing;      // How chords are voiced
+    private ChordVoicings                 voicings;     // Shared voicing table for the current key signature and voicing
     private int                           beat;         // Keeps track of the beat to determine when to place measure marker and generate a new rhythm
     private int                           lowerBound;   // Lower bound of note pitch
     private int                           upperBound;   // Upper bound of note pitch
     private int                           chordInterval;// Interval at which chords are written into score
+    private RandomSource                  random;       // Source from which the random streams of each generated score are split
+    private RandomSource                  chordRandom;  // Random stream for the chord progression of the current score
+    private RandomSource                  noteRandom;   // Random stream for the Markov chain choices of the current score
+    private int[]                         history;      // Most recent notes of the score, the context of the Markov chain
+    private int[]                         jointHistory; // Most recent notes and rests of the score with their durations, the context of the joint chain
+    private boolean                       jointRhythm;  // Whether Markov notes take their durations, and up to NoteCounts.JOINT_ORDER their pitches, from the joint chain
 
     /**
      * Default Constructor.
      */
     public ScoreGenerator()
     {
-        analyzer = new MusicAnalyzer();
+        analyzer = null;
         turtle = new Turtle();
         score = new Score();
         rhythmGen = new RhythmGenerator();
-        initChordProb();
+        progression = ChordProgression.getMajor();
+        voicing = ChordVoicings.Strategy.CLOSE;
         beat = 0;
         upperBound = 95;
         lowerBound = 45;
         chordInterval = 64;
+        random = new RandomSource();
+        chordRandom = new RandomSource();
+        noteRandom = new RandomSource();
+        history = new int[MusicAnalyzer.MAX_ORDER];
+        jointHistory = new int[NoteCounts.JOINT_ORDER];
+        jointRhythm = true;
     }
 
     /**
@@ -112,95 +126,42 @@ public class ScoreGenerator
      */
     public ScoreGenerator(int angle)
     {
-        analyzer = new MusicAnalyzer();
+        analyzer = null;
         turtle = new Turtle();
         score = new Score();
         rhythmGen = new RhythmGenerator();
-        initChordProb();
+        progression = ChordProgression.getMajor();
+        voicing = ChordVoicings.Strategy.CLOSE;
         turtle.pushAngle(angle);
         beat = 0;
         upperBound = 95;
         lowerBound = 45;
         chordInterval = 64;
+        random = new RandomSource();
+        chordRandom = new RandomSource();
+        noteRandom = new RandomSource();
+        history = new int[MusicAnalyzer.MAX_ORDER];
+        jointHistory = new int[NoteCounts.JOINT_ORDER];
+        jointRhythm = true;
     }
     
-    private void initChordProb()
+    /**
+     * @return Whether notes drawn from Markov chains take their durations, and rests, from the joint pitch and duration chain rather than from the rhythm generator
+     */
+    public boolean isJointRhythm()
     {
-        chordProb = new ArrayList<ArrayList<Integer>>();
-        
-        for(int i=0 ; i < 7 ; ++i)
-        {
-            chordProb.add(new ArrayList<Integer>());
-        }
-        
-        for(int i=0 ; i < chordProb.size() ; ++i)
-        {
-            ArrayList<Integer> list = chordProb.get(i);
-            switch(i)
-            {
-                case 0:
-                    for(int j=0 ; j < 6 ; ++j)
-                        list.add(1667);
-                    break;
-                    
-                case 1:
-                    for(int j=0 ; j < 6 ; ++j)
-                    {
-                        if(j == 0 || j == 1 || j == 3)
-                            list.add(3333);
-                        
-                        else
-                            list.add(0);
-                    }
-                    break;
-                    
-                case 2:
-                    for(int j=0 ; j < 6 ; ++j)
-                    {
-                        if(j == 3)
-                            list.add(0);
-                        
-                        else
-                            list.add(2000);
-                    }
-                    break;
-                    
-                case 3:
-                    for(int j=0 ; j < 6 ; ++j)
-                    {
-                        if(j == 0 || j == 4)
-                            list.add(0);
-                        
-                        else
-                            list.add(2500);
-                    }
-                    break;
-                    
-                case 4:
-                    for(int j=0 ; j < 6 ; ++j)
-                    {
-                        if(j == 0 || j == 1)
-                            list.add(0);
-                        
-                        else
-                        {
-                            list.add(2500);
-                        }
-                    }
-                    break;
-                    
-                case 5:
-                    for(int j=0 ; j < 6 ; ++j)
-                    {
-                        if(j == 0 || j == 2 || j == 3)
-                            list.add(0);
-                        
-                        else
-                            list.add(3333);
-                    }
-                    break;
-            }
-        }
+        return jointRhythm;
+    }
+
+    /**
+     * Chooses where notes drawn from Markov chains take their durations from. With the joint chain, orders up to NoteCounts.JOINT_ORDER also take the pitch of the joint event; higher
+     * orders take only the duration, or rest, from it and the pitch from the variable-order chains, which reach MusicAnalyzer.MAX_ORDER.
+     *
+     * @param jointRhythm whether notes drawn from Markov chains take their durations, and rests, from the joint pitch and duration chain rather than from the rhythm generator
+     */
+    public void setJointRhythm(boolean jointRhythm)
+    {
+        this.jointRhythm = jointRhythm;
     }
 
     /**
@@ -227,13 +188,25 @@ public class ScoreGenerator
         return score.getScore();
     }
     
+    /**
+     * Returns the generated score in another key signature and tempo without generating it again.
+     * 
+     * @param key key signature (1 - 12)
+     * @param tempo tempo in BPM
+     * @return The transposed and re-tempoed score
+     */
+    public Pattern getScore(int key, int tempo)
+    {
+        return score.getVariant(key, tempo);
+    }
+
     public Score getScoreT()
     {
         return score;
     }
     
     /**
-     * @return The current chord progression represented as an array of ints
+     * @return The current chord progression represented as an array of zero-based scale degrees
      */
     public int[] getChordProgression()
     {
@@ -241,7 +214,27 @@ public class ScoreGenerator
     }
 
     /**
-     * Sets the value of keySig and the key of the analyzer to the integer accepted. This forces the analyzer to reset and analyze MIDI files in the new key.
+     * Sets how the tones of chords are stacked, e.g. in root position, an inversion or an open voicing.
+     * 
+     * @param voicing the new voicing strategy
+     */
+    public void setVoicing(ChordVoicings.Strategy voicing)
+    {
+        this.voicing = voicing;
+    }
+
+    /**
+     * Sets the engine used to generate chord progressions, e.g. one with a learned transition matrix.
+     * 
+     * @param progression the new chord progression engine
+     */
+    public void setChordProgression(ChordProgression progression)
+    {
+        this.progression = progression;
+    }
+
+    /**
+     * Sets the value of keySig and the key of the analyzer to the integer accepted. The analyzer switches to the Markov chains of the new key without analyzing any MIDI files.
      * 
      * @param key the new key signature
      */
@@ -252,16 +245,51 @@ public class ScoreGenerator
             if (key != score.getKeyInt())
             {
                 score.setKey(key);
-                analyzer.setKey(key);
+
+                if (analyzer != null)
+                    analyzer.setKey(key);
             }
         }
         else
         {
             score.setKey(1);
-            analyzer.setKey(1);
+
+            if (analyzer != null)
+                analyzer.setKey(1);
         }
     }
 
+    /**
+     * The analyzer is only trained once a Markov chain is actually needed, so direct mappings of a production never touch the MIDI corpus.
+     * 
+     * @return The analyzer for the current key signature.
+     */
+    private MusicAnalyzer getAnalyzer()
+    {
+        if (analyzer == null)
+            analyzer = new MusicAnalyzer(score.getKeyInt());
+
+        return analyzer;
+    }
+
+    /**
+     * @return The seed last set with setSeed(), or chosen on construction; it only reproduces the next score if no score was generated since it was set
+     */
+    public long getSeed()
+    {
+        return random.getSeed();
+    }
+
+    /**
+     * Seeds the random source. Generating a score with the same production and settings directly after setting the same seed reproduces the score exactly.
+     * 
+     * @param seed the new seed
+     */
+    public void setSeed(long seed)
+    {
+        random = new RandomSource(seed);
+    }
+
     /**
      * Sets the value of tempo to the integer accepted.
      * 
@@ -293,6 +321,12 @@ public class ScoreGenerator
         String pat = "";
         beat = 0;
 
+        // Each part of the score draws from its own stream so that changes to one part do not shift the random choices of another
+        RandomSource piece = random.split();
+        chordRandom = piece.split();
+        noteRandom = piece.split();
+        rhythmGen.setRandom(piece.split());
+
         switch (score.getKeyInt())
         {
             case 1:
@@ -368,11 +402,6 @@ public class ScoreGenerator
         turtle.pushY(tonic);
         int c = 0;
         int r = 0;
-        
-        for(int x: chords)
-            System.out.print(x + " ");
-        
-       System.out.println();
 
         // Step through each symbol in production
         for (int i = 0; i < prod.length; ++i)
@@ -418,19 +447,19 @@ public class ScoreGenerator
                         if(beat % chordInterval == 0 && rhythm.length <= 4)
                         {
                             c = c % chords.length;
-                            writeChord(buffer, chords[c], rhythm[r]);
+                            writeChord(buffer, chords[c], rhythm[r % rhythm.length]);
                             ++c;
                         }
                         
                         else if(beat % chordInterval == 0)
                         {
                             buffer.append(" V1 Rh V2 Rh V0");
-                            buffer = drawMarkov(buffer, true, order, rhythm[r]);
+                            buffer = drawMarkov(buffer, true, order, rhythm[r % rhythm.length]);
                         }
                         
                         else
                         {
-                            buffer = drawMarkov(buffer, true, order, rhythm[r]);
+                            buffer = drawMarkov(buffer, true, order, rhythm[r % rhythm.length]);
                         }
                         
                         ++r;
@@ -459,19 +488,19 @@ public class ScoreGenerator
                         if(beat % chordInterval == 0 && rhythm.length <= 4)
                         {
                             c = c % chords.length;
-                            writeChord(buffer, chords[c], rhythm[r]);
+                            writeChord(buffer, chords[c], rhythm[r % rhythm.length]);
                             ++c;
                         }
                         
                         else if(beat % 64 == 0)
                         {
                             buffer.append(" V1 Rh V2 Rh V0");
-                            buffer = drawMarkov(buffer, true, order, rhythm[r]);
+                            buffer = drawMarkov(buffer, true, order, rhythm[r % rhythm.length]);
                         }
                         
                         else
                         {
-                            buffer = drawMarkov(buffer, true, order, rhythm[r]);
+                            buffer = drawMarkov(buffer, true, order, rhythm[r % rhythm.length]);
                         }
 
                         ++r;
@@ -658,10 +687,14 @@ public class ScoreGenerator
     }
 
     /**
-     * Uses L-System as a guide instead of mapping the system directly onto the score. Uses a first-order Markov Chain to choose notes as the system progresses.
+     * Uses L-System as a guide instead of mapping the system directly onto the score. Uses a Markov Chain of the order passed to choose notes as the system progresses. When joint rhythm
+     * is on and the joint chain knows the recent notes and rests, the next note or rest and its duration are drawn together from it instead, shortened if needed so that it does not run
+     * past the end of the measure; otherwise the duration passed is used.
      * 
      * @param buffer stores the music score as it is being built
      * @param draw whether the note is to be treated as a tie
+     * @param order order of the Markov chain
+     * @param duration duration of the note
      * @return The StringBuffer with the necessary modifications made.
      */
     private StringBuffer drawMarkov(StringBuffer buffer, boolean draw, int order, char duration)
@@ -671,7 +704,19 @@ public class ScoreGenerator
         int originalnote = score.getNote();
         int note = originalnote;
         int nextnote = -1;
-        
+        int event = jointRhythm ? getMarkovEvent(order) : -1;
+        boolean rest = event != -1 ? JointCounts.getPitchClass(event) == JointCounts.REST : duration >= '0' && duration <= '7';
+
+        // Joint durations do not add up to whole measures, so the note or rest is cut short at the end of the measure
+        if (jointRhythm)
+        {
+            int length = fitMeasure(JointCounts.getDuration(event != -1 ? JointCounts.getDurationChar(event) : duration));
+            duration = JointCounts.getDurationChar(JointCounts.getEvent(rest ? JointCounts.REST : 0, length));
+        }
+
+        if (rest)
+            score.recordEvent(JointCounts.getEvent(JointCounts.REST, JointCounts.getDuration(duration)));
+
         switch (duration)
         {
             case '0':
@@ -725,11 +770,7 @@ public class ScoreGenerator
                 note = originalnote;
             }
 
-            if (order == 1)
-                nextnote = getFirstOrderNote(note);
-
-            else
-                nextnote = getSecondOrderNote(score.getPrevNote(), note);
+            nextnote = getMarkovNote(order, event);
 
             if (nextnote != -1)
             {
@@ -740,7 +781,7 @@ public class ScoreGenerator
             }
 
             buffer.append(" [" + pitch + "]" + duration);
-            score.setNote(note);
+            score.setNotePitch(pitch);
         }
 
         else if (direction == 1 || direction == 3)
@@ -751,11 +792,7 @@ public class ScoreGenerator
                 note = score.getNote();
             }
             
-            if (order == 1)
-                nextnote = getFirstOrderNote(note);
-
-            else
-                nextnote = getSecondOrderNote(score.getPrevNote(), note);
+            nextnote = getMarkovNote(order, event);
 
             if (nextnote != -1)
             {
@@ -766,7 +803,7 @@ public class ScoreGenerator
             }
 
             buffer.append(" [" + pitch + "]" + duration);
-            score.setNote(note);
+            score.setNotePitch(pitch);
         }
 
         // If turtle facing upward, record line as a change up in pitch
@@ -778,11 +815,7 @@ public class ScoreGenerator
                 note = score.getNote();
             }
 
-            if (order == 1)
-                nextnote = getFirstOrderNote(note);
-
-            else
-                nextnote = getSecondOrderNote(score.getPrevNote(), note);
+            nextnote = getMarkovNote(order, event);
 
             if (nextnote != -1)
             {
@@ -799,12 +832,12 @@ public class ScoreGenerator
                         pitch -= 24;
                 }
 
-                score.setNote(note);
                 turtle.popY();
                 turtle.pushY(pitch);
             }
 
             buffer.append(" [" + pitch + "]" + duration);
+            score.setNotePitch(pitch);
         }
 
         // If turtle facing downward, record line as a change down in pitch
@@ -816,11 +849,7 @@ public class ScoreGenerator
                 note = score.getNote();
             }
 
-            if (order == 1)
-                nextnote = getFirstOrderNote(note);
-
-            else
-                nextnote = getSecondOrderNote(score.getPrevNote(), note);
+            nextnote = getMarkovNote(order, event);
 
             if (nextnote != -1)
             {
@@ -842,8 +871,11 @@ public class ScoreGenerator
             }
 
             buffer.append(" [" + pitch + "]" + duration);
+            score.setNotePitch(pitch);
         }
 
+        score.recordEvent(JointCounts.getEvent(pitch % 12, JointCounts.getDuration(duration)));
+
         switch (duration)
         {
             case 'o':
@@ -891,244 +923,12 @@ public class ScoreGenerator
      */
     public StringBuffer writeChord(StringBuffer buffer, int chordDegree, char duration)
     {
-        int[] chord = score.getChord(chordDegree+1);
-        int note1 = chord[0];
-        int pitch1 = turtle.getY();
-        int pitch2 = pitch1;
-        int pitch3 = pitch2;
-        double restingtime = 64;
-        String rests = "";
-        
-        switch (duration)
-        {
-            case 'o':
-                beat += 1;
-                restingtime -= 1;
-                break;
-
-            case 'x':
-                beat += 2;
-                restingtime -= 2;
-                break;
-
-            case 't':
-                beat += 4;
-                restingtime -= 4;
-                break;
-
-            case 's':
-                beat += 8;
-                restingtime -= 8;
-                break;
-
-            case 'i':
-                beat += 16;
-                restingtime -= 16;
-                break;
-
-            case 'q':
-                beat += 32;
-                restingtime -= 32;
-                break;
-
-            case 'h':
-                beat += 64;
-                restingtime -= 64;
-                break;
-
-            case 'w':
-                beat += 128;
-                restingtime -= 128;
-                break;
-                
-            case '0':
-                duration = 'o';
-                beat += 1;
-                restingtime -= 1;
-                break;
-
-            case '1':
-                duration = 'x';
-                beat += 2;
-                restingtime -= 2;
-                break;
-
-            case '2':
-                duration = 't';
-                beat += 4;
-                restingtime -= 4;
-                break;
-
-            case '3':
-                duration = 's';
-                beat += 8;
-                restingtime -= 8;
-                break;
-
-            case '4':
-                duration = 'i';
-                beat += 16;
-                restingtime -= 16;
-                break;
-
-            case '5':
-                duration = 'q';
-                beat += 32;
-                restingtime -= 32;
-                break;
-
-            case '6':
-                duration = 'h';
-                beat += 64;
-                restingtime -= 64;
-                break;
+        if (voicings == null || voicings.getKey() != score.getKeyInt() || voicings.getStrategy() != voicing)
+            voicings = ChordVoicings.get(score.getKeyInt(), voicing, lowerBound, upperBound);
 
-            case '7':
-                duration = 'w';
-                beat += 128;
-                restingtime -= 128;
-                break;
-        }
-        
-        while(restingtime != 0)
-        {
-            if(restingtime >= 128)
-            {
-                rests += "Rw";
-                restingtime -= 128;
-            }
-            
-            else if(restingtime >= 64)
-            {
-                while(restingtime >= 64)
-                {
-                    rests += "Rh";
-                    restingtime -= 64;
-                }
-            }
-            else if(restingtime >= 32)
-            {
-                while(restingtime >= 32)
-                {
-                    rests += " Rq";
-                    restingtime -= 32;
-                }
-            }
-            
-            else if(restingtime >= 16)
-            {
-                while(restingtime >= 16)
-                {
-                    rests += " Ri";
-                    restingtime -= 16;
-                }
-            }
-            
-            else if(restingtime >= 8)
-            {
-                while(restingtime >= 8)
-                {
-                    rests += " Rs";
-                    restingtime -= 8;
-                }
-            }
-            
-            else if(restingtime >= 4)
-            {
-                while(restingtime >= 4)
-                {
-                    rests += " Rt";
-                    restingtime -= 4;
-                }
-            }
-            
-            else if(restingtime >= 2)
-            {
-                while(restingtime >= 2)
-                {
-                    rests += " Rx";
-                    restingtime -= 2;
-                }
-            }
-            
-            else if(restingtime >= 1)
-            {
-                while(restingtime >= 1)
-                {
-                    rests += " Ro";
-                    restingtime -= 1;
-                }
-            }
-        }
+        buffer.append(voicings.getFragment(chordDegree + 1, turtle.getY(), duration));
+        beat += ChordVoicings.getTicks(duration);
 
-        pitch1 = score.findClosestPitch(note1, pitch1, lowerBound, upperBound);
-        
-        if(pitch1 + 7 <= upperBound)
-        {
-            pitch2 = pitch1 + 4;
-            pitch3 = pitch2 + 3;
-        }
-        
-        else
-        {
-            pitch1 -= 12;
-            pitch2 = pitch1 + 4;
-            pitch3 = pitch2 + 3;
-        }
-        
-        if(pitch1 > pitch2 && pitch1 > pitch3)
-        {
-            buffer.append(" [" + pitch1 + "]" + duration);
-            
-            if(pitch2 > pitch3)
-            {
-                buffer.append(" V1 [" + pitch2 + "] " + duration + rests);
-                buffer.append(" V2 [" + pitch3 + "] " + duration + rests);
-            }
-            
-            else
-            {
-                buffer.append(" V1 [" + pitch3 + "]" + duration + rests);
-                buffer.append(" V2 [" + pitch2 + "]" + duration + rests);
-            }
-        }
-        
-        else if(pitch2 > pitch1 && pitch2 > pitch3)
-        {
-            buffer.append(" [" + pitch2 + "]" + duration);
-            
-            if(pitch1 > pitch3)
-            {
-                buffer.append(" V1 [" + pitch1 + "]" + duration + rests);
-                buffer.append(" V2 [" + pitch3 + "]" + duration + rests);
-            }
-            
-            else
-            {
-                buffer.append(" V1 [" + pitch3 + "]" + duration + rests);
-                buffer.append(" V2 [" + pitch1 + "]" + duration + rests);
-            }
-        }
-        
-        else
-        {
-            buffer.append(" [" + pitch3 + "]" + duration);
-            
-            if(pitch1 > pitch2)
-            {
-                buffer.append(" V1 [" + pitch1 + "]" + duration + rests);
-                buffer.append(" V2 [" + pitch2 + "]" + duration + rests);
-            }
-            
-            else
-            {
-                buffer.append(" V1 [" + pitch2 + "]" + duration + rests);
-                buffer.append(" V2 [" + pitch1 + "]" + duration + rests);
-            }
-        }
-        
-        buffer.append(" V0");
-        
         return buffer;
     }
 
@@ -1137,204 +937,77 @@ public class ScoreGenerator
      */
     public void genChordProgression()
     {
-        ArrayList<Integer> chordProg = new ArrayList<Integer>();
-        chordProg.add(0);
-        boolean complete = false;
-        int chord = 0;
-        int rand = 0;
-        
-        while(!complete)
-        {
-            int count = 0;
-            rand = (int)Math.floor(Math.random() * 10000);
-            
-            switch(chord)
-            {
-                // I Chord
-                case 0:
-                    for(int i=1667 ; i <= 10002 ; i += 1667)
-                    {
-                        if(rand <= i)
-                        {
-                            chordProg.add(count);
-                            break;
-                        }
-                        
-                        ++count;
-                    }
-                    break;
-                    
-                // V Chord
-                case 1:
-                    for(int i=3333 ; i <= 9999 ; i += 3333)
-                    {
-                        if(rand <= i)
-                        {
-                            chordProg.add(count);
-                            break;
-                        }
-                        
-                        if(count == 1)
-                            count += 2;
-                        
-                        else
-                            ++count;
-                    }
-                    
-                    if(rand > 9999)
-                    {
-                        int last = chordProg.size()-1;
-                        chordProg.add(last);
-                    }
-                    
-                    break;
-
-                // IV Chord
-                case 2:
-                    for(int i=2000 ; i <= 10000 ; i += 2000)
-                    {
-                        if(rand <= i)
-                        {
-                            chordProg.add(count);
-                            break;
-                        }
-                        
-                        if(count == 2)
-                            count += 2;
-                    }
-                    break;
-                
-                // vi Chord
-                case 3:
-                    count = 1;
-                    
-                    for(int i=2500 ; i <= 10000 ; i += 2500)
-                    {
-                        if(rand <= i)
-                        {
-                            chordProg.add(count);
-                            break;
-                        }
-                        
-                        if(count == 3)
-                            count += 2;
-                    }
-                    break;
-                    
-                // iii Chord
-                case 4:
-                    count = 2;
-                    
-                    for(int i=2500 ; i <= 10000 ; i += 2500)
-                    {
-                        if(rand <= i)
-                        {
-                            chordProg.add(count);
-                            break;
-                        }
-                        
-                        ++count;
-                    }
-                    break;
-                    
-                // ii Chord
-                case 5:
-                    count = 1;
-                    
-                    for(int i=3333 ; i <= 9999 ; i += 3333)
-                    {
-                        if(rand <= i)
-                        {
-                            chordProg.add(count);
-                            break;
-                        }
-                        
-                        if(count == 1)
-                            count += 3;
-                    }
-                    
-                    if(rand > 9999)
-                    {
-                        int last = chordProg.size()-1;
-                        chordProg.add(last);
-                    }
-                    
-                    break;
-            }
-            
-            // If Last chord was the I chord or size of the chord progression is >= 10, progression may be finished
-            if(chordProg.lastIndexOf(0) == chordProg.size()-1 || chordProg.size() >= 10)
-            {
-                int last = chordProg.size()-1;
-                
-                if(chordProg.get(last) != 0)
-                {
-                    chordProg.add(0);
-                    complete = true;
-                }
-                
-                else
-                {
-                    for(int i=1 ; i < 6 ; ++i)
-                    {
-                        if(chordProg.contains(i))
-                            complete = true;
-                    }
-                }
-            }
-        }
-        
-        chords = new int[chordProg.size()];
-        
-        for(int i=0 ; i < chordProg.size(); ++i)
-            chords[i] = chordProg.get(i);
+        setChords(progression.generate(chordRandom));
     }
 
     /**
-     * Randomly chooses a note based on the first-order probabilities provided by MusicAnalyzer.
+     * Generates a chord progression with exactly the number of chords passed.
      * 
-     * @param note the last note in the score
-     * @return The next note to be recorded represented as an integer.
+     * @param length number of chords, including the opening and closing tonic
      */
-    private int getFirstOrderNote(int note)
+    public void genChordProgression(int length)
     {
-        ArrayList<Double> list = analyzer.getProbability(note);
-        double range = 0.0;
-        double rand = Math.random();
+        setChords(progression.generate(length, chordRandom));
+    }
 
-        for (int l = 0; l < list.size(); ++l)
-        {
-            range += list.get(l);
+    /**
+     * @param degrees progression as scale degrees, stored as the zero-based degrees expected by writeChord()
+     */
+    private void setChords(int[] degrees)
+    {
+        chords = new int[degrees.length];
 
-            if (rand <= range)
-                return l;
-        }
+        for (int i = 0; i < degrees.length; ++i)
+            chords[i] = degrees[i] - 1;
+    }
 
-        return -1;
+    /**
+     * Randomly chooses a note from the Markov chain of the order passed provided by MusicAnalyzer, conditioned on the most recent notes recorded in the score. Backs off to shorter contexts
+     * when the recent notes never occurred in the analyzed music.
+     * 
+     * @param order order of the Markov chain (1 - MusicAnalyzer.MAX_ORDER)
+     * @return The next note to be recorded represented as an integer, or -1 if the last note was never followed by another.
+     */
+    private int getMarkovNote(int order)
+    {
+        int length = score.getHistory(history);
+        return getAnalyzer().sample(history, length, order, noteRandom);
     }
 
     /**
-     * Randomly chooses a note based on the second-order probabilities provided by MusicAnalyzer.
+     * @param order order of the Markov chain
+     * @param event joint event already drawn for the note, or -1 if none was drawn
+     * @return The pitch class of the event when the joint chain reaches the order, otherwise a note drawn from the variable-order chains.
+     */
+    private int getMarkovNote(int order, int event)
+    {
+        return event != -1 && order <= NoteCounts.JOINT_ORDER ? JointCounts.getPitchClass(event) : getMarkovNote(order);
+    }
+
+    /**
+     * Randomly chooses the next note or rest and its duration from the joint chain provided by MusicAnalyzer, conditioned on the most recent events recorded in the score.
      * 
-     * @param prevnote the second to last note in the score
-     * @param note the last note in the score
-     * @return The next note to be recorded represented as an integer.
+     * @param order order of the Markov chain, limited to NoteCounts.JOINT_ORDER
+     * @return The next event, see JointCounts, or -1 if no event has been recorded yet or the last one was never followed by another.
      */
-    private int getSecondOrderNote(int prevnote, int note)
+    private int getMarkovEvent(int order)
     {
-        ArrayList<Double> list = analyzer.getSecondProb(prevnote, note);
-        double range = 0.0;
-        double rand = Math.random();
+        int length = score.getJointHistory(jointHistory);
+        return getAnalyzer().sampleEvent(jointHistory, length, order, noteRandom);
+    }
 
-        for (int l = 0; l < list.size(); ++l)
-        {
-            range += list.get(l);
+    /**
+     * @param duration duration (0 for a 128th note - 7 for a whole note)
+     * @return The longest duration, up to the one passed, that does not run past the end of the current measure
+     */
+    private int fitMeasure(int duration)
+    {
+        int left = 128 - beat % 128;
 
-            if (rand <= range)
-                return l;
-        }
+        while (duration > 0 && (1 << duration) > left)
+            --duration;
 
-        return -1;
+        return duration;
     }
 
     /**
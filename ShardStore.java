@@ -0,0 +1,448 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * Persistent store of the counts contributed by each file of a corpus, so that a changed corpus is brought up to date by counting only the files that changed.<br>
+ * Every file counted has a shard holding its own NoteCounts, named after the file's path, size, modification time and transposition. An index lists the files counted together with the
+ * aggregate counts of all of them. On update, the shards of files that were removed or modified are subtracted from the aggregate and the counts of new or modified files are added, so
+ * the work is proportional to the files that changed. The index is replaced atomically after the new shards have been written, and a lock file keeps processes sharing the store from
+ * updating it at the same time. Index and shards are read into memory rather than mapped, so they can be replaced while the store is in use.<br>
+ * The index also keeps the hashes of the MIDI files each file contributed, so duplicates of files counted in earlier updates are skipped as well, and the hashes of the duplicates each
+ * file skipped. When a removed or modified file contributed a MIDI file that other files hold copies of, those files are counted again as well, so one of the copies takes its place.
+ *
+ * @author Harry Allen
+ */
+public class ShardStore
+{
+
+    private static final int    MAGIC   = 0x4E435349;   // "NCSI", start of the index
+    private static final int    VERSION = 3;            // Version of the index format
+    private static final String INDEX   = "index.bin";  // Name of the index file
+    private static final String LOCK    = "lock";       // Name of the lock file
+    private static final String PREFIX  = "shard-";     // Start of the name of each shard
+    private static final String SUFFIX  = ".bin";       // End of the name of each shard
+
+    private final File directory;   // Directory holding the index and shards
+
+    /**
+     * A file counted into the store, identified by its path, size, modification time and transposition.
+     */
+    private static final class Entry
+    {
+        final String path;
+        final long   size;
+        final long   modified;
+        final int    transpose;
+        final long[] hashes;        // Deduplicator hashes of the MIDI files counted from the file
+        final long[] copies;        // Deduplicator hashes of the MIDI files of the file skipped as duplicates
+
+        Entry(String path, long size, long modified, int transpose)
+        {
+            this(path, size, modified, transpose, new long[0], new long[0]);
+        }
+
+        Entry(String path, long size, long modified, int transpose, long[] hashes, long[] copies)
+        {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.transpose = transpose;
+            this.hashes = hashes;
+            this.copies = copies;
+        }
+
+        boolean sameAs(Entry other)
+        {
+            return path.equals(other.path) && size == other.size && modified == other.modified && transpose == other.transpose;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param directory directory holding the index and shards, created on the first update
+     */
+    public ShardStore(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The directory holding the index and shards
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Brings the store up to date with the trainer's corpus and returns the counts of the whole corpus. Only files that were added or modified since the last update are counted; files
+     * that were removed or modified have their old counts subtracted. Shards that are missing or unreadable cause every file to be counted again.
+     *
+     * @param trainer trainer holding the corpus; its files are counted on a trainer with the same order, number of threads and deduplication mode
+     * @return The transition counts of the corpus.
+     * @throws IOException if the store could not be read or written
+     */
+    public NoteCounts update(CorpusTrainer trainer) throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create shard directory " + directory);
+
+        // File locks are held by the whole process, so threads of this process take turns first
+        synchronized (ShardStore.class)
+        {
+            return lockAndUpdate(trainer);
+        }
+    }
+
+    /**
+     * Updates the store while holding the lock file. The lock is only held, never referenced, hence the suppressed warning.
+     */
+    @SuppressWarnings("try")
+    private NoteCounts lockAndUpdate(CorpusTrainer trainer) throws IOException
+    {
+        try (FileChannel lockChannel = FileChannel.open(new File(directory, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = lockChannel.lock())
+        {
+            int maxOrder = trainer.getMaxOrder();
+            final HashMap<String, Entry> stored = new HashMap<String, Entry>();
+            NoteCounts aggregate = readIndex(maxOrder, trainer.getDeduplication(), stored);
+            final LinkedHashMap<String, Entry> current = new LinkedHashMap<String, Entry>();
+
+            for (int i = 0; i < trainer.getFiles(); ++i)
+            {
+                File midi = trainer.getFile(i).getAbsoluteFile();
+                current.put(midi.getPath(), new Entry(midi.getPath(), midi.length(), midi.lastModified(), trainer.getTranspose(i)));
+            }
+
+            // Find the files that were removed or modified, and the unchanged files holding copies of the MIDI files they contributed
+            ArrayList<Entry> dropped = new ArrayList<Entry>();
+            HashSet<Long> lost = new HashSet<Long>();
+
+            for (Entry old : stored.values())
+            {
+                Entry now = current.get(old.path);
+
+                if (now == null || !now.sameAs(old))
+                {
+                    dropped.add(old);
+
+                    for (long hash : old.hashes)
+                        lost.add(hash);
+                }
+            }
+
+            if (!lost.isEmpty())
+            {
+                for (Entry old : stored.values())
+                {
+                    if (current.containsKey(old.path) && current.get(old.path).sameAs(old) && holdsAny(old, lost))
+                        dropped.add(old);
+                }
+            }
+
+            // Subtract them; those still in the corpus are counted again below
+            for (Entry old : dropped)
+            {
+                NoteCounts shard = readCounts(getShard(old));
+
+                if (shard == null || shard.getMaxOrder() != maxOrder)
+                {
+                    System.out.println("Shard of " + old.path + " is missing, counting every file again");
+                    aggregate = null;
+                    break;
+                }
+
+                aggregate.subtract(shard);
+                stored.remove(old.path);
+            }
+
+            if (aggregate == null)
+            {
+                aggregate = new NoteCounts(maxOrder);
+                stored.clear();
+            }
+
+            // Count the files that were added or modified, skipping copies of the files kept
+            CorpusTrainer changed = new CorpusTrainer(maxOrder, trainer.getThreads());
+            final Deduplicator deduplicator = new Deduplicator(trainer.getDeduplication());
+
+            changed.setDeduplication(trainer.getDeduplication());
+
+            for (Entry old : stored.values())
+            {
+                for (long hash : old.hashes)
+                    deduplicator.seed(hash, "an earlier training");
+            }
+
+            for (Entry now : current.values())
+            {
+                if (!stored.containsKey(now.path))
+                    changed.addFile(new File(now.path), now.transpose);
+            }
+
+            final NoteCounts total = aggregate;
+
+            changed.trainEach(new CorpusTrainer.Listener()
+            {
+                @Override
+                public void counted(File file, int transpose, NoteCounts counts) throws IOException
+                {
+                    Entry found = current.get(file.getPath());
+                    Entry entry = new Entry(found.path, found.size, found.modified, found.transpose, deduplicator.getKept(file.getPath()), deduplicator.getSkipped(file.getPath()));
+                    write(getShard(entry), null, 0, counts);
+
+                    synchronized (total)
+                    {
+                        total.add(counts);
+                        stored.put(entry.path, entry);
+                    }
+                }
+            }, deduplicator);
+
+            write(new File(directory, INDEX), stored, trainer.getDeduplication(), total);
+            deleteUnused(stored);
+
+            return total;
+        }
+    }
+
+    /**
+     * @return True if the file skipped a copy of any of the hashes
+     */
+    private static boolean holdsAny(Entry entry, HashSet<Long> hashes)
+    {
+        for (long copy : entry.copies)
+        {
+            if (hashes.contains(copy))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Reads the index.
+     *
+     * @param maxOrder highest order the index must have been counted with
+     * @param deduplication deduplication mode the index must have been counted with
+     * @param entries receives the files counted
+     * @return The aggregate counts, or null if there is no usable index.
+     */
+    private NoteCounts readIndex(int maxOrder, int deduplication, HashMap<String, Entry> entries)
+    {
+        File file = new File(directory, INDEX);
+
+        if (!file.isFile())
+            return null;
+
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != maxOrder || buffer.getInt() != MidiScanner.VERSION || buffer.getInt() != deduplication)
+                return null;
+
+            int size = buffer.getInt();
+
+            for (int i = 0; i < size; ++i)
+            {
+                byte[] path = new byte[buffer.getInt()];
+                buffer.get(path);
+
+                String name = new String(path, StandardCharsets.UTF_8);
+                long length = buffer.getLong();
+                long modified = buffer.getLong();
+                int transpose = buffer.getInt();
+                int count = buffer.getInt();
+
+                if (count < 0 || count > buffer.remaining() / 8)
+                    throw new IOException("Invalid number of hashes " + count);
+
+                long[] hashes = readHashes(buffer, count);
+                count = buffer.getInt();
+
+                if (count < 0 || count > buffer.remaining() / 8)
+                    throw new IOException("Invalid number of copies " + count);
+
+                Entry entry = new Entry(name, length, modified, transpose, hashes, readHashes(buffer, count));
+                entries.put(entry.path, entry);
+            }
+
+            NoteCounts counts = NoteCounts.read(buffer);
+
+            if (counts.getMaxOrder() == maxOrder)
+                return counts;
+        }
+        catch (IOException e)
+        {
+            System.out.println("Ignoring shard index " + file + ": " + e.getMessage());
+        }
+        catch (BufferUnderflowException e)
+        {
+            System.out.println("Ignoring shard index " + file + ": truncated");
+        }
+        catch (RuntimeException e)
+        {
+            System.out.println("Ignoring shard index " + file + ": " + e.toString());
+        }
+
+        entries.clear();
+        return null;
+    }
+
+    private static long[] readHashes(ByteBuffer buffer, int count)
+    {
+        long[] hashes = new long[count];
+
+        for (int h = 0; h < hashes.length; ++h)
+            hashes[h] = buffer.getLong();
+
+        return hashes;
+    }
+
+    /**
+     * @return The counts of a shard, or null if it is missing or unreadable
+     */
+    private static NoteCounts readCounts(File file)
+    {
+        if (!file.isFile())
+            return null;
+
+        try
+        {
+            return NoteCounts.read(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+        }
+        catch (IOException e)
+        {
+            System.out.println("Ignoring shard " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes counts, preceded by the index header and entries when entries are passed, to a temporary file and moves it into place.
+     */
+    private void write(File file, HashMap<String, Entry> entries, int deduplication, NoteCounts counts) throws IOException
+    {
+        File temp = File.createTempFile(PREFIX, ".tmp", directory);
+
+        try
+        {
+            try (OutputStream out = new FileOutputStream(temp))
+            {
+                DataOutputStream data = new DataOutputStream(out);
+
+                if (entries != null)
+                {
+                    data.writeInt(MAGIC);
+                    data.writeInt(VERSION);
+                    data.writeInt(counts.getMaxOrder());
+                    data.writeInt(MidiScanner.VERSION);
+                    data.writeInt(deduplication);
+                    data.writeInt(entries.size());
+
+                    for (Entry entry : entries.values())
+                    {
+                        byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+
+                        data.writeInt(path.length);
+                        data.write(path);
+                        data.writeLong(entry.size);
+                        data.writeLong(entry.modified);
+                        data.writeInt(entry.transpose);
+                        data.writeInt(entry.hashes.length);
+
+                        for (long hash : entry.hashes)
+                            data.writeLong(hash);
+
+                        data.writeInt(entry.copies.length);
+
+                        for (long copy : entry.copies)
+                            data.writeLong(copy);
+                    }
+                }
+
+                counts.write(data);
+            }
+
+            try
+            {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Deletes the shards that no entry of the index refers to.
+     */
+    private void deleteUnused(HashMap<String, Entry> entries)
+    {
+        HashSet<String> used = new HashSet<String>();
+
+        for (Entry entry : entries.values())
+            used.add(getShard(entry).getName());
+
+        File[] files = directory.listFiles();
+
+        if (files == null)
+            return;
+
+        for (File file : files)
+        {
+            String name = file.getName();
+
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX) && !used.contains(name))
+                file.delete();
+        }
+    }
+
+    /**
+     * @return The shard of a file, named after its path, size, modification time and transposition
+     */
+    private File getShard(Entry entry)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String identity = entry.path + '\0' + entry.size + '\0' + entry.modified + '\0' + entry.transpose;
+            byte[] hash = digest.digest(identity.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(PREFIX);
+
+            for (int i = 0; i < 16; ++i)
+                hex.append(String.format("%02x", hash[i] & 0xFF));
+
+            return new File(directory, hex.append(SUFFIX).toString());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
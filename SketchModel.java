@@ -0,0 +1,341 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Markov chains of every order up to a maximum whose high orders are kept in a CountMinSketch, so that their memory is fixed however large the corpus.<br>
+ * The contexts of up to four notes are counted exactly in a NoteCounts, which holds at most 22620 of them, and sampled like VariableOrderModel. Every transition from a context of
+ * five notes or more adds its count to the sketch under the context and the next note, and to the total of the context under the context alone. Sampling such a context queries the
+ * sketch for the 12 candidate continuations and draws one in proportion to their estimates; a context whose estimated total is below a minimum is treated as unknown and sampling
+ * backs off to a shorter one. A context never counted has an estimated total of 0 unless its cells are shared with others, so by default the minimum is the mean count of a cell,
+ * above which collisions rarely reach. The estimates are never below the true counts and exceed them by at most getSketch().getEpsilon() times getSketch().getTotal(), twice the
+ * number of transitions sketched, with probability 1 - getSketch().getDelta(); since conservative update depends on the order of the updates, and files are counted in parallel,
+ * estimates can differ slightly from one training to the next. main() checks these bounds against exact counts on a synthetic corpus. Instances are safe to share between threads once
+ * trained.
+ *
+ * @author Harry Allen
+ */
+public class SketchModel implements NoteChain
+{
+
+    public static final int  NOTES        = 12;
+    public static final int  FIRST_ORDER  = NoteCounts.JOINT_ORDER + 1;  // Lowest order kept in the sketch
+    private static final int TOTAL        = NOTES;                       // Next note of the key holding the total of a context
+    private static final int CHECK_ORDER  = 8;                           // Highest order of the chains checked by main()
+    private static final int CHECK_MOTIFS = 16;                          // Motifs the synthetic files of main() are made of
+    private static final int CHECK_MOTIF  = 8;                           // Notes of each motif
+    private static final int CHECK_NOTES  = 512;                         // Notes of each synthetic file
+
+    private final int                maxOrder;   // Highest order of the chains
+    private final NoteCounts         exact;      // Exact counts of the orders below FIRST_ORDER
+    private final VariableOrderModel low;        // Chains of the exact orders
+    private final CountMinSketch     sketch;     // Transitions of the higher orders and their totals
+    private final long               minTotal;   // Estimated transitions a sketched context needs to be sampled from
+    private final long               sketched;   // Sketched contexts counted, as estimated while training
+
+    /**
+     * Constructor.
+     *
+     * @param minTotal estimated transitions below which a sketched context is treated as unknown, or 0 for the mean count of a cell of the sketch, rounded up
+     */
+    private SketchModel(int maxOrder, NoteCounts exact, CountMinSketch sketch, long minTotal, long sketched)
+    {
+        if (minTotal == 0)
+            minTotal = Math.max(1L, (sketch.getTotal() + sketch.getWidth() - 1) / sketch.getWidth());
+
+        this.maxOrder = maxOrder;
+        this.exact = exact;
+        this.low = exact.toVariableModel();
+        this.sketch = sketch;
+        this.minTotal = minTotal;
+        this.sketched = sketched;
+    }
+
+    /**
+     * Checks the bounds of the estimates against exact counts on a synthetic corpus, sketched file by file as train() does; each file strings together motifs drawn at random from a
+     * few random motifs, so that contexts recur as they do in music. Every transition and total of
+     * the orders from FIRST_ORDER to 8 is estimated: none may be below its exact count, and no more than getDelta() of them may exceed it by more than getEpsilon() times the total
+     * sketched. Contexts never counted are then drawn at random to check the back-off to shorter contexts: no more of them may reach getMinTotal() than the getLoad()^depth expected to
+     * have every cell shared, with a margin of three standard deviations. Prints the results and exits with status 1 if a check fails.<br>
+     * <br>
+     * Usage: java SketchModel [files [kilobytes [seed]]], by default 200 files of 512 notes in a sketch of 1024 kilobytes
+     *
+     * @param args command-line arguments
+     */
+    public static void main(String[] args)
+    {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long kilobytes = args.length > 1 ? Long.parseLong(args[1]) : 1024;
+        RandomSource random = args.length > 2 ? new RandomSource(Long.parseLong(args[2])) : new RandomSource();
+        NoteCounts all = new NoteCounts(CHECK_ORDER);
+        NoteCounts low = new NoteCounts(FIRST_ORDER - 1);
+        CountMinSketch sketch = CountMinSketch.ofSize(kilobytes << 10, 4);
+        int[][] motifs = new int[CHECK_MOTIFS][CHECK_MOTIF];
+        int[] melody = new int[CHECK_NOTES];
+        long sketched = 0;
+
+        for (int[] motif : motifs)
+        {
+            for (int i = 0; i < motif.length; ++i)
+                motif[i] = random.nextInt(NOTES);
+        }
+
+        for (int f = 0; f < files; ++f)
+        {
+            for (int i = 0; i < melody.length; i += CHECK_MOTIF)
+                System.arraycopy(motifs[random.nextInt(CHECK_MOTIFS)], 0, melody, i, CHECK_MOTIF);
+
+            NoteCounts counts = new NoteCounts(CHECK_ORDER);
+            counts.addSequence(melody, melody.length, 0);
+            low.addLowOrders(counts);
+            sketched += addHighOrders(sketch, counts);
+            all.add(counts);
+        }
+
+        SketchModel model = new SketchModel(CHECK_ORDER, low, sketch, 0, sketched);
+        double bound = sketch.getEpsilon() * sketch.getTotal();
+        long estimates = 0;
+        long below = 0;
+        long above = 0;
+
+        for (int row = 0; row < all.getContexts(); ++row)
+        {
+            long context = all.getContext(row);
+
+            if (ContextIndex.getOrder(context) < FIRST_ORDER)
+                continue;
+
+            long total = 0;
+
+            for (int next = 0; next <= NOTES; ++next)
+            {
+                long count = next < NOTES ? all.getCount(row, next) : total;
+                long estimate = model.estimate(context, next);
+
+                total += count;
+                ++estimates;
+
+                if (estimate < count)
+                    ++below;
+                else if (estimate - count > bound)
+                    ++above;
+            }
+        }
+
+        int trials = 100000;
+        int unseen = 0;
+        int sampled = 0;
+
+        while (unseen < trials)
+        {
+            int order = FIRST_ORDER + random.nextInt(CHECK_ORDER - FIRST_ORDER + 1);
+            long packed = 0;
+
+            for (int i = 0; i < order; ++i)
+                packed = (packed << 4) | random.nextInt(NOTES);
+
+            long context = ContextIndex.pack(packed, order);
+
+            if (all.getRow(context) != -1)
+                continue;
+
+            ++unseen;
+
+            if (model.estimate(context, TOTAL) >= model.getMinTotal())
+                ++sampled;
+        }
+
+        double shared = Math.pow(sketch.getLoad(), sketch.getDepth());
+        double allowed = trials * shared + 3.0 * Math.sqrt(trials * shared * (1.0 - shared));
+        boolean passed = below == 0 && above <= estimates * sketch.getDelta() && sampled <= allowed;
+
+        System.out.println(String.format("Sketch of %d bytes, %d transitions of %d synthetic files, %.1f%% of cells used", sketch.getBytes(), sketch.getTotal() / 2, files,
+                100.0 * sketch.getLoad()));
+        System.out.println(String.format("%d estimates: %d below the exact count, %d above it by more than %.0f (at most %.0f allowed)", estimates, below, above, bound,
+                estimates * sketch.getDelta()));
+        System.out.println(String.format("%d contexts never counted: %d sampled from %d transitions or more (at most %.0f allowed)", trials, sampled, model.getMinTotal(), allowed));
+        System.out.println(passed ? "Sketch check passed" : "Sketch check failed");
+
+        if (!passed)
+            System.exit(1);
+    }
+
+    /**
+     * Counts a corpus MIDI file by MIDI file, archive entries included, keeping the low orders of each exactly and adding the high orders to a sketch, so that the counts of the high
+     * orders are never held for more than one MIDI file per parser thread, however large the corpus or its archives.
+     *
+     * @param corpus trainer holding the corpus, counting orders FIRST_ORDER to 14; its threads and deduplication mode are used for counting
+     * @param sketch empty sketch receiving the transitions of the orders from FIRST_ORDER
+     * @param minTotal estimated transitions below which a sketched context is treated as unknown, or 0 for the mean count of a cell of the sketch once trained, rounded up
+     * @return The chains of the corpus.
+     * @throws IllegalStateException if counting is interrupted or a parser thread fails
+     */
+    public static SketchModel train(CorpusTrainer corpus, final CountMinSketch sketch, long minTotal)
+    {
+        if (corpus.getMaxOrder() < FIRST_ORDER || corpus.getMaxOrder() >= ContextIndex.MAX_ORDER)
+            throw new IllegalArgumentException("Sketched chains must have an order between " + FIRST_ORDER + " and " + (ContextIndex.MAX_ORDER - 1));
+
+        if (minTotal < 0)
+            throw new IllegalArgumentException("A sketched context cannot need fewer than 0 transitions");
+
+        final NoteCounts exact = new NoteCounts(FIRST_ORDER - 1);
+        final long[] sketched = new long[1];
+
+        try
+        {
+            corpus.trainEntries(new CorpusTrainer.Listener()
+            {
+                @Override
+                public void counted(File file, int transpose, NoteCounts counts)
+                {
+                    synchronized (exact)
+                    {
+                        exact.addLowOrders(counts);
+                        sketched[0] += addHighOrders(sketch, counts);
+                    }
+                }
+            });
+        }
+        catch (IOException e)
+        {
+            // The listener throws nothing
+            throw new IllegalStateException(e);
+        }
+
+        return new SketchModel(corpus.getMaxOrder(), exact, sketch, minTotal, sketched[0]);
+    }
+
+    @Override
+    public int getMaxOrder()
+    {
+        return maxOrder;
+    }
+
+    /**
+     * @return The number of exact contexts plus the estimated number of sketched contexts; contexts sharing every cell of the sketch with contexts counted before are missed
+     */
+    @Override
+    public int getContexts()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, low.getContexts() + sketched);
+    }
+
+    /**
+     * @return The exact counts of the orders below FIRST_ORDER, with the joint pitch and duration counts of every note
+     */
+    public NoteCounts getCounts()
+    {
+        return exact;
+    }
+
+    /**
+     * @return The estimated transitions below which a sketched context is treated as unknown
+     */
+    public long getMinTotal()
+    {
+        return minTotal;
+    }
+
+    /**
+     * @return The sketch holding the orders from FIRST_ORDER
+     */
+    public CountMinSketch getSketch()
+    {
+        return sketch;
+    }
+
+    /**
+     * @param context packed context of order FIRST_ORDER or higher, see ContextIndex
+     * @param next pitch class, or 12 for the total of the context
+     * @return The estimated number of times next followed the context, never below the true number.
+     */
+    public long estimate(long context, int next)
+    {
+        return sketch.estimate(getKey(context, next));
+    }
+
+    @Override
+    public int sample(int[] history, int length, int order, int transpose, RandomSource random)
+    {
+        int shift = ((transpose % NOTES) + NOTES) % NOTES;
+        int longest = Math.min(Math.min(order, maxOrder), length);
+        long packed = 0;
+
+        for (int i = length - longest; i < length; ++i)
+            packed = (packed << 4) | ((history[i] + shift) % NOTES);
+
+        long[] weights = new long[NOTES];
+
+        for (int o = longest; o >= FIRST_ORDER; --o)
+        {
+            long context = ContextIndex.pack(packed, o);
+
+            if (estimate(context, TOTAL) < minTotal)
+                continue;
+
+            long sum = 0;
+
+            for (int next = 0; next < NOTES; ++next)
+            {
+                weights[next] = estimate(context, next);
+                sum += weights[next];
+            }
+
+            if (sum == 0)
+                continue;
+
+            double draw = random.nextDouble() * sum;
+            int next = 0;
+
+            while (next < NOTES - 1 && draw >= weights[next])
+                draw -= weights[next++];
+
+            return (next - shift + NOTES) % NOTES;
+        }
+
+        return low.sample(history, length, Math.min(order, FIRST_ORDER - 1), transpose, random);
+    }
+
+    /**
+     * Adds the transitions of the contexts from FIRST_ORDER to a sketch.
+     *
+     * @return The number of contexts whose total was estimated at 0 before they were added
+     */
+    private static long addHighOrders(CountMinSketch sketch, NoteCounts counts)
+    {
+        long added = 0;
+
+        for (int row = 0; row < counts.getContexts(); ++row)
+        {
+            long context = counts.getContext(row);
+
+            if (ContextIndex.getOrder(context) < FIRST_ORDER)
+                continue;
+
+            long total = 0;
+
+            for (int next = 0; next < NOTES; ++next)
+            {
+                long count = counts.getCount(row, next);
+
+                if (count > 0)
+                {
+                    sketch.add(getKey(context, next), count);
+                    total += count;
+                }
+            }
+
+            if (total > 0 && sketch.add(getKey(context, TOTAL), total) == 0)
+                ++added;
+        }
+
+        return added;
+    }
+
+    /**
+     * @return The key of a transition in the sketch: the packed context, of at most 14 notes, shifted past the next note
+     */
+    private static long getKey(long context, int next)
+    {
+        return (context << 4) | next;
+    }
+}
@@ -0,0 +1,307 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts one part of a corpus in a process of its own, for DistributedTrainer.<br>
+ * The part is described by a task file: the highest order counted, the number of parser threads, the deduplication mode, the number of Deduplicator hashes counted by other workers
+ * followed by one line per hash in hexadecimal, then one line per file holding the half steps added to its notes, a tab and its path. The counts are either written to a shard file, through a temporary file moved into place so that a coordinator polling a shared directory never sees a partly written shard, or sent
+ * to the coordinator over a socket as the worker's index, the length of the counts and the counts in the format of NoteCounts.write(). Before counting, a worker can be run with --hashes
+ * to write the Deduplicator hashes of every MIDI file of its part instead, as their number followed by each hash as a big-endian long, so that the coordinator can tell each worker which
+ * files another worker holds too.<br>
+ * <br>
+ * Usage: java TrainingWorker --task file (--hashes file | --shard file | --send host:port --worker index)
+ *
+ * @author Harry Allen
+ */
+public class TrainingWorker
+{
+
+    private static final String SEPARATOR = "\t";   // Separates the transposition of a file from its path in a task file
+
+    /**
+     * Counts the files of a task and delivers the counts. Exits with status 1 if the task cannot be read or the counts cannot be delivered.
+     *
+     * @param args command-line arguments
+     */
+    public static void main(String[] args)
+    {
+        String task = null;
+        String hashes = null;
+        String shard = null;
+        String send = null;
+        int worker = -1;
+
+        try
+        {
+            for (int i = 0; i < args.length; ++i)
+            {
+                switch (args[i])
+                {
+                    case "--task":
+                        task = getValue(args, ++i);
+                        break;
+
+                    case "--hashes":
+                        hashes = getValue(args, ++i);
+                        break;
+
+                    case "--shard":
+                        shard = getValue(args, ++i);
+                        break;
+
+                    case "--send":
+                        send = getValue(args, ++i);
+                        break;
+
+                    case "--worker":
+                        worker = Integer.parseInt(getValue(args, ++i));
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+
+            int outputs = (hashes != null ? 1 : 0) + (shard != null ? 1 : 0) + (send != null ? 1 : 0);
+
+            if (task == null || outputs != 1 || (send != null && worker < 0))
+                throw new IllegalArgumentException("Usage: TrainingWorker --task file (--hashes file | --shard file | --send host:port --worker index)");
+
+            ArrayList<Long> seeds = new ArrayList<Long>();
+            CorpusTrainer trainer = readTask(new File(task), seeds);
+            Deduplicator deduplicator = new Deduplicator(trainer.getDeduplication());
+
+            for (long seed : seeds)
+                deduplicator.seed(seed, "another worker");
+
+            if (hashes != null)
+            {
+                trainer.hash(deduplicator);
+                writeHashes(deduplicator.getHashes(), new File(hashes));
+                return;
+            }
+
+            NoteCounts counts = trainer.train(deduplicator);
+
+            if (shard != null)
+                writeShard(counts, new File(shard));
+            else
+                send(counts, send, worker);
+        }
+        catch (IllegalArgumentException | IllegalStateException | IOException e)
+        {
+            System.out.println("Training worker failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes a task file.
+     *
+     * @param file the task file
+     * @param maxOrder highest order of Markov chain to count
+     * @param threads number of parser threads of the worker, values below 1 use one thread per available core
+     * @param deduplication Deduplicator mode of the worker
+     * @param seeds hashes of MIDI files counted by other workers, whose copies the worker skips
+     * @param files files of the task
+     * @param transposes half steps added to the notes of each file
+     * @throws IOException if the file could not be written
+     */
+    public static void writeTask(File file, int maxOrder, int threads, int deduplication, List<Long> seeds, List<File> files, List<Integer> transposes)
+            throws IOException
+    {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))
+        {
+            out.write(maxOrder + "\n" + threads + "\n" + deduplication + "\n" + seeds.size() + "\n");
+
+            for (long seed : seeds)
+                out.write(Long.toHexString(seed) + "\n");
+
+            for (int i = 0; i < files.size(); ++i)
+                out.write(transposes.get(i) + SEPARATOR + files.get(i).getAbsolutePath() + "\n");
+        }
+    }
+
+    /**
+     * Reads a task file.
+     *
+     * @param file the task file
+     * @param seeds receives the hashes of MIDI files counted by other workers
+     * @return A trainer holding the files of the task.
+     * @throws IOException if the file could not be read or is not a task file
+     */
+    public static CorpusTrainer readTask(File file, List<Long> seeds) throws IOException
+    {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))
+        {
+            CorpusTrainer trainer = new CorpusTrainer(Integer.parseInt(in.readLine().trim()), Integer.parseInt(in.readLine().trim()));
+            trainer.setDeduplication(Integer.parseInt(in.readLine().trim()));
+
+            for (int i = Integer.parseInt(in.readLine().trim()); i > 0; --i)
+                seeds.add(Long.parseUnsignedLong(in.readLine().trim(), 16));
+
+            for (String line = in.readLine(); line != null; line = in.readLine())
+            {
+                int separator = line.indexOf(SEPARATOR);
+
+                if (separator < 0)
+                    throw new IOException("Invalid task entry: " + line);
+
+                trainer.addFile(new File(line.substring(separator + 1)), Integer.parseInt(line.substring(0, separator)));
+            }
+
+            return trainer;
+        }
+        catch (IllegalArgumentException | NullPointerException e)
+        {
+            throw new IOException("Not a task file: " + file);
+        }
+    }
+
+    /**
+     * Writes counts to a shard file through a temporary file in the same directory.
+     *
+     * @param counts the counts
+     * @param file the shard file
+     * @throws IOException if the shard could not be written
+     */
+    public static void writeShard(NoteCounts counts, File file) throws IOException
+    {
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+
+        try
+        {
+            try (OutputStream out = new FileOutputStream(temp))
+            {
+                counts.write(out);
+            }
+
+            replace(temp, file);
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Writes the hashes of the MIDI files of a part through a temporary file in the same directory.
+     *
+     * @param hashes content and note hashes, see Deduplicator.getHashes()
+     * @param file the hash file
+     * @throws IOException if the hashes could not be written
+     */
+    public static void writeHashes(long[] hashes, File file) throws IOException
+    {
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+            {
+                out.writeInt(hashes.length);
+
+                for (long hash : hashes)
+                    out.writeLong(hash);
+            }
+
+            replace(temp, file);
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Reads a hash file written by writeHashes().
+     *
+     * @param file the hash file
+     * @return The hashes.
+     * @throws IOException if the file could not be read or is truncated
+     */
+    public static long[] readHashes(File file) throws IOException
+    {
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(file)))
+        {
+            DataInputStream in = new DataInputStream(stream);
+            int count = in.readInt();
+
+            if (count < 0 || count > file.length() / 8)
+                throw new IOException("Not a hash file: " + file);
+
+            long[] hashes = new long[count];
+
+            for (int i = 0; i < count; ++i)
+                hashes[i] = in.readLong();
+
+            return hashes;
+        }
+    }
+
+    /**
+     * Moves a temporary file into place, atomically where the file system allows it.
+     */
+    private static void replace(File temp, File file) throws IOException
+    {
+        try
+        {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Sends counts to a coordinator.
+     */
+    private static void send(NoteCounts counts, String address, int worker) throws IOException
+    {
+        int colon = address.lastIndexOf(':');
+
+        if (colon < 0)
+            throw new IllegalArgumentException("Expected host:port, found " + address);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        counts.write(bytes);
+
+        try (Socket socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))))
+        {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(worker);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.flush();
+        }
+    }
+
+    private static String getValue(String[] args, int i)
+    {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+
+        return args[i];
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Markov chains of every order up to a maximum, frozen into flat primitive tables with one alias table per observed context.<br>
+ * Contexts are looked up in a ContextIndex, so memory is proportional to the contexts found in the analyzed music rather than to 12^order. Sampling backs off from the longest context
+ * available to shorter ones until it finds a context that was followed by a note. Instances are immutable and may be shared between threads.
+ *
+ * @author Harry Allen
+ */
+public class VariableOrderModel implements NoteChain
+{
+
+    public static final int    NOTES = 12;
+
+    private final int          maxOrder;   // Highest order of the chains
+    private final ContextIndex contexts;   // Row of each context with at least one transition
+    private final double[]     cut;        // Alias table cut-offs of each row
+    private final int[]        alias;      // Alias table outcomes of each row
+
+    /**
+     * Constructor. Builds the alias table of every context that was followed by at least one note.
+     *
+     * @param counts transition counts of every order
+     */
+    public VariableOrderModel(NoteCounts counts)
+    {
+        maxOrder = counts.getMaxOrder();
+        contexts = new ContextIndex(counts.getContexts());
+
+        double[] weights = new double[counts.getContexts() * NOTES];
+
+        for (int row = 0; row < counts.getContexts(); ++row)
+        {
+            long total = 0;
+
+            for (int next = 0; next < NOTES; ++next)
+                total += counts.getCount(row, next);
+
+            if (total > 0)
+            {
+                int mine = contexts.add(counts.getContext(row));
+
+                for (int next = 0; next < NOTES; ++next)
+                    weights[mine * NOTES + next] = counts.getCount(row, next);
+            }
+        }
+
+        cut = new double[contexts.size() * NOTES];
+        alias = new int[cut.length];
+
+        for (int row = 0; row < contexts.size(); ++row)
+            AliasTable.build(weights, row * NOTES, NOTES, cut, alias);
+    }
+
+    @Override
+    public int getMaxOrder()
+    {
+        return maxOrder;
+    }
+
+    @Override
+    public int getContexts()
+    {
+        return contexts.size();
+    }
+
+    @Override
+    public int sample(int[] history, int length, int order, int transpose, RandomSource random)
+    {
+        int shift = ((transpose % NOTES) + NOTES) % NOTES;
+        int longest = Math.min(Math.min(order, maxOrder), length);
+        long packed = 0;
+
+        for (int i = length - longest; i < length; ++i)
+            packed = (packed << 4) | ((history[i] + shift) % NOTES);
+
+        for (int o = longest; o >= 1; --o)
+        {
+            int row = contexts.get(ContextIndex.pack(packed, o));
+
+            if (row != -1)
+            {
+                int next = AliasTable.sample(cut, alias, row * NOTES, NOTES, random);
+                return (next - shift + NOTES) % NOTES;
+            }
+        }
+
+        return -1;
+    }
+}